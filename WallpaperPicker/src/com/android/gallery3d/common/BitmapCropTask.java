@@ -33,11 +33,16 @@ import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
 
@@ -46,6 +51,10 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
     }
 
     private static final int DEFAULT_COMPRESS_QUALITY = 90;
+    // Height of the bands, in pixels of the sampled image, the crop region is decoded in
+    private static final int BAND_HEIGHT = 256;
+    // Maximum size of the image decoded in memory when the region decoder is not available
+    private static final int MAX_FALLBACK_PIXELS = 4 * 1024 * 1024;
     private static final String LOGTAG = "BitmapCropTask";
 
     Uri mInUri = null;
@@ -251,26 +260,22 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
                is = null;
             }
 
-            Bitmap crop = null;
+            Bitmap out = null;
             if (decoder != null) {
-                // Do region decoding to get crop bitmap
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                if (scaleDownSampleSize > 1) {
-                    options.inSampleSize = scaleDownSampleSize;
-                }
-                crop = decoder.decodeRegion(roundedTrueCrop, options);
+                // Decode the crop region band by band straight into the output bitmap, so that
+                // the full size crop never needs to be in memory
+                out = decodeRegionInBands(decoder, roundedTrueCrop, scaleDownSampleSize,
+                        rotateMatrix);
                 decoder.recycle();
             }
 
-            if (crop == null) {
+            if (out == null) {
                 // BitmapRegionDecoder has failed, try to crop in-memory
                 is = regenerateInputStream();
                 Bitmap fullSize = null;
                 if (is != null) {
                     BitmapFactory.Options options = new BitmapFactory.Options();
-                    if (scaleDownSampleSize > 1) {
-                        options.inSampleSize = scaleDownSampleSize;
-                    }
+                    options.inSampleSize = getFallbackSampleSize(bounds, scaleDownSampleSize);
                     fullSize = BitmapFactory.decodeStream(is, null, options);
                     Utils.closeSilently(is);
                 }
@@ -307,88 +312,199 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
                         roundedTrueCrop.bottom -= adjustment;
                     }
 
-                    crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
-                            roundedTrueCrop.top, roundedTrueCrop.width(),
-                            roundedTrueCrop.height());
+                    // Draw the crop region of the decoded image straight into the output
+                    Matrix m = getOutputMatrix(roundedTrueCrop.width(), roundedTrueCrop.height(),
+                            rotateMatrix);
+                    out = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
+                    Canvas c = new Canvas(out);
+                    m.preTranslate(-roundedTrueCrop.left, -roundedTrueCrop.top);
+                    c.clipRect(getOutputClip(m, roundedTrueCrop));
+                    c.drawBitmap(fullSize, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+                    c.setBitmap(null);
+                    fullSize.recycle();
                 }
             }
 
-            if (crop == null) {
+            if (out == null) {
                 Log.w(LOGTAG, "cannot decode file: " + mInUri.toString());
                 failure = true;
                 return false;
             }
-            if (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0) {
-                float[] dimsAfter = new float[] { crop.getWidth(), crop.getHeight() };
-                rotateMatrix.mapPoints(dimsAfter);
-                dimsAfter[0] = Math.abs(dimsAfter[0]);
-                dimsAfter[1] = Math.abs(dimsAfter[1]);
-
-                if (!(mOutWidth > 0 && mOutHeight > 0)) {
-                    mOutWidth = Math.round(dimsAfter[0]);
-                    mOutHeight = Math.round(dimsAfter[1]);
-                }
 
-                RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
-                RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
+            if (mSaveCroppedBitmap) {
+                mCroppedBitmap = out;
+            }
 
-                Matrix m = new Matrix();
-                if (mRotation == 0) {
-                    m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-                } else {
-                    Matrix m1 = new Matrix();
-                    m1.setTranslate(-crop.getWidth() / 2f, -crop.getHeight() / 2f);
-                    Matrix m2 = new Matrix();
-                    m2.setRotate(mRotation);
-                    Matrix m3 = new Matrix();
-                    m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
-                    Matrix m4 = new Matrix();
-                    m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-
-                    Matrix c1 = new Matrix();
-                    c1.setConcat(m2, m1);
-                    Matrix c2 = new Matrix();
-                    c2.setConcat(m4, m3);
-                    m.setConcat(c2, c1);
-                }
+            if (!compressAndSetWallpaper(out, wallpaperManager)) {
+                failure = true;
+            }
+        }
+        return !failure; // True if any of the operations failed
+    }
 
-                Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(),
-                        (int) returnRect.height(), Bitmap.Config.ARGB_8888);
-                if (tmp != null) {
-                    Canvas c = new Canvas(tmp);
-                    Paint p = new Paint();
-                    p.setFilterBitmap(true);
-                    c.drawBitmap(crop, m, p);
-                    crop = tmp;
+    /**
+     * Decodes {@param crop} from {@param decoder} in horizontal bands, scaling and rotating each
+     * band into the output bitmap. Peak memory is the output bitmap plus a single band.
+     * @return the output bitmap, or null if the region could not be decoded.
+     */
+    private Bitmap decodeRegionInBands(BitmapRegionDecoder decoder, Rect crop, int sampleSize,
+            Matrix rotateMatrix) {
+        int cropWidth = Math.max(1, crop.width() / sampleSize);
+        int cropHeight = Math.max(1, crop.height() / sampleSize);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+
+        Matrix m = getOutputMatrix(cropWidth, cropHeight, rotateMatrix);
+        Matrix bandMatrix = new Matrix();
+        Rect bandRegion = new Rect();
+        Rect bandRect = new Rect();
+        Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        Bitmap out = null;
+        Canvas c = null;
+        for (int top = 0; top < cropHeight; top += BAND_HEIGHT) {
+            int bottom = Math.min(cropHeight, top + BAND_HEIGHT);
+
+            // Decode one extra row on each side, so that filtering does not leave seams
+            int decodeTop = Math.max(0, top - 1);
+            int decodeBottom = Math.min(cropHeight, bottom + 1);
+            bandRegion.set(crop.left, crop.top + decodeTop * sampleSize, crop.right,
+                    Math.min(crop.bottom, crop.top + decodeBottom * sampleSize));
+            Bitmap band = decoder.decodeRegion(bandRegion, options);
+            if (band == null) {
+                if (out != null) {
+                    out.recycle();
                 }
+                return null;
             }
 
-            if (mSaveCroppedBitmap) {
-                mCroppedBitmap = crop;
+            if (out == null) {
+                out = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
+                c = new Canvas(out);
             }
+            bandMatrix.set(m);
+            bandMatrix.preTranslate(0, decodeTop);
+            bandRect.set(0, top, cropWidth, bottom);
+
+            c.save();
+            c.clipRect(getOutputClip(m, bandRect));
+            c.drawBitmap(band, bandMatrix, p);
+            c.restore();
+            band.recycle();
+        }
+        if (c != null) {
+            c.setBitmap(null);
+        }
+        return out;
+    }
 
-            // Compress to byte array
-            ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
-            if (crop.compress(CompressFormat.JPEG, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-                // If we need to set to the wallpaper, set it
-                if (mSetWallpaper && wallpaperManager != null) {
-                    try {
-                        byte[] outByteArray = tmpOut.toByteArray();
-                        wallpaperManager.setStream(new ByteArrayInputStream(outByteArray));
-                        if (mOnBitmapCroppedHandler != null) {
-                            mOnBitmapCroppedHandler.onBitmapCropped(outByteArray);
-                        }
-                    } catch (IOException e) {
-                        Log.w(LOGTAG, "cannot write stream to wallpaper", e);
-                        failure = true;
-                    }
-                }
-            } else {
+    /**
+     * Returns the matrix mapping a crop of the given size to the output bitmap, applying
+     * {@link #mRotation}. Sets the output size to the rotated crop size if none was given.
+     */
+    private Matrix getOutputMatrix(int cropWidth, int cropHeight, Matrix rotateMatrix) {
+        float[] dimsAfter = new float[] { cropWidth, cropHeight };
+        rotateMatrix.mapPoints(dimsAfter);
+        dimsAfter[0] = Math.abs(dimsAfter[0]);
+        dimsAfter[1] = Math.abs(dimsAfter[1]);
+
+        if (!(mOutWidth > 0 && mOutHeight > 0)) {
+            mOutWidth = Math.round(dimsAfter[0]);
+            mOutHeight = Math.round(dimsAfter[1]);
+        }
+
+        RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
+        RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
+
+        Matrix m = new Matrix();
+        if (mRotation == 0) {
+            m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+        } else {
+            Matrix m1 = new Matrix();
+            m1.setTranslate(-cropWidth / 2f, -cropHeight / 2f);
+            Matrix m2 = new Matrix();
+            m2.setRotate(mRotation);
+            Matrix m3 = new Matrix();
+            m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
+            Matrix m4 = new Matrix();
+            m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+
+            Matrix c1 = new Matrix();
+            c1.setConcat(m2, m1);
+            Matrix c2 = new Matrix();
+            c2.setConcat(m4, m3);
+            m.setConcat(c2, c1);
+        }
+        return m;
+    }
+
+    private static RectF getOutputClip(Matrix m, Rect src) {
+        RectF clip = new RectF(src);
+        m.mapRect(clip);
+        return clip;
+    }
+
+    /**
+     * Returns the sample size for decoding the whole image in memory, such that the decoded
+     * image stays within {@link #MAX_FALLBACK_PIXELS} regardless of the source resolution.
+     */
+    private static int getFallbackSampleSize(Point bounds, int minSampleSize) {
+        int sampleSize = Math.max(1, minSampleSize);
+        if (bounds != null) {
+            while ((long) (bounds.x / sampleSize) * (bounds.y / sampleSize)
+                    > MAX_FALLBACK_PIXELS) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Compresses the bitmap and sets it as the wallpaper if needed. The image is encoded to a
+     * file in the cache directory, instead of a growing in-memory buffer, when possible.
+     */
+    private boolean compressAndSetWallpaper(Bitmap bitmap, WallpaperManager wallpaperManager) {
+        if (!mSetWallpaper || wallpaperManager == null) {
+            return true;
+        }
+
+        File outFile = null;
+        OutputStream os = null;
+        InputStream is = null;
+        try {
+            outFile = File.createTempFile("cropped", ".jpg", mContext.getCacheDir());
+            os = new BufferedOutputStream(new FileOutputStream(outFile));
+            if (!bitmap.compress(CompressFormat.JPEG, DEFAULT_COMPRESS_QUALITY, os)) {
                 Log.w(LOGTAG, "cannot compress bitmap");
-                failure = true;
+                return false;
+            }
+            os.close();
+            os = null;
+
+            is = new BufferedInputStream(new FileInputStream(outFile));
+            wallpaperManager.setStream(is);
+            if (mOnBitmapCroppedHandler != null) {
+                byte[] outByteArray = new byte[(int) outFile.length()];
+                DataInputStream in = new DataInputStream(new FileInputStream(outFile));
+                try {
+                    in.readFully(outByteArray);
+                } finally {
+                    Utils.closeSilently(in);
+                }
+                mOnBitmapCroppedHandler.onBitmapCropped(outByteArray);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "cannot write stream to wallpaper", e);
+            return false;
+        } finally {
+            Utils.closeSilently(os);
+            Utils.closeSilently(is);
+            if (outFile != null) {
+                outFile.delete();
             }
         }
-        return !failure; // True if any of the operations failed
     }
 
     @Override
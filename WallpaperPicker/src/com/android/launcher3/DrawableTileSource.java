@@ -86,7 +86,7 @@ public class DrawableTileSource implements TiledImageRenderer.TileSource {
     }
 
     @Override
-    public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+    public synchronized Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
         int tileSize = getTileSize();
         if (bitmap == null) {
             bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
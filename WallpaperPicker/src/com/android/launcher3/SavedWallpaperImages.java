@@ -33,6 +33,8 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.ListAdapter;
 
+import com.android.launcher3.util.DatabaseTuning;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -193,6 +195,12 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
             mContext = context;
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // No write-ahead logging, as the wallpaper picker runs in its own process
+            DatabaseTuning.configure(mContext, db, false);
+        }
+
         public static void moveFromCacheDirectoryIfNecessary(Context context) {
             // We used to store the saved images in the cache directory, but that meant they'd get
             // deleted sometimes-- move them to the data directory
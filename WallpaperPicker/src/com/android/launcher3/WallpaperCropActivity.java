@@ -48,6 +48,7 @@ import com.android.gallery3d.common.Utils;
 import com.android.launcher3.base.BaseActivity;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.util.WallpaperUtils;
+import com.android.photos.BitmapPreviewCache;
 import com.android.photos.BitmapRegionTileSource;
 import com.android.photos.BitmapRegionTileSource.BitmapSource;
 import com.android.photos.BitmapRegionTileSource.BitmapSource.InBitmapProvider;
@@ -86,6 +87,7 @@ public class WallpaperCropActivity extends BaseActivity implements Handler.Callb
     private Handler mLoaderHandler;
     @Thunk LoadRequest mCurrentLoadRequest;
     private byte[] mTempStorageForDecoding = new byte[16 * 1024];
+    private BitmapPreviewCache mPreviewCache;
     // A weak-set of reusable bitmaps
     @Thunk Set<Bitmap> mReusableBitmaps =
             Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
@@ -125,6 +127,7 @@ public class WallpaperCropActivity extends BaseActivity implements Handler.Callb
         mLoaderThread = new HandlerThread("wallpaper_loader");
         mLoaderThread.start();
         mLoaderHandler = new Handler(mLoaderThread.getLooper(), this);
+        mPreviewCache = new BitmapPreviewCache(getCacheDir());
 
         init();
         if (!enableRotation()) {
@@ -220,7 +223,7 @@ public class WallpaperCropActivity extends BaseActivity implements Handler.Callb
                         }
                         return bitmapToReuse;
                     }
-                });
+                }, mPreviewCache);
             } catch (SecurityException securityException) {
                 if (isActivityDestroyed()) {
                     // Temporarily granted permissions are revoked when the activity
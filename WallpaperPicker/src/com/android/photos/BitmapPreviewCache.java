@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+import com.android.photos.BitmapRegionTileSource.BitmapSource.InBitmapProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A size bounded disk cache of the decoded previews of {@link BitmapRegionTileSource.BitmapSource}
+ * along with the image size and rotation, so that reopening a recently viewed image does not need
+ * to read the source at all until a full resolution tile is required.
+ *
+ * Entries are keyed by {@link BitmapRegionTileSource.BitmapSource#getCacheKey()}, which includes
+ * the modification time of the source, and the least recently used entries are evicted first.
+ * The pixels are stored uncompressed and memory-mapped when read back.
+ */
+public class BitmapPreviewCache {
+
+    private static final String TAG = "BitmapPreviewCache";
+
+    private static final String CACHE_DIR = "wallpaper_previews";
+    private static final int MAGIC = 0x57505643; // WPVC
+    private static final int VERSION = 1;
+
+    private static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * A cached preview along with the properties of the full image.
+     */
+    public static class Entry {
+        public int imageWidth;
+        public int imageHeight;
+        public int rotation;
+        public Bitmap preview;
+    }
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    public BitmapPreviewCache(File cacheDir) {
+        this(cacheDir, DEFAULT_MAX_SIZE);
+    }
+
+    public BitmapPreviewCache(File cacheDir, long maxSize) {
+        mDir = new File(cacheDir, CACHE_DIR);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached entry for the key, or null if there is none. The preview is read into a
+     * bitmap from {@param bitmapProvider} when possible.
+     */
+    public synchronized Entry get(String key, InBitmapProvider bitmapProvider) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION || !key.equals(raf.readUTF())) {
+                file.delete();
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.imageWidth = raf.readInt();
+            entry.imageHeight = raf.readInt();
+            entry.rotation = raf.readInt();
+            int width = raf.readInt();
+            int height = raf.readInt();
+
+            Bitmap preview = null;
+            if (bitmapProvider != null) {
+                preview = reuseBitmap(bitmapProvider.forPixelCount(width * height), width, height);
+            }
+            if (preview == null) {
+                preview = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            long pixelBytes = (long) preview.getRowBytes() * height;
+            ByteBuffer pixels = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, raf.getFilePointer(), pixelBytes);
+            preview.copyPixelsFromBuffer(pixels);
+            entry.preview = preview;
+
+            // Keep track of the usage for eviction
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read cached preview", e);
+            file.delete();
+            return null;
+        } finally {
+            Utils.closeSilently(raf);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static Bitmap reuseBitmap(Bitmap bitmap, int width, int height) {
+        if (bitmap == null || !bitmap.isMutable()) {
+            return null;
+        }
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            return bitmap;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            try {
+                bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // Not large enough
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the preview and image properties for the key, evicting old entries if needed.
+     */
+    public synchronized void put(String key, int imageWidth, int imageHeight, int rotation,
+            Bitmap preview) {
+        if (preview.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+
+        File file = getFile(key);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeUTF(key);
+            raf.writeInt(imageWidth);
+            raf.writeInt(imageHeight);
+            raf.writeInt(rotation);
+            raf.writeInt(preview.getWidth());
+            raf.writeInt(preview.getHeight());
+
+            long pixelBytes = (long) preview.getRowBytes() * preview.getHeight();
+            ByteBuffer pixels = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, raf.getFilePointer(), pixelBytes);
+            preview.copyPixelsToBuffer(pixels);
+            raf.close();
+            raf = null;
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to cache preview", e);
+            tmp.delete();
+            return;
+        } finally {
+            Utils.closeSilently(raf);
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= mMaxSize) {
+            return;
+        }
+
+        // Evict the least recently used entries first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > mMaxSize; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDir, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return new File(mDir, Integer.toHexString(key.hashCode()));
+        }
+    }
+}
@@ -17,8 +17,11 @@
 package com.android.photos;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
@@ -28,6 +31,7 @@ import android.graphics.Rect;
 import android.net.Uri;
 import android.opengl.GLUtils;
 import android.os.Build;
+import android.provider.MediaStore;
 import android.util.Log;
 
 import com.android.gallery3d.common.BitmapUtils;
@@ -35,12 +39,15 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.exif.ExifInterface;
 import com.android.gallery3d.glrenderer.BasicTexture;
 import com.android.gallery3d.glrenderer.BitmapTexture;
+import com.android.launcher3.util.Thunk;
 import com.android.photos.views.TiledImageRenderer;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 
 interface SimpleBitmapRegionDecoder {
     int getWidth();
@@ -117,7 +124,7 @@ class DumbBitmapRegionDecoder implements SimpleBitmapRegionDecoder {
     public int getHeight() {
         return mBuffer.getHeight();
     }
-    public Bitmap decodeRegion(Rect wantRegion, BitmapFactory.Options options) {
+    public synchronized Bitmap decodeRegion(Rect wantRegion, BitmapFactory.Options options) {
         if (mTempCanvas == null) {
             mTempCanvas = new Canvas();
             mTempPaint = new Paint();
@@ -152,14 +159,35 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     // due to decodePreview being allowed to be up to 2x the size of the target
     private static final int MAX_PREVIEW_SIZE = GL_SIZE_LIMIT / 2;
 
+    // Size of the decoding buffer for additional decoders, matches the default used by
+    // BitmapFactory.
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
     public static abstract class BitmapSource {
         private SimpleBitmapRegionDecoder mDecoder;
         private Bitmap mPreview;
         private int mRotation;
+        private int mImageWidth;
+        private int mImageHeight;
         public enum State { NOT_LOADED, LOADED, ERROR_LOADING };
         private State mState = State.NOT_LOADED;
 
         public boolean loadInBackground(InBitmapProvider bitmapProvider) {
+            return loadInBackground(bitmapProvider, null);
+        }
+
+        /**
+         * Loads the preview and the properties of the image. If {@param cache} has an entry for
+         * this source, the source is not read at all and the region decoder is only created
+         * once the first tile is requested.
+         */
+        public boolean loadInBackground(InBitmapProvider bitmapProvider,
+                BitmapPreviewCache cache) {
+            String cacheKey = cache != null ? getCacheKey() : null;
+            if (cacheKey != null && loadFromCache(bitmapProvider, cache, cacheKey)) {
+                return true;
+            }
+
             ExifInterface ei = new ExifInterface();
             if (readExif(ei)) {
                 Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
@@ -174,6 +202,8 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             } else {
                 int width = mDecoder.getWidth();
                 int height = mDecoder.getHeight();
+                mImageWidth = width;
+                mImageHeight = height;
 
                 BitmapFactory.Options opts = new BitmapFactory.Options();
                 opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
@@ -212,18 +242,49 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
                     Log.d(TAG, "Image cannot be rendered on a GL surface", e);
                     mState = State.ERROR_LOADING;
                 }
+                if (mState == State.LOADED && cacheKey != null) {
+                    cache.put(cacheKey, mImageWidth, mImageHeight, mRotation, mPreview);
+                }
                 return true;
             }
         }
 
+        private boolean loadFromCache(InBitmapProvider bitmapProvider, BitmapPreviewCache cache,
+                String cacheKey) {
+            BitmapPreviewCache.Entry entry = cache.get(cacheKey, bitmapProvider);
+            if (entry == null) {
+                return false;
+            }
+            mImageWidth = entry.imageWidth;
+            mImageHeight = entry.imageHeight;
+            mRotation = entry.rotation;
+            mPreview = entry.preview;
+            mState = State.LOADED;
+            return true;
+        }
+
         public State getLoadingState() {
             return mState;
         }
 
-        public SimpleBitmapRegionDecoder getBitmapRegionDecoder() {
+        /**
+         * Returns the region decoder, creating it if the image was loaded from the cache.
+         */
+        public synchronized SimpleBitmapRegionDecoder getBitmapRegionDecoder() {
+            if (mDecoder == null && mState == State.LOADED) {
+                mDecoder = loadBitmapRegionDecoder();
+            }
             return mDecoder;
         }
 
+        public int getImageWidth() {
+            return mImageWidth;
+        }
+
+        public int getImageHeight() {
+            return mImageHeight;
+        }
+
         public Bitmap getPreviewBitmap() {
             return mPreview;
         }
@@ -232,6 +293,14 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return mRotation;
         }
 
+        /**
+         * Returns a key identifying the current content of this source, including its
+         * modification time, or null if the source should not be cached.
+         */
+        public String getCacheKey() {
+            return null;
+        }
+
         public abstract boolean readExif(ExifInterface ei);
         public abstract SimpleBitmapRegionDecoder loadBitmapRegionDecoder();
         public abstract Bitmap loadPreviewBitmap(BitmapFactory.Options options);
@@ -247,6 +316,10 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             mPath = path;
         }
         @Override
+        public String getCacheKey() {
+            return getFileCacheKey(new File(mPath));
+        }
+        @Override
         public SimpleBitmapRegionDecoder loadBitmapRegionDecoder() {
             SimpleBitmapRegionDecoder d;
             d = SimpleBitmapRegionDecoderWrapper.newInstance(mPath, true);
@@ -286,6 +359,25 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return new BufferedInputStream(is);
         }
         @Override
+        public String getCacheKey() {
+            if (ContentResolver.SCHEME_FILE.equals(mUri.getScheme())) {
+                return getFileCacheKey(new File(mUri.getPath()));
+            }
+            Cursor c = null;
+            try {
+                c = mContext.getContentResolver().query(mUri,
+                        new String[] { MediaStore.MediaColumns.DATE_MODIFIED }, null, null, null);
+                if (c != null && c.moveToFirst() && !c.isNull(0)) {
+                    return mUri + ":" + c.getLong(0);
+                }
+            } catch (RuntimeException e) {
+                // The provider does not know about modification times, don't cache.
+            } finally {
+                Utils.closeSilently(c);
+            }
+            return null;
+        }
+        @Override
         public SimpleBitmapRegionDecoder loadBitmapRegionDecoder() {
             try {
                 InputStream is = regenerateInputStream();
@@ -350,6 +442,28 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return new BufferedInputStream(is);
         }
         @Override
+        public String getCacheKey() {
+            // The location of the resource within the apk changes whenever the apk is updated.
+            AssetFileDescriptor fd = null;
+            try {
+                fd = mRes.openRawResourceFd(mResId);
+                if (fd == null) {
+                    return null;
+                }
+                return mRes.getResourceName(mResId) + ":" + fd.getStartOffset() + ":"
+                        + fd.getLength();
+            } catch (Resources.NotFoundException e) {
+                // Compressed resource
+                return null;
+            } finally {
+                if (fd != null) {
+                    try {
+                        fd.close();
+                    } catch (IOException e) { }
+                }
+            }
+        }
+        @Override
         public SimpleBitmapRegionDecoder loadBitmapRegionDecoder() {
             InputStream is = regenerateInputStream();
             SimpleBitmapRegionDecoder regionDecoder =
@@ -380,28 +494,50 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         }
     }
 
-    SimpleBitmapRegionDecoder mDecoder;
+    /**
+     * A region decoder along with the state used by {@link #getTile}. A single
+     * {@link BitmapRegionDecoder} serializes all decode calls, so tiles are decoded in parallel
+     * by using one decoder per decoding thread.
+     */
+    private static class RegionDecoder {
+        final SimpleBitmapRegionDecoder decoder;
+        final Rect wantRegion = new Rect();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+
+        RegionDecoder(SimpleBitmapRegionDecoder decoder, byte[] tempStorage) {
+            this.decoder = decoder;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inPreferQualityOverSpeed = true;
+            options.inTempStorage = tempStorage;
+        }
+    }
+
     int mWidth;
     int mHeight;
     int mTileSize;
     private BasicTexture mPreview;
     private final int mRotation;
+    private final BitmapSource mSource;
+    private final byte[] mTempStorage;
 
-    // For use only by getTile
-    private Rect mWantRegion = new Rect();
-    private BitmapFactory.Options mOptions;
+    // Decoders which are not currently used by getTile, guarded by itself
+    private final ArrayDeque<RegionDecoder> mIdleDecoders = new ArrayDeque<RegionDecoder>();
+    private int mDecoderCount;
+    private int mMaxDecoderCount;
+    // Whether the decoder of the source, which uses mTempStorage, was handed out
+    private boolean mSourceDecoderTaken;
 
     public BitmapRegionTileSource(Context context, BitmapSource source, byte[] tempStorage) {
         mTileSize = TiledImageRenderer.suggestedTileSize(context);
         mRotation = source.getRotation();
-        mDecoder = source.getBitmapRegionDecoder();
-        if (mDecoder != null) {
-            mWidth = mDecoder.getWidth();
-            mHeight = mDecoder.getHeight();
-            mOptions = new BitmapFactory.Options();
-            mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            mOptions.inPreferQualityOverSpeed = true;
-            mOptions.inTempStorage = tempStorage;
+        mSource = source;
+        mTempStorage = tempStorage;
+        if (source.getLoadingState() == BitmapSource.State.LOADED) {
+            mWidth = source.getImageWidth();
+            mHeight = source.getImageHeight();
+            // The region decoder is created with the first tile, as it is not needed when the
+            // preview comes from the cache.
+            mMaxDecoderCount = TiledImageRenderer.suggestedDecoderCount();
 
             Bitmap preview = source.getPreviewBitmap();
             if (preview != null &&
@@ -417,6 +553,13 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         }
     }
 
+    @Thunk static String getFileCacheKey(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+    }
+
     public Bitmap getBitmap() {
         return mPreview instanceof BitmapTexture ? ((BitmapTexture) mPreview).getBitmap() : null;
     }
@@ -448,22 +591,32 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 
     @Override
     public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+        RegionDecoder regionDecoder = acquireDecoder();
+        try {
+            return getTile(regionDecoder, level, x, y, bitmap);
+        } finally {
+            releaseDecoder(regionDecoder);
+        }
+    }
+
+    private Bitmap getTile(RegionDecoder regionDecoder, int level, int x, int y, Bitmap bitmap) {
         int tileSize = getTileSize();
         int t = tileSize << level;
-        mWantRegion.set(x, y, x + t, y + t);
+        regionDecoder.wantRegion.set(x, y, x + t, y + t);
 
         if (bitmap == null) {
             bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
         }
 
-        mOptions.inSampleSize = (1 << level);
-        mOptions.inBitmap = bitmap;
+        BitmapFactory.Options options = regionDecoder.options;
+        options.inSampleSize = (1 << level);
+        options.inBitmap = bitmap;
 
         try {
-            bitmap = mDecoder.decodeRegion(mWantRegion, mOptions);
+            bitmap = regionDecoder.decoder.decodeRegion(regionDecoder.wantRegion, options);
         } finally {
-            if (mOptions.inBitmap != bitmap && mOptions.inBitmap != null) {
-                mOptions.inBitmap = null;
+            if (options.inBitmap != bitmap && options.inBitmap != null) {
+                options.inBitmap = null;
             }
         }
 
@@ -472,4 +625,59 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         }
         return bitmap;
     }
+
+    /**
+     * Returns an idle decoder, creating a new one if all are busy and the limit has not been
+     * reached yet. Otherwise waits for a decoder to be released.
+     */
+    private RegionDecoder acquireDecoder() {
+        boolean first = false;
+        synchronized (mIdleDecoders) {
+            if (mMaxDecoderCount == 0) {
+                throw new IllegalStateException("Image could not be loaded");
+            }
+            while (mIdleDecoders.isEmpty()) {
+                if (mDecoderCount < mMaxDecoderCount) {
+                    mDecoderCount++;
+                    first = !mSourceDecoderTaken;
+                    mSourceDecoderTaken = true;
+                    break;
+                }
+                try {
+                    mIdleDecoders.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a decoder", e);
+                }
+            }
+            if (!mIdleDecoders.isEmpty()) {
+                return mIdleDecoders.poll();
+            }
+        }
+
+        SimpleBitmapRegionDecoder decoder = first
+                ? mSource.getBitmapRegionDecoder() : mSource.loadBitmapRegionDecoder();
+        synchronized (mIdleDecoders) {
+            if (decoder == null) {
+                // Stick to the decoders we already have.
+                mDecoderCount--;
+                mMaxDecoderCount = mDecoderCount;
+                mIdleDecoders.notifyAll();
+            } else if (!(decoder instanceof SimpleBitmapRegionDecoderWrapper)) {
+                // The fallback decoder keeps the full bitmap in memory, never create more.
+                mMaxDecoderCount = mDecoderCount;
+            }
+        }
+        if (decoder == null) {
+            return acquireDecoder();
+        }
+        return new RegionDecoder(decoder, first ? mTempStorage : new byte[TEMP_STORAGE_SIZE]);
+    }
+
+    private void releaseDecoder(RegionDecoder decoder) {
+        synchronized (mIdleDecoders) {
+            mIdleDecoders.add(decoder);
+            mIdleDecoders.notify();
+        }
+    }
 }
@@ -41,7 +41,15 @@ public class TiledImageRenderer {
     public static final int SIZE_UNKNOWN = -1;
 
     private static final String TAG = "TiledImageRenderer";
-    private static final int UPLOAD_LIMIT = 1;
+
+    // Bounds of the number of tiles uploaded per frame. The actual limit is adjusted based on
+    // how long the uploads of the previous frame took.
+    private static final int MIN_UPLOAD_LIMIT = 1;
+    private static final int MAX_UPLOAD_LIMIT = 4;
+    // Time we are willing to spend on texture uploads in a single frame
+    private static final long UPLOAD_BUDGET_NANOS = 4 * 1000 * 1000;
+
+    private static final int MAX_DECODER_COUNT = 3;
 
     /*
      *  This is the tile state in the CPU side.
@@ -89,6 +97,7 @@ public class TiledImageRenderer {
     private int mOffsetY;
 
     private int mUploadQuota;
+    private int mUploadLimit = MIN_UPLOAD_LIMIT;
     private boolean mRenderComplete;
 
     private final RectF mSourceRect = new RectF();
@@ -108,6 +117,9 @@ public class TiledImageRenderer {
 
     protected int mCenterX;
     protected int mCenterY;
+    // The center at the time of the last tile layout, used to find the pan direction
+    private int mLastLayoutCenterX;
+    private int mLastLayoutCenterY;
     protected float mScale;
     protected int mRotation;
 
@@ -117,7 +129,7 @@ public class TiledImageRenderer {
     private final Rect mTileRange = new Rect();
     private final Rect mActiveRange[] = {new Rect(), new Rect()};
 
-    private TileDecoder mTileDecoder;
+    private final TileDecoder[] mTileDecoders;
     private boolean mBackgroundTileUploaded;
 
     private int mViewWidth, mViewHeight;
@@ -154,7 +166,8 @@ public class TiledImageRenderer {
          * the original image (down-scaled by a factor of 2^level), but (x, y)
          * still refers to the coordinate on the original image.
          *
-         * The method would be called by the decoder thread.
+         * The method would be called by the decoder threads, possibly
+         * concurrently, so implementations must be thread safe.
          */
         public Bitmap getTile(int level, int x, int y, Bitmap reuse);
     }
@@ -171,10 +184,26 @@ public class TiledImageRenderer {
         return metrics.heightPixels > 2048 ||  metrics.widthPixels > 2048;
     }
 
+    /**
+     * Returns the number of threads that should be used to decode tiles. One core is left for
+     * the UI and GL threads.
+     */
+    public static int suggestedDecoderCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Utils.clamp(cores - 1, 1, MAX_DECODER_COUNT);
+    }
+
     public TiledImageRenderer(View parent) {
+        this(parent, suggestedDecoderCount());
+    }
+
+    public TiledImageRenderer(View parent, int decoderCount) {
         mParent = parent;
-        mTileDecoder = new TileDecoder();
-        mTileDecoder.start();
+        mTileDecoders = new TileDecoder[Math.max(1, decoderCount)];
+        for (int i = 0; i < mTileDecoders.length; i++) {
+            mTileDecoders[i] = new TileDecoder();
+            mTileDecoders[i].start();
+        }
     }
 
     public int getViewWidth() {
@@ -293,6 +322,11 @@ public class TiledImageRenderer {
         for (int i = fromLevel; i < endLevel; ++i) {
             getRange(range[i - fromLevel], mCenterX, mCenterY, i, mRotation);
         }
+        if (mLevel >= fromLevel && mLevel < endLevel) {
+            extendRangeInPanDirection(range[mLevel - fromLevel], mLevel);
+        }
+        mLastLayoutCenterX = mCenterX;
+        mLastLayoutCenterY = mCenterY;
 
         // If rotation is transient, don't update the tile.
         if (mRotation % 90 != 0) {
@@ -332,6 +366,24 @@ public class TiledImageRenderer {
         invalidate();
     }
 
+    // Adds a ring of tiles just outside the visible range in the direction the image is being
+    // panned, so that they are decoded in the background before they become visible.
+    private void extendRangeInPanDirection(Rect range, int level) {
+        int size = mTileSize << level;
+        int dx = mCenterX - mLastLayoutCenterX;
+        int dy = mCenterY - mLastLayoutCenterY;
+        if (dx < 0) {
+            range.left = Math.max(0, range.left - size);
+        } else if (dx > 0) {
+            range.right = Math.min(mImageWidth, range.right + size);
+        }
+        if (dy < 0) {
+            range.top = Math.max(0, range.top - size);
+        } else if (dy > 0) {
+            range.bottom = Math.min(mImageHeight, range.bottom + size);
+        }
+    }
+
     private void invalidateTiles() {
         synchronized (mQueueLock) {
             mDecodeQueue.clean();
@@ -389,7 +441,9 @@ public class TiledImageRenderer {
     public void freeTextures() {
         mLayoutTiles = true;
 
-        mTileDecoder.finishAndWait();
+        for (TileDecoder decoder : mTileDecoders) {
+            decoder.finishAndWait();
+        }
         synchronized (mQueueLock) {
             mUploadQueue.clean();
             mDecodeQueue.clean();
@@ -415,7 +469,7 @@ public class TiledImageRenderer {
         layoutTiles();
         uploadTiles(canvas);
 
-        mUploadQuota = UPLOAD_LIMIT;
+        mUploadQuota = mUploadLimit;
         mRenderComplete = true;
 
         int level = mLevel;
@@ -569,7 +623,9 @@ public class TiledImageRenderer {
     }
 
     private void uploadTiles(GLCanvas canvas) {
-        int quota = UPLOAD_LIMIT;
+        int quota = mUploadLimit;
+        int uploaded = 0;
+        long startTime = System.nanoTime();
         Tile tile = null;
         while (quota > 0) {
             synchronized (mQueueLock) {
@@ -582,11 +638,18 @@ public class TiledImageRenderer {
                 if (tile.mTileState == STATE_DECODED) {
                     tile.updateContent(canvas);
                     --quota;
+                    ++uploaded;
                 } else {
                     Log.w(TAG, "Tile in upload queue has invalid state: " + tile.mTileState);
                 }
             }
         }
+        if (uploaded > 0) {
+            // Upload as many tiles as fit in the budget, based on the cost of this frame.
+            long timePerTile = Math.max(1, (System.nanoTime() - startTime) / uploaded);
+            mUploadLimit = (int) Math.max(MIN_UPLOAD_LIMIT,
+                    Math.min(MAX_UPLOAD_LIMIT, UPLOAD_BUDGET_NANOS / timePerTile));
+        }
         if (tile != null) {
             invalidate();
         }
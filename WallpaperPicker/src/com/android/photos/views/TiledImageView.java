@@ -284,7 +284,7 @@ public class TiledImageView extends FrameLayout {
         }
 
         @Override
-        public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+        public synchronized Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
             int tileSize = getTileSize();
             if (bitmap == null) {
                 bitmap = Bitmap.createBitmap(tileSize, tileSize,
@@ -27,7 +27,6 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.database.sqlite.SQLiteDatabase;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
@@ -423,16 +422,19 @@ public class AutoInstallsLayout {
                 return -1;
             }
 
-            Drawable icon = mIconRes.getDrawable(iconId);
-            if (icon == null) {
+            // Only the resource is stored, the icon is rendered from it when the item is loaded.
+            final String iconPackage, iconResource;
+            try {
+                iconPackage = mIconRes.getResourcePackageName(iconId);
+                iconResource = mIconRes.getResourceName(iconId);
+            } catch (Resources.NotFoundException e) {
                 if (LOGD) Log.d(TAG, "Ignoring shortcut, can't load icon");
                 return -1;
             }
 
-            ItemInfo.writeBitmap(mValues, Utilities.createIconBitmap(icon, mContext));
             mValues.put(Favorites.ICON_TYPE, Favorites.ICON_TYPE_RESOURCE);
-            mValues.put(Favorites.ICON_PACKAGE, mIconRes.getResourcePackageName(iconId));
-            mValues.put(Favorites.ICON_RESOURCE, mIconRes.getResourceName(iconId));
+            mValues.put(Favorites.ICON_PACKAGE, iconPackage);
+            mValues.put(Favorites.ICON_RESOURCE, iconResource);
 
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
                         Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
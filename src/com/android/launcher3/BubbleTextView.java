@@ -484,6 +484,11 @@ public class BubbleTextView extends TextView
                     preloadDrawable = (PreloadIconDrawable) mIcon;
                 } else {
                     preloadDrawable = new PreloadIconDrawable(mIcon, getPreloaderTheme());
+                    if (mIcon instanceof FastBitmapDrawable) {
+                        preloadDrawable.setIconDominantColor(LauncherAppState.getInstance()
+                                .getIconCache().getDominantColor(info.getTargetComponent(),
+                                        info.user, ((FastBitmapDrawable) mIcon).getBitmap()));
+                    }
                     setIcon(preloadDrawable, mIconSize);
                 }
 
@@ -553,7 +558,7 @@ public class BubbleTextView extends TextView
                     View folderIcon =
                             mLauncher.getWorkspace().getHomescreenIconByItemId(info.container);
                     if (folderIcon != null) {
-                        folderIcon.invalidate();
+                        ((FolderIcon) folderIcon).invalidatePreview();
                     }
                 }
             } else if (info instanceof PackageItemInfo) {
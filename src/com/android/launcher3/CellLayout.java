@@ -344,12 +344,21 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         return handled;
     }
 
-    public void enableHardwareLayer(boolean hasLayer) {
-        mShortcutsAndWidgets.setLayerType(hasLayer ? LAYER_TYPE_HARDWARE : LAYER_TYPE_NONE, sPaint);
+    /**
+     * Gives the children a hardware layer with the given priority, if it fits in the budget of
+     * {@link HardwareLayerBudget}, or removes it.
+     */
+    public void enableHardwareLayer(boolean hasLayer, int priority) {
+        HardwareLayerBudget budget = mLauncher.getHardwareLayerBudget();
+        if (hasLayer) {
+            budget.acquire(mShortcutsAndWidgets, priority, sPaint);
+        } else {
+            budget.release(mShortcutsAndWidgets);
+        }
     }
 
     public void buildHardwareLayer() {
-        mShortcutsAndWidgets.buildLayer();
+        mLauncher.getHardwareLayerBudget().prewarm(mShortcutsAndWidgets);
     }
 
     public float getChildrenScale() {
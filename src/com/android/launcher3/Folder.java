@@ -150,7 +150,7 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     @Thunk View mContentWrapper;
     ExtendedEditText mFolderName;
 
-    private View mFooter;
+    @Thunk View mFooter;
 
     // Cell ranks used for drag and drop
     @Thunk int mTargetRank, mPrevTargetRank, mEmptyCellRank;
@@ -493,6 +493,9 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
 
         setFolderName();
         updateLock();
+        if (mFolderIcon != null) {
+            mFolderIcon.invalidatePreview();
+        }
     }
 
     public void rebind(final FolderInfo info) {
@@ -598,6 +601,7 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
             mContent.snapToPageImmediately(0);
         }
 
+        final HardwareLayerBudget layerBudget = mLauncher.getHardwareLayerBudget();
         Animator openFolderAnim = null;
         final Runnable onCompleteRunnable;
         if (!Utilities.ATLEAST_LOLLIPOP) {
@@ -612,11 +616,11 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
             oa.setDuration(mExpandDuration);
             openFolderAnim = oa;
 
-            setLayerType(LAYER_TYPE_HARDWARE, null);
+            layerBudget.acquire(this, HardwareLayerBudget.PRIORITY_TRANSITION);
             onCompleteRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    setLayerType(LAYER_TYPE_NONE, null);
+                    layerBudget.release(Folder.this);
                 }
             };
         } else {
@@ -694,12 +698,13 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
 
             openFolderAnim = anim;
 
-            mContentWrapper.setLayerType(LAYER_TYPE_HARDWARE, null);
-            mFooter.setLayerType(LAYER_TYPE_HARDWARE, null);
+            layerBudget.acquire(mContentWrapper, HardwareLayerBudget.PRIORITY_TRANSITION);
+            layerBudget.acquire(mFooter, HardwareLayerBudget.PRIORITY_TRANSITION);
             onCompleteRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    mContentWrapper.setLayerType(LAYER_TYPE_NONE, null);
+                    layerBudget.release(mContentWrapper);
+                    layerBudget.release(mFooter);
                 }
             };
         }
@@ -815,7 +820,7 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         PropertyValuesHolder translationY = PropertyValuesHolder.ofFloat("translationY", 0f,
                 transY);
 
-        setLayerType(LAYER_TYPE_HARDWARE, null);
+        mLauncher.getHardwareLayerBudget().acquire(this, HardwareLayerBudget.PRIORITY_TRANSITION);
 
         float animatorDurationScale = Settings.Global.getFloat(getContext().getContentResolver(),
                 Settings.Global.ANIMATOR_DURATION_SCALE, 1);
@@ -900,7 +905,7 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
             @Override
             public void onAnimationEnd(Animator animation) {
                 onCloseComplete();
-                setLayerType(LAYER_TYPE_NONE, null);
+                mLauncher.getHardwareLayerBudget().release(Folder.this);
                 mState = STATE_SMALL;
             }
         });
@@ -1330,6 +1335,9 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         ArrayList<View> views = getItemsInReadingOrder();
         mContent.arrangeChildren(views, Math.max(itemCount, views.size()));
         mItemsInvalidated = true;
+        if (mFolderIcon != null) {
+            mFolderIcon.invalidatePreview();
+        }
     }
 
     // TODO remove this once GSA code fix is submitted
@@ -1610,6 +1618,9 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
             ((BubbleTextView) v).reapplyItemInfo(info);
 
             mItemsInvalidated = true;
+            if (mFolderIcon != null) {
+                mFolderIcon.invalidatePreview();
+            }
             return true;
         }
 
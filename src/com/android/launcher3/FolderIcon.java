@@ -93,6 +93,12 @@ public class FolderIcon extends FrameLayout implements FolderListener {
 
     @Thunk View mPreviewBackground;
     @Thunk BubbleTextView mFolderName;
+    private View mFolderLock;
+    private final ImageView[] mPreviewItems = new ImageView[NUM_ITEMS_IN_PREVIEW];
+
+    // Set whenever the folder contents change; the preview icons are only rebuilt when dirty
+    // instead of on every frame.
+    private boolean mPreviewDirty = true;
 
     FolderRingAnimator mFolderRingAnimator = null;
 
@@ -204,27 +210,29 @@ public class FolderIcon extends FrameLayout implements FolderListener {
         int padding = grid.iconSizePx / 8;
         int smallIconSize = (int) (padding * 2.75);
 
-        for (int i = NUM_ITEMS_IN_PREVIEW; i >= 0; i--) {
-            ImageView appIcon = null;
+        icon.mFolderLock = icon.findViewById(R.id.folder_lock_image);
+        icon.mPreviewItems[0] = (ImageView) icon.findViewById(R.id.app_0);
+        icon.mPreviewItems[1] = (ImageView) icon.findViewById(R.id.app_1);
+        icon.mPreviewItems[2] = (ImageView) icon.findViewById(R.id.app_2);
+        icon.mPreviewItems[3] = (ImageView) icon.findViewById(R.id.app_3);
+
+        for (int i = NUM_ITEMS_IN_PREVIEW - 1; i >= 0; i--) {
+            ImageView appIcon = icon.mPreviewItems[i];
             int marginLeft = 0, marginRight = 0, marginTop = 0, marginBottom = 0;
             switch(i) {
                 case 0:
-                    appIcon = (ImageView) icon.findViewById(R.id.app_0);
                     marginLeft = padding;
                     marginTop = padding;
                     break;
                 case 1:
-                    appIcon = (ImageView) icon.findViewById(R.id.app_1);
                     marginTop = padding;
                     marginRight = padding;
                     break;
                 case 2:
-                    appIcon = (ImageView) icon.findViewById(R.id.app_2);
                     marginBottom = padding;
                     marginLeft = padding;
                     break;
                 case 3:
-                    appIcon = (ImageView) icon.findViewById(R.id.app_3);
                     marginBottom = padding;
                     marginRight = padding;
                     break;
@@ -554,12 +562,13 @@ public class FolderIcon extends FrameLayout implements FolderListener {
                     postAnimationRunnable, DragLayer.ANIMATION_END_DISAPPEAR, null);
             addItem(item);
             mHiddenItems.add(item);
+            invalidatePreview();
             mFolder.hideItem(item);
             postDelayed(new Runnable() {
                 public void run() {
                     mHiddenItems.remove(item);
                     mFolder.showItem(item);
-                    invalidate();
+                    invalidatePreview();
                 }
             }, DROP_IN_ANIMATION_DURATION);
         } else {
@@ -699,83 +708,76 @@ public class FolderIcon extends FrameLayout implements FolderListener {
         canvas.restore();
     }
 
+    /**
+     * Marks the preview as stale so that it is rebuilt on the next draw. Must be called whenever
+     * the contents, order or icons of the folder change.
+     */
+    public void invalidatePreview() {
+        mPreviewDirty = true;
+        invalidate();
+    }
+
     @Override
     protected void dispatchDraw(Canvas canvas) {
+        if (mPreviewDirty && !mAnimating) {
+            updatePreviewItems();
+        }
         super.dispatchDraw(canvas);
 
-        if (mFolder == null) return;
-        if (mFolder.getItemCount() == 0 && !mAnimating && !mInfo.isRemote()) return;
-
-        ArrayList<View> items = mFolder.getItemsInReadingOrder();
-        Drawable d;
-        TextView v;
-
-        // Update our drawing parameters if necessary
         if (mAnimating) {
             computePreviewDrawingParams(mAnimParams.drawable);
-        } else if (!items.isEmpty()) {
-            v = (TextView) items.get(0);
-            d = getTopDrawable(v);
-            if (d != null) computePreviewDrawingParams(d);
+            drawPreviewItem(canvas, mAnimParams);
         }
+    }
 
-        int ntemsInPreview = Math.min(items.size(), NUM_ITEMS_IN_PREVIEW);
+    /**
+     * Binds the first {@link #NUM_ITEMS_IN_PREVIEW} items of the folder to the preview views.
+     * The views keep their drawables until the next content change, so a regular frame only
+     * has to draw the (cached) children.
+     */
+    private void updatePreviewItems() {
+        if (mFolder == null) return;
+        mPreviewDirty = false;
 
         // Hidden folder - don't display Preview
-        View folderLock = findViewById(R.id.folder_lock_image);
-        folderLock.setVisibility(mInfo.hidden ? VISIBLE : INVISIBLE);
-        View appView = findViewById(R.id.app_0);
-        appView.setVisibility(mInfo.hidden ? INVISIBLE : VISIBLE);
-        appView = findViewById(R.id.app_1);
-        appView.setVisibility(mInfo.hidden ? INVISIBLE : VISIBLE);
-        appView = findViewById(R.id.app_2);
-        appView.setVisibility(mInfo.hidden ? INVISIBLE : VISIBLE);
-        appView = findViewById(R.id.app_3);
-        appView.setVisibility(mInfo.hidden ? INVISIBLE : VISIBLE);
-
+        mFolderLock.setVisibility(mInfo.hidden ? VISIBLE : INVISIBLE);
+        for (int i = 0; i < NUM_ITEMS_IN_PREVIEW; i++) {
+            mPreviewItems[i].setVisibility(mInfo.hidden ? INVISIBLE : VISIBLE);
+        }
         if (mInfo.hidden) {
             return;
         }
 
-        if (!mAnimating) {
+        ArrayList<View> items = mFolder.getItemsInReadingOrder();
+        if (items.isEmpty() && !mInfo.isRemote()) {
             for (int i = 0; i < NUM_ITEMS_IN_PREVIEW; i++) {
-                d = null;
-                if (mInfo.isRemote()) {
-                    d = mLauncher.getRemoteFolderManager().getFolderIconDrawable(items, i);
-                } else if (i < items.size()) {
-                    v = (TextView) items.get(i);
-                    if (!mHiddenItems.contains(v.getTag())) {
-                        d = getTopDrawable(v);
-                    }
-                }
+                mPreviewItems[i].setImageDrawable(null);
+            }
+            return;
+        }
 
-                if (d != null) {
-                    mParams = computePreviewItemDrawingParams(i, mParams);
-                    mParams.drawable = d;
-                }
+        // Update our drawing parameters if necessary
+        Drawable d;
+        if (!items.isEmpty()) {
+            d = getTopDrawable((TextView) items.get(0));
+            if (d != null) computePreviewDrawingParams(d);
+        }
 
-                ImageView appIcon = null;
-                switch(i) {
-                    case 0:
-                        appIcon = (ImageView) findViewById(R.id.app_0);
-                        break;
-                    case 1:
-                        appIcon = (ImageView) findViewById(R.id.app_1);
-                        break;
-                    case 2:
-                        appIcon = (ImageView) findViewById(R.id.app_2);
-                        break;
-                    case 3:
-                        appIcon = (ImageView) findViewById(R.id.app_3);
-                        break;
+        for (int i = 0; i < NUM_ITEMS_IN_PREVIEW; i++) {
+            d = null;
+            if (mInfo.isRemote()) {
+                d = mLauncher.getRemoteFolderManager().getFolderIconDrawable(items, i);
+            } else if (i < items.size()) {
+                TextView v = (TextView) items.get(i);
+                if (!mHiddenItems.contains(v.getTag())) {
+                    d = getTopDrawable(v);
                 }
+            }
 
-                if (appIcon != null) {
-                    appIcon.setImageDrawable(d);
-                }
+            // Avoid re-binding the same drawable, which would trigger another invalidate
+            if (mPreviewItems[i].getDrawable() != d) {
+                mPreviewItems[i].setImageDrawable(d);
             }
-        } else {
-            drawPreviewItem(canvas, mAnimParams);
         }
     }
 
@@ -816,6 +818,7 @@ public class FolderIcon extends FrameLayout implements FolderListener {
             @Override
             public void onAnimationEnd(Animator animation) {
                 mAnimating = false;
+                invalidatePreview();
                 if (onCompleteRunnable != null) {
                     mLauncher.runOnUiThread(onCompleteRunnable);
                 }
@@ -838,33 +841,34 @@ public class FolderIcon extends FrameLayout implements FolderListener {
     }
 
     public void onItemsChanged() {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     public void onAdd(ShortcutInfo item) {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     public void onRemove(ShortcutInfo item) {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     @Override
     public void onRemoveAll() {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     @Override
     public void onRemoveAll(ArrayList<ShortcutInfo> items) {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     public void onTitleChanged(CharSequence title) {
+        invalidatePreview();
         mFolderName.setText(title);
         setContentDescription(String.format(getContext().getString(R.string.folder_name_format),
                 title));
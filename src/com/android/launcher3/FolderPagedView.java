@@ -36,7 +36,7 @@ import com.android.launcher3.util.Thunk;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.Map;
 
 public class FolderPagedView extends PagedView {
@@ -120,9 +120,12 @@ public class FolderPagedView extends PagedView {
         Point point = Utilities.caluclateFolderContentDimensions(count, mMaxCountX, mMaxCountY);
         mGridCountX = point.x;
         mGridCountY = point.y;
-        // Update grid size
+        // Update grid size. Resetting the grid clears the occupancy, so only do it when needed.
         for (int i = getPageCount() - 1; i >= 0; i--) {
-            getPageAt(i).setGridSize(mGridCountX, mGridCountY);
+            CellLayout page = getPageAt(i);
+            if (page.getCountX() != mGridCountX || page.getCountY() != mGridCountY) {
+                page.setGridSize(mGridCountX, mGridCountY);
+            }
         }
     }
 
@@ -297,8 +300,8 @@ public class FolderPagedView extends PagedView {
 
     /**
      * Updates position and rank of all the children in the view.
-     * It essentially removes all views from all the pages and then adds them again in appropriate
-     * page.
+     * Only the views whose page or cell changed are removed and added again, and the changed
+     * positions are persisted in a single batch.
      *
      * @param list the ordered list of children.
      * @param itemCount if greater than the total children count, empty spaces are left
@@ -311,30 +314,34 @@ public class FolderPagedView extends PagedView {
 
     @SuppressLint("RtlHardcoded")
     private void arrangeChildren(ArrayList<View> list, int itemCount, boolean saveChanges) {
-        ArrayList<CellLayout> pages = new ArrayList<CellLayout>();
-        for (int i = 0; i < getChildCount(); i++) {
-            CellLayout page = (CellLayout) getChildAt(i);
-            page.removeAllViews();
-            pages.add(page);
+        Point gridSize = Utilities.caluclateFolderContentDimensions(
+                itemCount, mMaxCountX, mMaxCountY);
+        if (gridSize.x != mGridCountX || gridSize.y != mGridCountY) {
+            // Every cell moves when the grid changes, start from empty pages.
+            removeAllItems();
+        } else {
+            removeMisplacedViews(list, itemCount);
         }
         setupContentDimensions(itemCount);
 
-        Iterator<CellLayout> pageItr = pages.iterator();
+        int pageCount = 0;
         CellLayout currentPage = null;
 
         int position = 0;
         int newX, newY, rank;
 
+        ArrayList<ItemInfo> movedItems = new ArrayList<ItemInfo>();
         rank = 0;
         for (int i = 0; i < itemCount; i++) {
             View v = list.size() > i ? list.get(i) : null;
             if (currentPage == null || position >= mMaxItemsPerPage) {
                 // Next page
-                if (pageItr.hasNext()) {
-                    currentPage = pageItr.next();
+                if (pageCount < getChildCount()) {
+                    currentPage = getPageAt(pageCount);
                 } else {
                     currentPage = createAndAddNewPage();
                 }
+                pageCount++;
                 position = 0;
             }
 
@@ -348,14 +355,20 @@ public class FolderPagedView extends PagedView {
                     info.cellY = newY;
                     info.rank = rank;
                     if (saveChanges) {
-                        LauncherModel.addOrMoveItemInDatabase(getContext(), info,
-                                mFolder.mInfo.id, 0, info.cellX, info.cellY);
+                        if (info.container == ItemInfo.NO_ID) {
+                            LauncherModel.addOrMoveItemInDatabase(getContext(), info,
+                                    mFolder.mInfo.id, 0, info.cellX, info.cellY);
+                        } else {
+                            movedItems.add(info);
+                        }
                     }
                 }
-                lp.cellX = info.cellX;
-                lp.cellY = info.cellY;
-                currentPage.addViewToCellLayout(
-                        v, -1, mFolder.mLauncher.getViewIdForItem(info), lp, true);
+                if (v.getParent() == null) {
+                    lp.cellX = info.cellX;
+                    lp.cellY = info.cellY;
+                    currentPage.addViewToCellLayout(
+                            v, -1, mFolder.mLauncher.getViewIdForItem(info), lp, true);
+                }
 
                 if (rank < FolderIcon.NUM_ITEMS_IN_PREVIEW && v instanceof BubbleTextView) {
                     ((BubbleTextView) v).verifyHighRes();
@@ -366,10 +379,14 @@ public class FolderPagedView extends PagedView {
             position++;
         }
 
+        if (!movedItems.isEmpty()) {
+            LauncherModel.moveItemsInDatabase(getContext(), movedItems, mFolder.mInfo.id, 0);
+        }
+
         // Remove extra views.
         boolean removed = false;
-        while (pageItr.hasNext()) {
-            removeView(pageItr.next());
+        while (getChildCount() > pageCount) {
+            removeView(getChildAt(getChildCount() - 1));
             removed = true;
         }
         if (removed) {
@@ -385,6 +402,40 @@ public class FolderPagedView extends PagedView {
                 (mIsRtl ? Gravity.RIGHT : Gravity.LEFT) : Gravity.CENTER_HORIZONTAL);
     }
 
+    /**
+     * Removes all the views which are not already at the cell they are arranged to in
+     * {@param list}, as well as the views which are not part of the list at all. Views that are
+     * already in place are left attached, so that they do not need to be laid out again.
+     */
+    private void removeMisplacedViews(ArrayList<View> list, int itemCount) {
+        HashSet<View> keep = new HashSet<View>();
+        for (int i = 0; i < itemCount && i < list.size(); i++) {
+            View v = list.get(i);
+            if (v == null) {
+                continue;
+            }
+            int pageNo = i / mMaxItemsPerPage;
+            int pagePos = i % mMaxItemsPerPage;
+            CellLayout page = getPageAt(pageNo);
+            CellLayout.LayoutParams lp = (CellLayout.LayoutParams) v.getLayoutParams();
+            if (page != null && v.getParent() == page.getShortcutsAndWidgets()
+                    && lp.cellX == pagePos % mGridCountX && lp.cellY == pagePos / mGridCountX) {
+                keep.add(v);
+            }
+        }
+
+        for (int i = getChildCount() - 1; i >= 0; i--) {
+            CellLayout page = getPageAt(i);
+            ShortcutAndWidgetContainer container = page.getShortcutsAndWidgets();
+            for (int j = container.getChildCount() - 1; j >= 0; j--) {
+                View v = container.getChildAt(j);
+                if (!keep.contains(v)) {
+                    page.removeView(v);
+                }
+            }
+        }
+    }
+
     public int getDesiredWidth() {
         return getPageCount() > 0 ?
                 (getPageAt(0).getDesiredWidth() + getPaddingLeft() + getPaddingRight()) : 0;
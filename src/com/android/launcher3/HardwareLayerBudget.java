@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Paint;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the hardware layers used by the launcher views, like the workspace pages, open
+ * folders and the all apps container, and keeps their estimated memory within a budget.
+ * <p>
+ * Views ask for a layer with a priority. When the budget is exceeded, layers with a lower
+ * priority are dropped to make room, and the request is denied if that is not enough. Denied
+ * requests are retried when a layer is released, until the view is released by its caller.
+ * Layers are released when their view is detached from the window, so that the budget does not
+ * keep removed views.
+ */
+public class HardwareLayerBudget {
+
+    private static final String TAG = "HardwareLayerBudget";
+    private static final boolean DEBUG = false;
+
+    /** Layers which are kept in case a view becomes visible, like a page next to the current. */
+    public static final int PRIORITY_PREFETCH = 0;
+    /** Layers of views which are visible and may move, like the pages during a scroll. */
+    public static final int PRIORITY_VISIBLE = 1;
+    /** Layers of views which are animated by a state transition or a folder animation. */
+    public static final int PRIORITY_TRANSITION = 2;
+
+    // The budget, in number of full screen layers
+    private static final int BUDGET_SCREENS = 6;
+    private static final int LOW_RAM_BUDGET_SCREENS = 3;
+
+    private static class Layer {
+        int priority;
+        long bytes;
+    }
+
+    private static class Request {
+        final int priority;
+        final Paint paint;
+
+        Request(int priority, Paint paint) {
+            this.priority = priority;
+            this.paint = paint;
+        }
+    }
+
+    private final HashMap<View, Layer> mLayers = new HashMap<>();
+    // Denied requests, which do not keep their view
+    private final WeakHashMap<View, Request> mDeniedRequests = new WeakHashMap<>();
+
+    private final View.OnAttachStateChangeListener mDetachListener =
+            new View.OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(View view) { }
+
+                @Override
+                public void onViewDetachedFromWindow(View view) {
+                    release(view);
+                }
+            };
+
+    private final long mBudgetBytes;
+    private long mUsedBytes;
+
+    private int mDeniedCount;
+    private int mEvictedCount;
+
+    public HardwareLayerBudget(Context context) {
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        boolean isLowRam = Utilities.ATLEAST_KITKAT && ((ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE)).isLowRamDevice();
+        long screenBytes = 4L * dm.widthPixels * dm.heightPixels;
+        mBudgetBytes = screenBytes * (isLowRam ? LOW_RAM_BUDGET_SCREENS : BUDGET_SCREENS);
+    }
+
+    /**
+     * Gives the view a hardware layer if it fits in the budget.
+     * @return whether the view has a layer.
+     */
+    public boolean acquire(View view, int priority) {
+        return acquire(view, priority, null);
+    }
+
+    /**
+     * Gives the view a hardware layer drawn with {@param paint} if it fits in the budget.
+     * @return whether the view has a layer.
+     */
+    public boolean acquire(View view, int priority, Paint paint) {
+        long bytes = estimateLayerBytes(view);
+        Layer layer = mLayers.get(view);
+        if (layer != null) {
+            // Already has a layer, only update the accounting
+            mUsedBytes += bytes - layer.bytes;
+            layer.bytes = bytes;
+            layer.priority = priority;
+            return true;
+        }
+        mDeniedRequests.remove(view);
+
+        if (mUsedBytes + bytes > mBudgetBytes) {
+            releaseDetachedLayers();
+        }
+        while (mUsedBytes + bytes > mBudgetBytes && !mLayers.isEmpty()) {
+            View victim = findLowestPriorityLayer(priority);
+            if (victim == null) {
+                break;
+            }
+            if (DEBUG) Log.d(TAG, "Evicting layer of " + victim + " for " + view);
+            removeLayer(victim);
+            mEvictedCount++;
+        }
+        // Always allow a single layer, even if it is larger than the budget
+        if (mUsedBytes + bytes > mBudgetBytes && !mLayers.isEmpty()) {
+            if (DEBUG) Log.d(TAG, "Denied layer of " + bytes + " bytes for " + view);
+            mDeniedCount++;
+            mDeniedRequests.put(view, new Request(priority, paint));
+            return false;
+        }
+
+        layer = new Layer();
+        layer.priority = priority;
+        layer.bytes = bytes;
+        mLayers.put(view, layer);
+        mUsedBytes += bytes;
+        view.setLayerType(View.LAYER_TYPE_HARDWARE, paint);
+        view.addOnAttachStateChangeListener(mDetachListener);
+        return true;
+    }
+
+    /**
+     * Removes the hardware layer of the view, if it has one from this budget, and gives its room
+     * to the requests which were denied.
+     */
+    public void release(View view) {
+        mDeniedRequests.remove(view);
+        if (removeLayer(view)) {
+            retryDeniedRequests();
+        }
+    }
+
+    private boolean removeLayer(View view) {
+        Layer layer = mLayers.remove(view);
+        if (layer == null) {
+            return false;
+        }
+        mUsedBytes -= layer.bytes;
+        view.removeOnAttachStateChangeListener(mDetachListener);
+        view.setLayerType(View.LAYER_TYPE_NONE, null);
+        return true;
+    }
+
+    /**
+     * Acquires the layers of the denied requests whose view is still attached, by decreasing
+     * priority, while they fit in the budget.
+     */
+    private void retryDeniedRequests() {
+        if (mDeniedRequests.isEmpty()) {
+            return;
+        }
+        final HashMap<View, Request> requests = new HashMap<>(mDeniedRequests);
+        mDeniedRequests.clear();
+        ArrayList<View> views = new ArrayList<>(requests.keySet());
+        Collections.sort(views, new Comparator<View>() {
+            @Override
+            public int compare(View lhs, View rhs) {
+                return requests.get(rhs).priority - requests.get(lhs).priority;
+            }
+        });
+        for (View view : views) {
+            if (Utilities.isViewAttachedToWindow(view)) {
+                Request request = requests.get(view);
+                acquire(view, request.priority, request.paint);
+            }
+        }
+    }
+
+    /**
+     * Builds the layer of the view ahead of the frame which will first draw it, so that the first
+     * frame of an animation does not have to render the whole view.
+     */
+    public void prewarm(View view) {
+        if (Utilities.ATLEAST_LOLLIPOP && mLayers.containsKey(view)
+                && Utilities.isViewAttachedToWindow(view)) {
+            view.buildLayer();
+        }
+    }
+
+    public boolean hasLayer(View view) {
+        return mLayers.containsKey(view);
+    }
+
+    public int getLayerCount() {
+        return mLayers.size();
+    }
+
+    public long getLayerBytes() {
+        return mUsedBytes;
+    }
+
+    private void releaseDetachedLayers() {
+        Iterator<Map.Entry<View, Layer>> it = mLayers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<View, Layer> entry = it.next();
+            View view = entry.getKey();
+            if (!Utilities.isViewAttachedToWindow(view)) {
+                it.remove();
+                mUsedBytes -= entry.getValue().bytes;
+                view.removeOnAttachStateChangeListener(mDetachListener);
+                view.setLayerType(View.LAYER_TYPE_NONE, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the view with the lowest priority below {@param priority}, preferring the largest
+     * layer, or null if there is none.
+     */
+    private View findLowestPriorityLayer(int priority) {
+        View result = null;
+        Layer resultLayer = null;
+        for (Map.Entry<View, Layer> entry : mLayers.entrySet()) {
+            Layer layer = entry.getValue();
+            if (layer.priority >= priority) {
+                continue;
+            }
+            if (resultLayer == null || layer.priority < resultLayer.priority
+                    || (layer.priority == resultLayer.priority
+                            && layer.bytes > resultLayer.bytes)) {
+                result = entry.getKey();
+                resultLayer = layer;
+            }
+        }
+        return result;
+    }
+
+    private static long estimateLayerBytes(View view) {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        if (width == 0 || height == 0) {
+            width = view.getMeasuredWidth();
+            height = view.getMeasuredHeight();
+        }
+        return 4L * width * height;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + TAG + ": layers=" + mLayers.size()
+                + " used=" + mUsedBytes / 1024 + "KB budget=" + mBudgetBytes / 1024 + "KB"
+                + " evicted=" + mEvictedCount + " denied=" + mDeniedCount
+                + " pending=" + mDeniedRequests.size());
+        for (Map.Entry<View, Layer> entry : mLayers.entrySet()) {
+            Layer layer = entry.getValue();
+            writer.println(prefix + "  " + entry.getKey().getClass().getSimpleName()
+                    + " priority=" + layer.priority + " size=" + layer.bytes / 1024 + "KB");
+        }
+    }
+}
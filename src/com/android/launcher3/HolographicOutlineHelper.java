@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -27,16 +28,75 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 /**
  * Utility class to generate shadow and outline effect, which are used for click feedback
  * and drag-n-drop respectively.
+ * <p>
+ * The outlines and shadows generated for icons are cached by the identity of the icon bitmap, so
+ * that repeated drags and presses of the same icon do not blur it again.
  */
 public class HolographicOutlineHelper {
 
+    private static final int CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+    private static final int LOW_RAM_CACHE_SIZE_BYTES = 1024 * 1024;
+
     private static HolographicOutlineHelper sInstance;
 
+    /**
+     * Key of a cached outline or shadow. The icon is compared by identity, as icon bitmaps are
+     * replaced rather than modified when the icon changes.
+     */
+    private static class CacheKey {
+        final Bitmap icon;
+        final int width;
+        final int height;
+        final int iconWidth;
+        final int iconHeight;
+        final int color;
+        final boolean isShadow;
+
+        CacheKey(Bitmap icon, int width, int height, int iconWidth, int iconHeight, int color,
+                boolean isShadow) {
+            this.icon = icon;
+            this.width = width;
+            this.height = height;
+            this.iconWidth = iconWidth;
+            this.iconHeight = iconHeight;
+            this.color = color;
+            this.isShadow = isShadow;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return icon == other.icon && width == other.width && height == other.height
+                    && iconWidth == other.iconWidth && iconHeight == other.iconHeight
+                    && color == other.color && isShadow == other.isShadow;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(icon);
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + iconWidth;
+            result = 31 * result + iconHeight;
+            result = 31 * result + color;
+            return 31 * result + (isShadow ? 1 : 0);
+        }
+    }
+
+    private final LruCache<CacheKey, Bitmap> mCache;
+
+    // Whether to generate outlines with fewer blur passes, eg. on low end devices
+    private boolean mUseLowCostBlur;
+
     private final Canvas mCanvas = new Canvas();
     private final Paint mDrawPaint = new Paint();
     private final Paint mBlurPaint = new Paint();
@@ -54,6 +114,17 @@ public class HolographicOutlineHelper {
     private HolographicOutlineHelper(Context context) {
         Resources res = context.getResources();
 
+        boolean isLowRam = Utilities.ATLEAST_KITKAT && ((ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE)).isLowRamDevice();
+        mUseLowCostBlur = isLowRam;
+        mCache = new LruCache<CacheKey, Bitmap>(
+                isLowRam ? LOW_RAM_CACHE_SIZE_BYTES : CACHE_SIZE_BYTES) {
+            @Override
+            protected int sizeOf(CacheKey key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
         float mediumBlur = res.getDimension(R.dimen.blur_size_medium_outline);
         mMediumOuterBlurMaskFilter = new BlurMaskFilter(mediumBlur, BlurMaskFilter.Blur.OUTER);
         mMediumInnerBlurMaskFilter = new BlurMaskFilter(mediumBlur, BlurMaskFilter.Blur.NORMAL);
@@ -80,6 +151,61 @@ public class HolographicOutlineHelper {
         return sInstance;
     }
 
+    /**
+     * Removes the cached outlines and shadows of the given icon, eg. when the icon is updated.
+     */
+    public static void invalidateIcon(Bitmap icon) {
+        HolographicOutlineHelper helper = sInstance;
+        if (helper == null || icon == null) {
+            return;
+        }
+        for (CacheKey key : helper.mCache.snapshot().keySet()) {
+            if (key.icon == icon) {
+                helper.mCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached outlines and shadows.
+     */
+    public static void invalidateAll() {
+        HolographicOutlineHelper helper = sInstance;
+        if (helper != null) {
+            helper.mCache.evictAll();
+        }
+    }
+
+    /**
+     * Sets whether outlines should be generated with fewer blur passes. This is enabled by default
+     * on low RAM devices.
+     */
+    public void setUseLowCostBlur(boolean useLowCostBlur) {
+        if (mUseLowCostBlur != useLowCostBlur) {
+            mUseLowCostBlur = useLowCostBlur;
+            mCache.evictAll();
+        }
+    }
+
+    /**
+     * Returns the cached outline for the given icon drawn at the given size, or null.
+     * The returned bitmap is shared and must not be modified or recycled.
+     */
+    Bitmap getCachedOutline(Bitmap icon, int width, int height, Rect iconBounds, int color) {
+        return mCache.get(new CacheKey(icon, width, height, iconBounds.width(),
+                iconBounds.height(), color, false));
+    }
+
+    /**
+     * Caches the outline for the given icon drawn at the given size. The outline must not be
+     * modified or recycled afterwards.
+     */
+    void cacheOutline(Bitmap icon, int width, int height, Rect iconBounds, int color,
+            Bitmap outline) {
+        mCache.put(new CacheKey(icon, width, height, iconBounds.width(), iconBounds.height(),
+                color, false), outline);
+    }
+
     /**
      * Applies a more expensive and accurate outline to whatever is currently drawn in a specified
      * bitmap.
@@ -90,6 +216,10 @@ public class HolographicOutlineHelper {
     }
     void applyExpensiveOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
             int outlineColor, boolean clipAlpha) {
+        if (mUseLowCostBlur) {
+            applyLowCostOutlineWithBlur(srcDst, srcDstCanvas, color, outlineColor);
+            return;
+        }
 
         // We start by removing most of the alpha channel so as to ignore shadows, and
         // other types of partial transparency when defining the shape of the object
@@ -155,6 +285,33 @@ public class HolographicOutlineHelper {
         glowShape.recycle();
     }
 
+    /**
+     * Applies a cheaper outline to whatever is currently drawn in a specified bitmap, using only
+     * the outer blurs of the shape and skipping the alpha clipping and the inner glow.
+     */
+    private void applyLowCostOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
+            int outlineColor) {
+        Bitmap glowShape = srcDst.extractAlpha();
+
+        mBlurPaint.setMaskFilter(mMediumOuterBlurMaskFilter);
+        int[] outerBlurOffset = new int[2];
+        Bitmap thickOuterBlur = glowShape.extractAlpha(mBlurPaint, outerBlurOffset);
+
+        srcDstCanvas.setBitmap(srcDst);
+        srcDstCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        mDrawPaint.setColor(color);
+        srcDstCanvas.drawBitmap(thickOuterBlur, outerBlurOffset[0], outerBlurOffset[1],
+                mDrawPaint);
+
+        // draw the shape itself as the bright outline
+        mDrawPaint.setColor(outlineColor);
+        srcDstCanvas.drawBitmap(glowShape, 0, 0, mDrawPaint);
+
+        srcDstCanvas.setBitmap(null);
+        thickOuterBlur.recycle();
+        glowShape.recycle();
+    }
+
     Bitmap createMediumDropShadow(BubbleTextView view) {
         Drawable icon = view.getIcon();
         if (icon == null) {
@@ -169,6 +326,17 @@ public class HolographicOutlineHelper {
             return null;
         }
 
+        // Reuse the shadow of the same icon bitmap if possible
+        CacheKey shadowKey = null;
+        if (icon instanceof FastBitmapDrawable) {
+            shadowKey = new CacheKey(((FastBitmapDrawable) icon).getBitmap(), bitmapWidth,
+                    bitmapHeight, rect.width(), rect.height(), 0, true);
+            Bitmap shadow = mCache.get(shadowKey);
+            if (shadow != null) {
+                return shadow;
+            }
+        }
+
         int key = (bitmapWidth << 16) | bitmapHeight;
         Bitmap cache = mBitmapCache.get(key);
         if (cache == null) {
@@ -188,6 +356,10 @@ public class HolographicOutlineHelper {
         mCanvas.setBitmap(null);
 
         mBlurPaint.setMaskFilter(mShadowBlurMaskFilter);
-        return cache.extractAlpha(mBlurPaint, null);
+        Bitmap shadow = cache.extractAlpha(mBlurPaint, null);
+        if (shadowKey != null && shadow != null) {
+            mCache.put(shadowKey, shadow);
+        }
+        return shadow;
     }
 }
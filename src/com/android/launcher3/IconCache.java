@@ -48,8 +48,11 @@ import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.DatabaseTuning;
+import com.android.launcher3.util.IconBlob;
 import com.android.launcher3.util.Thunk;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -83,6 +86,8 @@ public class IconCache {
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+        // The dominant color of the full res icon, or 0 if not computed yet
+        public int dominantColor;
     }
 
     private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons = new HashMap<>();
@@ -197,7 +202,20 @@ public class IconCache {
      * Remove any records for the supplied ComponentName.
      */
     public synchronized void remove(ComponentName componentName, UserHandleCompat user) {
-        mCache.remove(new ComponentKey(componentName, user));
+        invalidateOutlines(mCache.remove(new ComponentKey(componentName, user)));
+    }
+
+    /**
+     * Returns the number of bytes used by the icons in the memory cache.
+     */
+    public synchronized long getMemoryUsage() {
+        long bytes = 0;
+        for (CacheEntry entry : mCache.values()) {
+            if (entry.icon != null) {
+                bytes += entry.icon.getByteCount();
+            }
+        }
+        return bytes;
     }
 
     /**
@@ -205,6 +223,7 @@ public class IconCache {
      */
     public synchronized void flush() {
         mCache.clear();
+        HolographicOutlineHelper.invalidateAll();
         if (mIconDb != null) {
             mIconDb.close();
         }
@@ -221,6 +240,7 @@ public class IconCache {
             if ((e.icon != null) && (e.icon.getWidth() < deviceProfile.iconSizePx
                     || e.icon.getHeight() < deviceProfile.iconSizePx)) {
                 it.remove();
+                invalidateOutlines(e);
             }
         }
     }
@@ -237,7 +257,16 @@ public class IconCache {
             }
         }
         for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
+            invalidateOutlines(mCache.remove(condemned));
+        }
+    }
+
+    /**
+     * Drops the drag outlines and click shadows generated for the icon of a removed entry.
+     */
+    private static void invalidateOutlines(CacheEntry entry) {
+        if (entry != null) {
+            HolographicOutlineHelper.invalidateIcon(entry.icon);
         }
     }
 
@@ -502,6 +531,38 @@ public class IconCache {
         return entry.icon;
     }
 
+    /**
+     * Returns the dominant color of {@param icon}, the icon of the given component. The color is
+     * cached along with the icon of the component, and persisted with it when possible.
+     * The color is computed without holding the cache lock, as this is called on the UI thread.
+     */
+    public int getDominantColor(ComponentName component, UserHandleCompat user, Bitmap icon) {
+        ComponentKey key = component == null ? null : new ComponentKey(component, user);
+        if (key != null) {
+            synchronized (this) {
+                CacheEntry entry = mCache.get(key);
+                if (entry != null && entry.icon == icon && entry.dominantColor != 0) {
+                    return entry.dominantColor;
+                }
+            }
+        }
+        int color = findDominantColor(icon);
+        if (key != null) {
+            synchronized (this) {
+                CacheEntry entry = mCache.get(key);
+                // Only keep the color if the icon was not replaced meanwhile
+                if (entry != null && entry.icon == icon) {
+                    entry.dominantColor = color;
+                }
+            }
+        }
+        return color;
+    }
+
+    @Thunk static int findDominantColor(Bitmap icon) {
+        return Utilities.findDominantColorByHue(icon, 20);
+    }
+
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param intent}. If the
      * corresponding activity is not found, it reverts to the package icon.
@@ -684,48 +745,81 @@ public class IconCache {
     }
 
     /**
-     * Pre-load an icon into the persistent cache.
+     * An icon to pre-load for a component, like one of a restored backup.
+     */
+    public static class PreloadRequest {
+        public final ComponentName componentName;
+        public final byte[] iconData;
+        public final int dpi;
+        public final String label;
+
+        /**
+         * @param iconData the encoded icon, decoded only when it is persisted
+         * @param dpi the native density of the icon
+         */
+        public PreloadRequest(ComponentName componentName, byte[] iconData, int dpi,
+                String label) {
+            this.componentName = componentName;
+            this.iconData = iconData;
+            this.dpi = dpi;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Pre-load icons into the persistent cache, in a single transaction.
      *
      * <P>Queries for a component that does not exist in the package manager
-     * will be answered by the persistent cache.
-     *
-     * @param componentName the icon should be returned for this component
-     * @param icon the icon to be persisted
-     * @param dpi the native density of the icon
+     * will be answered by the persistent cache. Components which exist already are skipped.
      */
-    public void preloadIcon(ComponentName componentName, Bitmap icon, int dpi, String label,
-            long userSerial, InvariantDeviceProfile idp) {
-        // TODO rescale to the correct native DPI
+    public void preloadIcons(ArrayList<PreloadRequest> requests, long userSerial,
+            InvariantDeviceProfile idp) {
+        PackageManager packageManager = mContext.getPackageManager();
+        SQLiteDatabase db = mIconDb.getWritableDatabase();
+        db.beginTransaction();
         try {
-            PackageManager packageManager = mContext.getPackageManager();
-            packageManager.getActivityIcon(componentName);
-            // component is present on the system already, do nothing
-            return;
-        } catch (PackageManager.NameNotFoundException e) {
-            // pass
-        }
+            for (PreloadRequest request : requests) {
+                try {
+                    packageManager.getActivityInfo(request.componentName, 0);
+                    // component is present on the system already, do nothing
+                    continue;
+                } catch (PackageManager.NameNotFoundException e) {
+                    // pass
+                }
 
-        ContentValues values = newContentValues(
-                Bitmap.createScaledBitmap(icon, idp.iconBitmapSize, idp.iconBitmapSize, true),
-                label, Color.TRANSPARENT);
-        values.put(IconDB.COLUMN_COMPONENT, componentName.flattenToString());
-        values.put(IconDB.COLUMN_USER, userSerial);
-        mIconDb.getWritableDatabase().insertWithOnConflict(IconDB.TABLE_NAME, null, values,
-                SQLiteDatabase.CONFLICT_REPLACE);
+                Bitmap icon = BitmapFactory.decodeByteArray(
+                        request.iconData, 0, request.iconData.length);
+                if (icon == null) {
+                    Log.w(TAG, "failed to decode preloaded icon for " + request.componentName);
+                    continue;
+                }
+
+                // TODO rescale to the correct native DPI
+                ContentValues values = newContentValues(
+                        Bitmap.createScaledBitmap(icon, idp.iconBitmapSize, idp.iconBitmapSize,
+                                true),
+                        request.label, Color.TRANSPARENT);
+                values.put(IconDB.COLUMN_COMPONENT, request.componentName.flattenToString());
+                values.put(IconDB.COLUMN_USER, userSerial);
+                db.insertWithOnConflict(IconDB.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
-        Cursor c = mIconDb.getReadableDatabase().query(IconDB.TABLE_NAME,
-                new String[] {lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
-                        IconDB.COLUMN_LABEL},
-                IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+        Cursor c = mIconDb.getReadableDatabase().rawQuery(
+                lowRes ? IconDB.QUERY_ENTRY_LOW_RES : IconDB.QUERY_ENTRY,
                 new String[] {cacheKey.componentName.flattenToString(),
-                    Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))},
-                null, null, null);
+                    Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))});
         try {
             if (c.moveToNext()) {
                 entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
                 entry.isLowResIcon = lowRes;
+                entry.dominantColor = c.getInt(2);
                 entry.title = c.getString(1);
                 if (entry.title == null) {
                     entry.title = "";
@@ -821,7 +915,14 @@ public class IconCache {
     }
 
     private static final class IconDB extends SQLiteOpenHelper {
-        private final static int DB_VERSION = 7;
+        private final static int DB_VERSION = 9;
+
+        // The oldest version which can be migrated without clearing the cache
+        private final static int DB_VERSION_MIGRATABLE = 7;
+        // The first version storing icons as IconBlob instead of PNG
+        private final static int DB_VERSION_ICON_BLOB = 8;
+        // The first version storing the dominant color of the icons
+        private final static int DB_VERSION_DOMINANT_COLOR = 9;
 
         private final static String TABLE_NAME = "icons";
         private final static String COLUMN_ROWID = "rowid";
@@ -833,9 +934,28 @@ public class IconCache {
         private final static String COLUMN_ICON_LOW_RES = "icon_low_res";
         private final static String COLUMN_LABEL = "label";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
+        private final static String COLUMN_DOMINANT_COLOR = "dominant_color";
+
+        // The lookups of a single entry, as constant SQL so that they stay prepared
+        private final static String QUERY_ENTRY = queryEntry(COLUMN_ICON);
+        private final static String QUERY_ENTRY_LOW_RES = queryEntry(COLUMN_ICON_LOW_RES);
+
+        private final Context mContext;
 
         public IconDB(Context context) {
             super(context, LauncherFiles.APP_ICONS_DB, null, DB_VERSION);
+            mContext = context;
+        }
+
+        private static String queryEntry(String iconColumn) {
+            return "SELECT " + iconColumn + ", " + COLUMN_LABEL + ", " + COLUMN_DOMINANT_COLOR
+                    + " FROM " + TABLE_NAME
+                    + " WHERE " + COLUMN_COMPONENT + " = ? AND " + COLUMN_USER + " = ?";
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            DatabaseTuning.configure(mContext, db, true);
         }
 
         @Override
@@ -849,17 +969,64 @@ public class IconCache {
                     COLUMN_ICON_LOW_RES + " BLOB, " +
                     COLUMN_LABEL + " TEXT, " +
                     COLUMN_SYSTEM_STATE + " TEXT, " +
+                    COLUMN_DOMINANT_COLOR + " INTEGER NOT NULL DEFAULT 0, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
                     ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion != newVersion) {
+            if (oldVersion >= DB_VERSION_MIGRATABLE && newVersion == DB_VERSION) {
+                migrateIcons(db, oldVersion);
+            } else if (oldVersion != newVersion) {
                 clearDB(db);
             }
         }
 
+        /**
+         * Re-encodes the PNG icons of an existing cache in the {@link IconBlob} format and fills
+         * in their dominant colors, so that the cache does not need to be rebuilt.
+         */
+        private void migrateIcons(SQLiteDatabase db, int oldVersion) {
+            if (oldVersion < DB_VERSION_DOMINANT_COLOR) {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DOMINANT_COLOR
+                        + " INTEGER NOT NULL DEFAULT 0;");
+            }
+
+            BitmapFactory.Options lowResOptions = new BitmapFactory.Options();
+            lowResOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+
+            Cursor c = db.query(TABLE_NAME,
+                    new String[] {COLUMN_ROWID, COLUMN_ICON, COLUMN_ICON_LOW_RES},
+                    null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                String[] rowId = new String[1];
+                while (c.moveToNext()) {
+                    values.clear();
+                    Bitmap icon = loadIconNoResize(c, 1, null);
+                    if (icon != null) {
+                        if (!IconBlob.isCompact(c.getBlob(1))) {
+                            values.put(COLUMN_ICON, IconBlob.encode(icon));
+                        }
+                        values.put(COLUMN_DOMINANT_COLOR, findDominantColor(icon));
+                    }
+                    byte[] lowRes = c.getBlob(2);
+                    if (lowRes != null && !IconBlob.isCompact(lowRes)) {
+                        Bitmap lowResIcon = loadIconNoResize(c, 2, lowResOptions);
+                        values.put(COLUMN_ICON_LOW_RES,
+                                lowResIcon == null ? null : IconBlob.encode(lowResIcon));
+                    }
+                    if (values.size() > 0) {
+                        rowId[0] = Long.toString(c.getLong(0));
+                        db.update(TABLE_NAME, values, COLUMN_ROWID + " = ?", rowId);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
         @Override
         public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (oldVersion != newVersion) {
@@ -875,13 +1042,14 @@ public class IconCache {
 
     private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
+        values.put(IconDB.COLUMN_ICON, IconBlob.encode(icon));
+        values.put(IconDB.COLUMN_DOMINANT_COLOR, findDominantColor(icon));
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, mSystemState);
 
         if (lowResBackgroundColor == Color.TRANSPARENT) {
-          values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(
+          values.put(IconDB.COLUMN_ICON_LOW_RES, IconBlob.encode(
           Bitmap.createScaledBitmap(icon,
                   icon.getWidth() / LOW_RES_SCALE_FACTOR,
                   icon.getHeight() / LOW_RES_SCALE_FACTOR, true)));
@@ -897,7 +1065,7 @@ public class IconCache {
                 mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
                         new Rect(0, 0, mLowResBitmap.getWidth(), mLowResBitmap.getHeight()),
                         mLowResPaint);
-                values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(mLowResBitmap));
+                values.put(IconDB.COLUMN_ICON_LOW_RES, IconBlob.encode(mLowResBitmap));
             }
         }
         return values;
@@ -906,7 +1074,7 @@ public class IconCache {
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
         byte[] data = c.getBlob(iconIndex);
         try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            return IconBlob.decode(data, options);
         } catch (Exception e) {
             return null;
         }
@@ -23,6 +23,10 @@ import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.TextUtils;
@@ -33,6 +37,7 @@ import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.DatabaseTuning;
 import com.android.launcher3.util.Thunk;
 
 import org.json.JSONException;
@@ -42,7 +47,6 @@ import org.json.JSONTokener;
 
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -70,76 +74,109 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
 
     private static final Object sLock = new Object();
 
-    private static void addToInstallQueue(
-            SharedPreferences sharedPrefs, PendingInstallShortcutInfo info) {
-        synchronized(sLock) {
-            String encoded = info.encodeToString();
-            if (encoded != null) {
-                Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-                if (strings == null) {
-                    strings = new HashSet<String>(1);
-                } else {
-                    strings = new HashSet<String>(strings);
+    // Shortcuts received since the last write to the queue, which are written together
+    private static final ArrayList<PendingInstallShortcutInfo> sPendingWrites =
+            new ArrayList<PendingInstallShortcutInfo>();
+    // Broadcasts which are kept alive until their shortcut is written
+    private static final ArrayList<PendingResult> sPendingResults = new ArrayList<PendingResult>();
+    private static InstallQueueDb sQueueDb;
+
+    private static InstallQueueDb getQueueDb(Context context) {
+        synchronized (sLock) {
+            if (sQueueDb == null) {
+                sQueueDb = new InstallQueueDb(context.getApplicationContext());
+            }
+            return sQueueDb;
+        }
+    }
+
+    /**
+     * Adds a shortcut to the queue. It is written on the worker thread, with the other shortcuts
+     * received until then, and the queue is flushed if the launcher is ready.
+     * @param result the broadcast which delivered the shortcut, finished once it is written.
+     */
+    private static void addToInstallQueue(final Context context, PendingInstallShortcutInfo info,
+            PendingResult result) {
+        synchronized (sLock) {
+            sPendingWrites.add(info);
+            if (result != null) {
+                sPendingResults.add(result);
+            }
+            if (sPendingWrites.size() > 1) {
+                // A write is already scheduled
+                return;
+            }
+        }
+        LauncherModel.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                writePendingInstalls(context);
+                boolean launcherNotLoaded =
+                        LauncherAppState.getInstance().getModel().getCallback() == null;
+                if (!sUseInstallQueue && !launcherNotLoaded) {
+                    flushInstallQueueNow(context);
                 }
-                strings.add(encoded);
-                sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, strings).commit();
+            }
+        });
+    }
+
+    /**
+     * Writes the received shortcuts to the queue in a single transaction.
+     */
+    @Thunk static void writePendingInstalls(Context context) {
+        ArrayList<PendingInstallShortcutInfo> infos;
+        ArrayList<PendingResult> results;
+        synchronized (sLock) {
+            if (sPendingWrites.isEmpty()) {
+                return;
+            }
+            infos = new ArrayList<PendingInstallShortcutInfo>(sPendingWrites);
+            sPendingWrites.clear();
+            results = new ArrayList<PendingResult>(sPendingResults);
+            sPendingResults.clear();
+        }
+        try {
+            getQueueDb(context).addAll(infos);
+        } finally {
+            // The process can be stopped once the shortcuts are persisted
+            for (PendingResult result : results) {
+                result.finish();
             }
         }
     }
 
+    /**
+     * Removes the queued shortcuts of the packages. Must be called on the worker thread.
+     */
     public static void removeFromInstallQueue(Context context, ArrayList<String> packageNames,
             UserHandleCompat user) {
         if (packageNames.isEmpty()) {
             return;
         }
-        String spKey = LauncherAppState.getSharedPreferencesKey();
-        SharedPreferences sp = context.getSharedPreferences(spKey, Context.MODE_PRIVATE);
-        synchronized(sLock) {
-            Set<String> strings = sp.getStringSet(APPS_PENDING_INSTALL, null);
-            if (DBG) {
-                Log.d(TAG, "APPS_PENDING_INSTALL: " + strings
-                        + ", removing packages: " + packageNames);
-            }
-            if (strings != null) {
-                Set<String> newStrings = new HashSet<String>(strings);
-                Iterator<String> newStringsIter = newStrings.iterator();
-                while (newStringsIter.hasNext()) {
-                    String encoded = newStringsIter.next();
-                    PendingInstallShortcutInfo info = decode(encoded, context);
-                    if (info == null || (packageNames.contains(info.getTargetPackage())
-                            && user.equals(info.user))) {
-                        newStringsIter.remove();
-                    }
-                }
-                sp.edit().putStringSet(APPS_PENDING_INSTALL, newStrings).commit();
-            }
-        }
+        if (DBG) Log.d(TAG, "Removing packages from the install queue: " + packageNames);
+        writePendingInstalls(context);
+        getQueueDb(context).removePackages(packageNames,
+                UserManagerCompat.getInstance(context).getSerialNumberForUser(user));
     }
 
     private static ArrayList<PendingInstallShortcutInfo> getAndClearInstallQueue(
-            SharedPreferences sharedPrefs, Context context) {
-        synchronized(sLock) {
-            Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-            if (DBG) Log.d(TAG, "Getting and clearing APPS_PENDING_INSTALL: " + strings);
-            if (strings == null) {
-                return new ArrayList<PendingInstallShortcutInfo>();
-            }
-            ArrayList<PendingInstallShortcutInfo> infos =
+            Context context) {
+        writePendingInstalls(context);
+        ArrayList<PendingInstallShortcutInfo> infos =
                 new ArrayList<PendingInstallShortcutInfo>();
-            for (String encoded : strings) {
-                PendingInstallShortcutInfo info = decode(encoded, context);
-                if (info != null) {
-                    infos.add(info);
-                }
+        for (String encoded : getQueueDb(context).removeAll()) {
+            PendingInstallShortcutInfo info = decode(encoded, context);
+            if (info != null) {
+                infos.add(info);
             }
-            sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, new HashSet<String>()).commit();
-            return infos;
         }
+        if (DBG) Log.d(TAG, "Got and cleared " + infos.size() + " pending installs");
+        return infos;
     }
 
     // Determines whether to defer installing shortcuts immediately until
     // processAllPendingInstalls() is called.
-    private static boolean mUseInstallQueue = false;
+    @Thunk static volatile boolean sUseInstallQueue = false;
 
     public void onReceive(Context context, Intent data) {
         if (!ACTION_INSTALL_SHORTCUT.equals(data.getAction())) {
@@ -153,7 +190,8 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
         }
 
         info = convertToLauncherActivityIfPossible(info);
-        queuePendingShortcutInfo(info, context);
+        // Keep the process alive until the shortcut is written on the worker thread
+        queuePendingShortcutInfo(info, context, goAsync());
     }
 
     public static ShortcutInfo fromShortcutIntent(Context context, Intent data) {
@@ -167,34 +205,39 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     }
 
     static void queueInstallShortcut(LauncherActivityInfoCompat info, Context context) {
-        queuePendingShortcutInfo(new PendingInstallShortcutInfo(info, context), context);
+        queuePendingShortcutInfo(new PendingInstallShortcutInfo(info, context), context, null);
     }
 
-    private static void queuePendingShortcutInfo(PendingInstallShortcutInfo info, Context context) {
+    private static void queuePendingShortcutInfo(PendingInstallShortcutInfo info, Context context,
+            PendingResult result) {
         // Queue the item up for adding if launcher has not loaded properly yet
         LauncherAppState.setApplicationContext(context.getApplicationContext());
-        LauncherAppState app = LauncherAppState.getInstance();
-        boolean launcherNotLoaded = app.getModel().getCallback() == null;
-
-        String spKey = LauncherAppState.getSharedPreferencesKey();
-        SharedPreferences sp = context.getSharedPreferences(spKey, Context.MODE_PRIVATE);
-        addToInstallQueue(sp, info);
-        if (!mUseInstallQueue && !launcherNotLoaded) {
-            flushInstallQueue(context);
-        }
+        addToInstallQueue(context.getApplicationContext(), info, result);
     }
 
     static void enableInstallQueue() {
-        mUseInstallQueue = true;
+        sUseInstallQueue = true;
     }
     static void disableAndFlushInstallQueue(Context context) {
-        mUseInstallQueue = false;
+        sUseInstallQueue = false;
         flushInstallQueue(context);
     }
     static void flushInstallQueue(Context context) {
-        String spKey = LauncherAppState.getSharedPreferencesKey();
-        SharedPreferences sp = context.getSharedPreferences(spKey, Context.MODE_PRIVATE);
-        ArrayList<PendingInstallShortcutInfo> installQueue = getAndClearInstallQueue(sp, context);
+        final Context appContext = context.getApplicationContext();
+        LauncherModel.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                flushInstallQueueNow(appContext);
+            }
+        });
+    }
+
+    /**
+     * Adds all the queued shortcuts to the model with a single call. Must be called on the worker
+     * thread.
+     */
+    @Thunk static void flushInstallQueueNow(Context context) {
+        ArrayList<PendingInstallShortcutInfo> installQueue = getAndClearInstallQueue(context);
         if (!installQueue.isEmpty()) {
             Iterator<PendingInstallShortcutInfo> iter = installQueue.iterator();
             ArrayList<ItemInfo> addShortcuts = new ArrayList<ItemInfo>();
@@ -403,6 +446,142 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
         return null;
     }
 
+    /**
+     * The queue of the shortcuts to install, in the order they were received. Each entry keeps
+     * the encoded shortcut with its package and user, so that the shortcuts of a package are
+     * removed without decoding the others. A shortcut which is already queued is not added again.
+     */
+    private static class InstallQueueDb extends SQLiteOpenHelper {
+        private static final int DB_VERSION = 1;
+
+        private static final String TABLE_NAME = "pending";
+        private static final String COLUMN_ID = "_id";
+        private static final String COLUMN_PACKAGE = "packageName";
+        private static final String COLUMN_USER = "profileId";
+        private static final String COLUMN_DATA = "data";
+
+        private final Context mContext;
+
+        public InstallQueueDb(Context context) {
+            super(context, LauncherFiles.INSTALL_QUEUE_DB, null, DB_VERSION);
+            mContext = context;
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // No write-ahead logging, as the queue is only used by the worker thread
+            DatabaseTuning.configure(mContext, db, false);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    COLUMN_PACKAGE + " TEXT, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_DATA + " TEXT NOT NULL" +
+                    ");");
+            db.execSQL("CREATE UNIQUE INDEX pending_data ON " + TABLE_NAME +
+                    " (" + COLUMN_DATA + ");");
+            migrateFromPreferences(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) { }
+
+        /**
+         * Moves the shortcuts queued by the previous versions, which kept them in a string set
+         * of the shared preferences.
+         */
+        private void migrateFromPreferences(SQLiteDatabase db) {
+            SharedPreferences sp = mContext.getSharedPreferences(
+                    LauncherAppState.getSharedPreferencesKey(), Context.MODE_PRIVATE);
+            Set<String> strings = sp.getStringSet(APPS_PENDING_INSTALL, null);
+            if (strings == null) {
+                return;
+            }
+            ArrayList<PendingInstallShortcutInfo> infos =
+                    new ArrayList<PendingInstallShortcutInfo>();
+            for (String encoded : strings) {
+                PendingInstallShortcutInfo info = decode(encoded, mContext);
+                if (info != null) {
+                    infos.add(info);
+                }
+            }
+            insert(db, infos);
+            sp.edit().remove(APPS_PENDING_INSTALL).apply();
+        }
+
+        public void addAll(ArrayList<PendingInstallShortcutInfo> infos) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                insert(db, infos);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        private void insert(SQLiteDatabase db, ArrayList<PendingInstallShortcutInfo> infos) {
+            UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+            SQLiteStatement statement = db.compileStatement("INSERT OR IGNORE INTO " +
+                    TABLE_NAME + " (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ", " + COLUMN_DATA +
+                    ") VALUES (?, ?, ?)");
+            try {
+                for (PendingInstallShortcutInfo info : infos) {
+                    String encoded = info.encodeToString();
+                    if (encoded != null) {
+                        DatabaseTuning.bindAll(statement, 1, info.getTargetPackage(),
+                                userManager.getSerialNumberForUser(info.user), encoded);
+                        statement.executeInsert();
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+        }
+
+        public void removePackages(ArrayList<String> packageNames, long userSerial) {
+            StringBuilder selection = new StringBuilder(COLUMN_USER + " = " + userSerial
+                    + " AND " + COLUMN_PACKAGE + " IN (?");
+            for (int i = 1; i < packageNames.size(); i++) {
+                selection.append(", ?");
+            }
+            selection.append(')');
+            getWritableDatabase().delete(TABLE_NAME, selection.toString(),
+                    packageNames.toArray(new String[packageNames.size()]));
+        }
+
+        /**
+         * Removes all the queued shortcuts.
+         * @return the encoded shortcuts, in the order they were received.
+         */
+        public ArrayList<String> removeAll() {
+            ArrayList<String> entries = new ArrayList<String>();
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(TABLE_NAME, new String[] {COLUMN_DATA},
+                        null, null, null, null, COLUMN_ID);
+                try {
+                    while (c.moveToNext()) {
+                        entries.add(c.getString(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                if (!entries.isEmpty()) {
+                    db.delete(TABLE_NAME, null, null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return entries;
+        }
+    }
+
     /**
      * Tries to create a new PendingInstallShortcutInfo which represents the same target,
      * but is an app target and not a shortcut.
@@ -119,6 +119,7 @@ import com.android.launcher3.settings.SettingsProvider;
 import com.android.launcher3.stats.LauncherStats;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.LongArrayMap;
+import com.android.launcher3.util.StartupTrace;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.PendingAddWidgetInfo;
 import com.android.launcher3.widget.WidgetHostViewLoader;
@@ -131,6 +132,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -278,6 +280,8 @@ public class Launcher extends Activity
     private View mPageIndicators;
     @Thunk DragLayer mDragLayer;
     private DragController mDragController;
+    private HardwareLayerBudget mHardwareLayerBudget;
+    private MemoryTracker.Counter mBoundViewsCounter;
     private View mWeightWatcher;
     private DynamicGridSizeFragment mDynamicGridSizeFragment;
     private boolean mIsHiddenMenuOptionEnabled;
@@ -603,6 +607,16 @@ public class Launcher extends Activity
         mIsSafeModeEnabled = getPackageManager().isSafeMode();
 
         mDragController = new DragController(this);
+        mHardwareLayerBudget = new HardwareLayerBudget(this);
+        if (getResources().getBoolean(R.bool.debug_memory_enabled)) {
+            mBoundViewsCounter = new MemoryTracker.Counter() {
+                @Override
+                public long getValue() {
+                    return getBoundViewCount();
+                }
+            };
+            MemoryTracker.registerCounter("bound_views", mBoundViewsCounter, true);
+        }
         mInflater = getLayoutInflater();
         mStateTransitionAnimation = new LauncherStateTransitionAnimation(this);
 
@@ -718,6 +732,8 @@ public class Launcher extends Activity
     public void exportDBFile() {
         ContextWrapper c = new ContextWrapper(this);
         File dbFile = c.getDatabasePath("launcher.db");
+        // Recent changes may still be in the write-ahead log, next to the file.
+        LauncherAppState.getLauncherProvider().checkpointDatabase();
         try {
             deleteExportedLauncerDB();
             mExportedLauncherDB = exportFile(
@@ -2497,6 +2513,9 @@ public class Launcher extends Activity
         mHandler.removeMessages(ADVANCE_MSG);
         mHandler.removeMessages(0);
         mWorkspace.removeCallbacks(mBuildLayersRunnable);
+        if (mBoundViewsCounter != null) {
+            MemoryTracker.unregisterCounter(mBoundViewsCounter);
+        }
 
         // Stop callbacks from LauncherModel
         LauncherAppState app = (LauncherAppState.getInstance());
@@ -2543,6 +2562,25 @@ public class Launcher extends Activity
         return mIsHiddenMenuOptionEnabled;
     }
 
+    /**
+     * Returns the number of item views on the workspace and hotseat.
+     */
+    @Thunk long getBoundViewCount() {
+        if (mWorkspace == null) {
+            return 0;
+        }
+        long count = 0;
+        for (ShortcutAndWidgetContainer container :
+                mWorkspace.getAllShortcutAndWidgetContainers()) {
+            count += container.getChildCount();
+        }
+        return count;
+    }
+
+    public HardwareLayerBudget getHardwareLayerBudget() {
+        return mHardwareLayerBudget;
+    }
+
     public DragController getDragController() {
         return mDragController;
     }
@@ -5311,6 +5349,13 @@ public class Launcher extends Activity
         Log.d(TAG, "mWaitingForResult=" + mWaitingForResult);
         Log.d(TAG, "mSavedInstanceState=" + mSavedInstanceState);
         Log.d(TAG, "sFolders.size=" + sFolders.size());
+        Log.d(TAG, "hardwareLayers=" + mHardwareLayerBudget.getLayerCount()
+                + " hardwareLayerBytes=" + mHardwareLayerBudget.getLayerBytes());
+        StringWriter startupTrace = new StringWriter();
+        StartupTrace.dump("", new PrintWriter(startupTrace));
+        for (String line : startupTrace.toString().split("\n")) {
+            Log.d(TAG, line);
+        }
         mModel.dumpState();
         // TODO(hyunyoungs): add mWidgetsView.dumpState(); or mWidgetsModel.dumpState();
 
@@ -5327,6 +5372,12 @@ public class Launcher extends Activity
                 writer.println("  " + sDumpLogs.get(i));
             }
         }
+        if (mHardwareLayerBudget != null) {
+            writer.println(" ");
+            mHardwareLayerBudget.dump(prefix, writer);
+        }
+        writer.println(" ");
+        StartupTrace.dump(prefix, writer);
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
         }
@@ -5407,6 +5458,8 @@ public class Launcher extends Activity
                                 writer.println("  " + sDumpLogs.get(i));
                             }
                         }
+                        writer.println(" ");
+                        StartupTrace.dump("", writer);
                         writer.close();
                     }
                     try {
@@ -91,6 +91,10 @@ public class LauncherAppState {
         mBuildInfo = BuildInfo.loadByName(sContext.getString(R.string.build_info_class));
         mModel = new LauncherModel(this, mIconCache, mAppFilter);
 
+        if (sContext.getResources().getBoolean(R.bool.debug_memory_enabled)) {
+            registerMemoryCounters();
+        }
+
         LauncherAppsCompat.getInstance(sContext).addOnAppsChangedCallback(mModel);
 
         // Register intent receivers
@@ -105,6 +109,33 @@ public class LauncherAppState {
         UserManagerCompat.getInstance(sContext).enableAndResetCache();
     }
 
+    private void registerMemoryCounters() {
+        MemoryTracker.registerCounter("icon_cache_bytes", new MemoryTracker.Counter() {
+            @Override
+            public long getValue() {
+                return mIconCache.getMemoryUsage();
+            }
+        }, false);
+        MemoryTracker.registerCounter("widget_preview_unused_bytes", new MemoryTracker.Counter() {
+            @Override
+            public long getValue() {
+                return mWidgetCache.getUnusedBitmapBytes();
+            }
+        }, false);
+        MemoryTracker.registerCounter("model_items", new MemoryTracker.Counter() {
+            @Override
+            public long getValue() {
+                return LauncherModel.getItemCount();
+            }
+        }, false);
+        MemoryTracker.registerCounter("model_widgets", new MemoryTracker.Counter() {
+            @Override
+            public long getValue() {
+                return LauncherModel.getAppWidgetCount();
+            }
+        }, false);
+    }
+
     /**
      * Call from Application.onTerminate(), which is not guaranteed to ever be called.
      */
@@ -78,6 +78,8 @@ public class LauncherBackupAgentHelper extends BackupAgentHelper {
         boolean hasData;
         try {
             super.onRestore(data, appVersionCode, newState);
+            // The entities are only decoded while streaming, write them all at once.
+            mHelper.commitRestore();
             // If no favorite was migrated, clear the data and start fresh.
             final Cursor c = getContentResolver().query(
                     LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
@@ -24,6 +24,7 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -31,14 +32,15 @@ import android.content.pm.ResolveInfo;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import com.android.launcher3.IconCache.PreloadRequest;
 import com.android.launcher3.LauncherSettings.Favorites;
 import com.android.launcher3.LauncherSettings.WorkspaceScreens;
 import com.android.launcher3.backup.BackupProtos;
@@ -63,10 +65,17 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 
 /**
@@ -84,12 +93,22 @@ public class LauncherBackupHelper implements BackupHelper {
     // key (any Base64 encoded string).
     private static final String JOURNAL_KEY = "#";
 
-    /** icons are large, dribble them out */
-    private static final int MAX_ICONS_PER_PASS = 10;
+    /** icons are large, dribble them out, a full home screen still fits in a single pass */
+    private static final int MAX_ICON_BYTES_PER_PASS = 2 * 1024 * 1024;
 
     /** widgets contain previews, which are very large, dribble them out */
     private static final int MAX_WIDGETS_PER_PASS = 5;
 
+    /** icons and widgets are serialized on these threads, while the rows are written */
+    private static final int SERIALIZER_THREADS = 2;
+
+    /**
+     * Between two full passes, only the rows recorded in the journal of the launcher provider are
+     * backed up. A full pass also drops the icons and widgets which are not used anymore.
+     */
+    private static final long FULL_BACKUP_INTERVAL_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final String LAST_FULL_BACKUP_PREF = "launcher_last_full_backup";
+
     private static final String[] FAVORITE_PROJECTION = {
         Favorites._ID,                     // 0
         Favorites.MODIFIED,                // 1
@@ -142,6 +161,7 @@ public class LauncherBackupHelper implements BackupHelper {
     @Thunk final Context mContext;
     private final HashSet<String> mExistingKeys;
     private final ArrayList<Key> mKeys;
+    private final HashSet<String> mValidKeys = new HashSet<>();
     private final ItemTypeMatcher[] mItemTypeMatchers;
     private final long mUserSerial;
 
@@ -150,7 +170,14 @@ public class LauncherBackupHelper implements BackupHelper {
     private long mLastBackupRestoreTime;
     private boolean mBackupDataWasUpdated;
 
-    private IconCache mIconCache;
+    // Icons and widgets to write after the rows, serialized meanwhile on mSerializer
+    private final LinkedHashMap<String, PendingResource> mPendingIcons = new LinkedHashMap<>();
+    private final LinkedHashMap<String, PendingResource> mPendingWidgets =
+            new LinkedHashMap<>();
+    private final HashSet<Long> mDeferredFavorites = new HashSet<>();
+    private ExecutorService mSerializer;
+
+    @Thunk IconCache mIconCache;
     private DeviceProfieData mDeviceProfileData;
     private InvariantDeviceProfile mIdp;
 
@@ -160,6 +187,11 @@ public class LauncherBackupHelper implements BackupHelper {
     boolean restoreSuccessful;
     int restoredBackupVersion = 1;
 
+    // Rows and icons decoded by restoreEntity, written together by commitRestore
+    private final ArrayList<ContentValues> mRestoredFavorites = new ArrayList<>();
+    private final ArrayList<ContentValues> mRestoredScreens = new ArrayList<>();
+    private final ArrayList<PreloadRequest> mRestoredIcons = new ArrayList<>();
+
     // When migrating from a device which different hotseat configuration, the icons are shifted
     // to center along the new all-apps icon.
     private int mHotseatShift = 0;
@@ -226,24 +258,54 @@ public class LauncherBackupHelper implements BackupHelper {
 
         Log.v(TAG, "lastBackupTime = " + in.t);
         mKeys.clear();
+        mValidKeys.clear();
         applyJournal(in);
 
         // Record the time before performing backup so that entries edited while the backup
         // was going on, do not get missed in next backup.
         long newBackupTime = System.currentTimeMillis();
         mBackupDataWasUpdated = false;
+        mSerializer = Executors.newFixedThreadPool(SERIALIZER_THREADS);
         try {
-            backupFavorites(data);
-            backupScreens(data);
+            // Only look at the rows written since the last backup, when all of them are known.
+            LauncherProvider provider = LauncherAppState.getLauncherProvider();
+            HashSet<Long> changedFavorites = null;
+            HashSet<Long> changedScreens = null;
+            if (canBackupIncrementally(in, newBackupTime)) {
+                changedFavorites = provider.getChangedIds(
+                        LauncherProvider.TABLE_FAVORITES, mLastBackupRestoreTime);
+                changedScreens = provider.getChangedIds(
+                        LauncherProvider.TABLE_WORKSPACE_SCREENS, mLastBackupRestoreTime);
+            }
+            boolean fullPass = changedFavorites == null || changedScreens == null;
+            if (fullPass) {
+                changedFavorites = null;
+                changedScreens = null;
+            } else {
+                keepUnchangedKeys(in.key, changedFavorites, changedScreens);
+            }
+            if (DEBUG) Log.d(TAG, fullPass ? "full backup" : "incremental backup of "
+                    + changedFavorites.size() + " favorites and "
+                    + changedScreens.size() + " screens");
+
+            backupFavorites(data, changedFavorites);
+            backupScreens(data, changedScreens);
             backupIcons(data);
             backupWidgets(data);
 
-            // Delete any key which still exist in the old backup, but is not valid anymore.
-            HashSet<String> validKeys = new HashSet<String>();
-            for (Key key : mKeys) {
-                validKeys.add(keyToBackupKey(key));
+            if (!mDeferredFavorites.isEmpty()) {
+                // The icons or widgets of these favorites are left for the next pass.
+                provider.markChanged(LauncherProvider.TABLE_FAVORITES, mDeferredFavorites);
+                dataChanged();
+            }
+            // The writes before the last backup are covered by it.
+            provider.pruneBackupJournal(mLastBackupRestoreTime);
+            if (fullPass) {
+                getPrefs().edit().putLong(LAST_FULL_BACKUP_PREF, newBackupTime).apply();
             }
-            mExistingKeys.removeAll(validKeys);
+
+            // Delete any key which still exist in the old backup, but is not valid anymore.
+            mExistingKeys.removeAll(mValidKeys);
 
             // Delete anything left in the existing keys.
             for (String deleted: mExistingKeys) {
@@ -275,11 +337,54 @@ public class LauncherBackupHelper implements BackupHelper {
             }
         } catch (IOException e) {
             Log.e(TAG, "launcher backup has failed", e);
+        } finally {
+            mSerializer.shutdownNow();
+            mSerializer = null;
+            mPendingIcons.clear();
+            mPendingWidgets.clear();
+            mDeferredFavorites.clear();
+            mValidKeys.clear();
         }
 
         writeNewStateDescription(newState);
     }
 
+    /**
+     * @return true if the old state can be updated with only the rows changed since then.
+     */
+    private boolean canBackupIncrementally(Journal in, long now) {
+        return in.key != null && in.key.length > 0
+                && in.backupVersion == BACKUP_VERSION
+                && in.t > 0
+                && now - getPrefs().getLong(LAST_FULL_BACKUP_PREF, 0) < FULL_BACKUP_INTERVAL_MS;
+    }
+
+    /**
+     * Keeps the keys of the old state, other than the ones of the changed rows which are added
+     * back when the row still exists.
+     */
+    private void keepUnchangedKeys(Key[] keys, HashSet<Long> changedFavorites,
+            HashSet<Long> changedScreens) {
+        for (Key key : keys) {
+            if ((key.type == Key.FAVORITE && changedFavorites.contains(key.id))
+                    || (key.type == Key.SCREEN && changedScreens.contains(key.id))) {
+                continue;
+            }
+            addKey(key, keyToBackupKey(key));
+        }
+    }
+
+    private void addKey(Key key, String backupKey) {
+        if (mValidKeys.add(backupKey)) {
+            mKeys.add(key);
+        }
+    }
+
+    private SharedPreferences getPrefs() {
+        return mContext.getSharedPreferences(LauncherAppState.getSharedPreferencesKey(),
+                Context.MODE_PRIVATE);
+    }
+
     /**
      * @return true if the backup corresponding to oldstate can be successfully applied
      * to this device.
@@ -407,6 +512,47 @@ public class LauncherBackupHelper implements BackupHelper {
         }
     }
 
+    /**
+     * Writes everything decoded by {@link #restoreEntity} since the last commit: the screens and
+     * favorites in one transaction each, and the icons in a single transaction of the icon cache.
+     * Must be called once all the entities are restored.
+     */
+    public void commitRestore() {
+        try {
+            if (!restoreSuccessful) {
+                return;
+            }
+            ContentResolver cr = mContext.getContentResolver();
+            bulkInsert(cr, WorkspaceScreens.CONTENT_URI, mRestoredScreens);
+            bulkInsert(cr, Favorites.CONTENT_URI, mRestoredFavorites);
+            if (!mRestoredIcons.isEmpty()) {
+                mIconCache.preloadIcons(mRestoredIcons, mUserSerial, mIdp);
+            }
+            if (VERBOSE) Log.v(TAG, "restored " + mRestoredScreens.size() + " screens, "
+                    + mRestoredFavorites.size() + " favorites and "
+                    + mRestoredIcons.size() + " icons");
+        } finally {
+            mRestoredScreens.clear();
+            mRestoredFavorites.clear();
+            mRestoredIcons.clear();
+        }
+    }
+
+    private void bulkInsert(ContentResolver cr, Uri uri, ArrayList<ContentValues> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        ContentValues[] values = rows.toArray(new ContentValues[rows.size()]);
+        if (cr.bulkInsert(uri, values) == 0) {
+            // The batch is rolled back as a whole when a row can not be inserted, like a
+            // duplicate id. Insert the rows one by one so that only that row is lost.
+            Log.w(TAG, "bulk restore failed for " + uri + ", inserting rows individually");
+            for (ContentValues row : values) {
+                cr.insert(uri, row);
+            }
+        }
+    }
+
     /**
      * Record the restore state for the next backup.
      *
@@ -446,33 +592,51 @@ public class LauncherBackupHelper implements BackupHelper {
     }
 
     /**
-     * Write all modified favorites to the data stream.
+     * Write all modified favorites to the data stream, and queue the icons and widgets they need.
      *
      * @param data output stream for key/value pairs
+     * @param changedIds the favorites changed since the last backup, or null to look at all
      * @throws IOException
      */
-    private void backupFavorites(BackupDataOutput data) throws IOException {
+    private void backupFavorites(BackupDataOutput data, HashSet<Long> changedIds)
+            throws IOException {
+        if (changedIds != null && changedIds.isEmpty()) {
+            return;
+        }
         // persist things that have changed since the last backup
         ContentResolver cr = mContext.getContentResolver();
         // Don't backup apps in other profiles for now.
-        Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION,
-                getUserSelectionArg(), null, null);
+        String where = getUserSelectionArg();
+        if (changedIds != null) {
+            where += " AND " + Utilities.createDbSelectionQuery(Favorites._ID, changedIds);
+        }
+        Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION, where, null, null);
         try {
             cursor.moveToPosition(-1);
             while(cursor.moveToNext()) {
                 final long id = cursor.getLong(ID_INDEX);
                 final long updateTime = cursor.getLong(ID_MODIFIED);
                 Key key = getKey(Key.FAVORITE, id);
-                mKeys.add(key);
                 final String backupKey = keyToBackupKey(key);
+                addKey(key, backupKey);
 
                 // Favorite proto changed in v4. Backup again if the version is old.
-                if (!mExistingKeys.contains(backupKey) || updateTime >= mLastBackupRestoreTime
-                        || restoredBackupVersion < 4) {
+                if (changedIds != null || !mExistingKeys.contains(backupKey)
+                        || updateTime >= mLastBackupRestoreTime || restoredBackupVersion < 4) {
                     writeRowToBackup(key, packFavorite(cursor), data);
                 } else {
                     if (DEBUG) Log.d(TAG, "favorite already backup up: " + id);
                 }
+
+                switch (cursor.getInt(ITEM_TYPE_INDEX)) {
+                    case Favorites.ITEM_TYPE_APPLICATION:
+                    case Favorites.ITEM_TYPE_SHORTCUT:
+                        queueIcon(id, cursor.getString(INTENT_INDEX));
+                        break;
+                    case Favorites.ITEM_TYPE_APPWIDGET:
+                        queueWidget(id, cursor.getString(APPWIDGET_PROVIDER_INDEX));
+                        break;
+                }
             }
         } finally {
             cursor.close();
@@ -493,22 +657,27 @@ public class LauncherBackupHelper implements BackupHelper {
         if (DEBUG) Log.d(TAG, "read (" + buffer.length + "): " +
                 Base64.encodeToString(buffer, 0, dataSize, Base64.NO_WRAP));
 
-        ContentResolver cr = mContext.getContentResolver();
-        ContentValues values = unpackFavorite(buffer, dataSize);
-        cr.insert(Favorites.CONTENT_URI, values);
+        mRestoredFavorites.add(unpackFavorite(buffer, dataSize));
     }
 
     /**
      * Write all modified screens to the data stream.
      *
      * @param data output stream for key/value pairs
+     * @param changedIds the screens changed since the last backup, or null to look at all
      * @throws IOException
      */
-    private void backupScreens(BackupDataOutput data) throws IOException {
+    private void backupScreens(BackupDataOutput data, HashSet<Long> changedIds)
+            throws IOException {
+        if (changedIds != null && changedIds.isEmpty()) {
+            return;
+        }
         // persist things that have changed since the last backup
         ContentResolver cr = mContext.getContentResolver();
+        String where = changedIds == null ? null
+                : Utilities.createDbSelectionQuery(WorkspaceScreens._ID, changedIds);
         Cursor cursor = cr.query(WorkspaceScreens.CONTENT_URI, SCREEN_PROJECTION,
-                null, null, null);
+                where, null, null);
         try {
             cursor.moveToPosition(-1);
             if (DEBUG) Log.d(TAG, "dumping screens after: " + mLastBackupRestoreTime);
@@ -516,9 +685,10 @@ public class LauncherBackupHelper implements BackupHelper {
                 final long id = cursor.getLong(ID_INDEX);
                 final long updateTime = cursor.getLong(ID_MODIFIED);
                 Key key = getKey(Key.SCREEN, id);
-                mKeys.add(key);
                 final String backupKey = keyToBackupKey(key);
-                if (!mExistingKeys.contains(backupKey) || updateTime >= mLastBackupRestoreTime) {
+                addKey(key, backupKey);
+                if (changedIds != null || !mExistingKeys.contains(backupKey)
+                        || updateTime >= mLastBackupRestoreTime) {
                     writeRowToBackup(key, packScreen(cursor), data);
                 } else {
                     if (VERBOSE) Log.v(TAG, "screen already backup up " + id);
@@ -543,76 +713,75 @@ public class LauncherBackupHelper implements BackupHelper {
         if (DEBUG) Log.d(TAG, "read (" + buffer.length + "): " +
                 Base64.encodeToString(buffer, 0, dataSize, Base64.NO_WRAP));
 
-        ContentResolver cr = mContext.getContentResolver();
-        ContentValues values = unpackScreen(buffer, dataSize);
-        cr.insert(WorkspaceScreens.CONTENT_URI, values);
+        mRestoredScreens.add(unpackScreen(buffer, dataSize));
     }
 
     /**
-     * Write all the static icon resources we need to render placeholders
-     * for a package that is not installed.
+     * Queue the static icon resource we need to render a placeholder for a favorite whose
+     * package is not installed, unless it is already backed up. The icon is serialized on
+     * {@link #mSerializer} while the rows are written.
      *
-     * @param data output stream for key/value pairs
+     * @param id the favorite using the icon
+     * @param intentDescription the intent of the favorite
      */
-    private void backupIcons(BackupDataOutput data) throws IOException {
-        // persist icons that haven't been persisted yet
-        final ContentResolver cr = mContext.getContentResolver();
-        final int dpi = mContext.getResources().getDisplayMetrics().densityDpi;
-        final UserHandleCompat myUserHandle = UserHandleCompat.myUserHandle();
-        int backupUpIconCount = 0;
-
-        // Don't backup apps in other profiles for now.
-        String where = "(" + Favorites.ITEM_TYPE + "=" + Favorites.ITEM_TYPE_APPLICATION + " OR " +
-                Favorites.ITEM_TYPE + "=" + Favorites.ITEM_TYPE_SHORTCUT + ") AND " +
-                getUserSelectionArg();
-        Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION,
-                where, null, null);
+    private void queueIcon(long id, String intentDescription) {
         try {
-            cursor.moveToPosition(-1);
-            while(cursor.moveToNext()) {
-                final long id = cursor.getLong(ID_INDEX);
-                final String intentDescription = cursor.getString(INTENT_INDEX);
-                try {
-                    Intent intent = Intent.parseUri(intentDescription, 0);
-                    ComponentName cn = intent.getComponent();
-                    Key key = null;
-                    String backupKey = null;
-                    if (cn != null) {
-                        key = getKey(Key.ICON, cn.flattenToShortString());
-                        backupKey = keyToBackupKey(key);
-                    } else {
-                        Log.w(TAG, "empty intent on application favorite: " + id);
-                    }
-                    if (mExistingKeys.contains(backupKey)) {
-                        if (DEBUG) Log.d(TAG, "already saved icon " + backupKey);
-
-                        // remember that we already backed this up previously
-                        mKeys.add(key);
-                    } else if (backupKey != null) {
-                        if (DEBUG) Log.d(TAG, "I can count this high: " + backupUpIconCount);
-                        if (backupUpIconCount < MAX_ICONS_PER_PASS) {
-                            if (DEBUG) Log.d(TAG, "saving icon " + backupKey);
-                            Bitmap icon = mIconCache.getIcon(intent, myUserHandle);
-                            if (icon != null && !mIconCache.isDefaultIcon(icon, myUserHandle)) {
-                                writeRowToBackup(key, packIcon(dpi, icon), data);
-                                mKeys.add(key);
-                                backupUpIconCount ++;
+            final Intent intent = Intent.parseUri(intentDescription, 0);
+            ComponentName cn = intent.getComponent();
+            if (cn == null) {
+                Log.w(TAG, "empty intent on application favorite: " + id);
+                return;
+            }
+            Key key = getKey(Key.ICON, cn.flattenToShortString());
+            String backupKey = keyToBackupKey(key);
+            if (mExistingKeys.contains(backupKey)) {
+                if (DEBUG) Log.d(TAG, "already saved icon " + backupKey);
+
+                // remember that we already backed this up previously
+                addKey(key, backupKey);
+            } else if (!mPendingIcons.containsKey(backupKey)) {
+                final int dpi = mContext.getResources().getDisplayMetrics().densityDpi;
+                final UserHandleCompat myUserHandle = UserHandleCompat.myUserHandle();
+                mPendingIcons.put(backupKey, new PendingResource(key, backupKey, id,
+                        mSerializer.submit(new Callable<MessageNano>() {
+                            @Override
+                            public MessageNano call() {
+                                Bitmap icon = mIconCache.getIcon(intent, myUserHandle);
+                                if (icon == null || mIconCache.isDefaultIcon(icon, myUserHandle)) {
+                                    return null;
+                                }
+                                return packIcon(dpi, icon);
                             }
-                        } else {
-                            if (VERBOSE) Log.v(TAG, "deferring icon backup " + backupKey);
-                            // too many icons for this pass, request another.
-                            dataChanged();
-                        }
-                    }
-                } catch (URISyntaxException e) {
-                    Log.e(TAG, "invalid URI on application favorite: " + id);
-                } catch (IOException e) {
-                    Log.e(TAG, "unable to save application icon for favorite: " + id);
-                }
+                        })));
+            }
+        } catch (URISyntaxException e) {
+            Log.e(TAG, "invalid URI on application favorite: " + id);
+        }
+    }
 
+    /**
+     * Write all the static icon resources queued by {@link #backupFavorites}, in the order of the
+     * favorites, up to {@link #MAX_ICON_BYTES_PER_PASS}.
+     *
+     * @param data output stream for key/value pairs
+     */
+    private void backupIcons(BackupDataOutput data) throws IOException {
+        int backupIconBytes = 0;
+        for (PendingResource pending : mPendingIcons.values()) {
+            if (backupIconBytes >= MAX_ICON_BYTES_PER_PASS) {
+                if (VERBOSE) Log.v(TAG, "deferring icon backup " + pending.backupKey);
+                // too many icons for this pass, request another.
+                pending.proto.cancel(true);
+                mDeferredFavorites.add(pending.favoriteId);
+                continue;
+            }
+            Resource icon = (Resource) getSerialized(pending);
+            if (icon != null) {
+                if (DEBUG) Log.d(TAG, "saving icon " + pending.backupKey);
+                writeRowToBackup(pending.key, icon, data);
+                addKey(pending.key, pending.backupKey);
+                backupIconBytes += icon.getSerializedSize();
             }
-        } finally {
-            cursor.close();
         }
     }
 
@@ -634,71 +803,84 @@ public class LauncherBackupHelper implements BackupHelper {
         if (DEBUG) {
             Log.d(TAG, "unpacked " + res.dpi + " dpi icon");
         }
-        Bitmap icon = BitmapFactory.decodeByteArray(res.data, 0, res.data.length);
-        if (icon == null) {
-            Log.w(TAG, "failed to unpack icon for " + key.name);
-        } else {
-            if (VERBOSE) Log.v(TAG, "saving restored icon as: " + key.name);
-            mIconCache.preloadIcon(ComponentName.unflattenFromString(key.name), icon, res.dpi,
-                    "" /* label */, mUserSerial, mIdp);
+        if (VERBOSE) Log.v(TAG, "saving restored icon as: " + key.name);
+        mRestoredIcons.add(new PreloadRequest(ComponentName.unflattenFromString(key.name),
+                res.data, res.dpi, "" /* label */));
+    }
+
+    /**
+     * Queue the static widget resources we need to render a placeholder for a widget whose
+     * package is not installed, unless they are already backed up. The widget is serialized on
+     * {@link #mSerializer} while the rows are written.
+     *
+     * @param id the favorite of the widget
+     * @param providerName the provider of the widget
+     */
+    private void queueWidget(long id, String providerName) {
+        final ComponentName provider = ComponentName.unflattenFromString(providerName);
+        if (provider == null) {
+            Log.w(TAG, "empty intent on appwidget: " + id);
+            return;
+        }
+        Key key = getKey(Key.WIDGET, providerName);
+        String backupKey = keyToBackupKey(key);
+
+        // Widget backup proto changed in v3. So add it again if the original backup is old.
+        if (mExistingKeys.contains(backupKey) && restoredBackupVersion >= 3) {
+            if (DEBUG) Log.d(TAG, "already saved widget " + backupKey);
+
+            // remember that we already backed this up previously
+            addKey(key, backupKey);
+        } else if (!mPendingWidgets.containsKey(backupKey)) {
+            if (DEBUG) Log.d(TAG, "I can count this high: " + mPendingWidgets.size());
+            if (mPendingWidgets.size() < MAX_WIDGETS_PER_PASS) {
+                final int dpi = mContext.getResources().getDisplayMetrics().densityDpi;
+                final UserHandleCompat user = UserHandleCompat.myUserHandle();
+                mPendingWidgets.put(backupKey, new PendingResource(key, backupKey, id,
+                        mSerializer.submit(new Callable<MessageNano>() {
+                            @Override
+                            public MessageNano call() {
+                                return packWidget(dpi, provider, user);
+                            }
+                        })));
+            } else {
+                if (VERBOSE) Log.v(TAG, "deferring widget backup " + backupKey);
+                // too many widgets for this pass, request another.
+                mDeferredFavorites.add(id);
+            }
         }
     }
 
     /**
-     * Write all the static widget resources we need to render placeholders
-     * for a package that is not installed.
+     * Write all the static widget resources queued by {@link #backupFavorites}.
      *
      * @param data output stream for key/value pairs
      * @throws IOException
      */
     private void backupWidgets(BackupDataOutput data) throws IOException {
-        // persist static widget info that hasn't been persisted yet
-        final ContentResolver cr = mContext.getContentResolver();
-        final int dpi = mContext.getResources().getDisplayMetrics().densityDpi;
-        int backupWidgetCount = 0;
-
-        String where = Favorites.ITEM_TYPE + "=" + Favorites.ITEM_TYPE_APPWIDGET + " AND "
-                + getUserSelectionArg();
-        Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION,
-                where, null, null);
-        try {
-            cursor.moveToPosition(-1);
-            while(cursor.moveToNext()) {
-                final long id = cursor.getLong(ID_INDEX);
-                final String providerName = cursor.getString(APPWIDGET_PROVIDER_INDEX);
-                final ComponentName provider = ComponentName.unflattenFromString(providerName);
-                Key key = null;
-                String backupKey = null;
-                if (provider != null) {
-                    key = getKey(Key.WIDGET, providerName);
-                    backupKey = keyToBackupKey(key);
-                } else {
-                    Log.w(TAG, "empty intent on appwidget: " + id);
-                }
-
-                // Widget backup proto changed in v3. So add it again if the original backup is old.
-                if (mExistingKeys.contains(backupKey) && restoredBackupVersion >= 3) {
-                    if (DEBUG) Log.d(TAG, "already saved widget " + backupKey);
-
-                    // remember that we already backed this up previously
-                    mKeys.add(key);
-                } else if (backupKey != null) {
-                    if (DEBUG) Log.d(TAG, "I can count this high: " + backupWidgetCount);
-                    if (backupWidgetCount < MAX_WIDGETS_PER_PASS) {
-                        if (DEBUG) Log.d(TAG, "saving widget " + backupKey);
-                        UserHandleCompat user = UserHandleCompat.myUserHandle();
-                        writeRowToBackup(key, packWidget(dpi, provider, user), data);
-                        mKeys.add(key);
-                        backupWidgetCount ++;
-                    } else {
-                        if (VERBOSE) Log.v(TAG, "deferring widget backup " + backupKey);
-                        // too many widgets for this pass, request another.
-                        dataChanged();
-                    }
-                }
+        for (PendingResource pending : mPendingWidgets.values()) {
+            MessageNano widget = getSerialized(pending);
+            if (widget != null) {
+                if (DEBUG) Log.d(TAG, "saving widget " + pending.backupKey);
+                writeRowToBackup(pending.key, widget, data);
+                addKey(pending.key, pending.backupKey);
             }
-        } finally {
-            cursor.close();
+        }
+    }
+
+    /**
+     * Waits for a queued icon or widget to be serialized.
+     * @return the serialized proto, or null if there is nothing to back up.
+     */
+    private MessageNano getSerialized(PendingResource pending) throws IOException {
+        try {
+            return pending.proto.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while serializing " + pending.backupKey);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "unable to serialize resource for favorite: " + pending.favoriteId,
+                    e.getCause());
+            return null;
         }
     }
 
@@ -718,14 +900,9 @@ public class LauncherBackupHelper implements BackupHelper {
         Widget widget = unpackProto(new Widget(), buffer, dataSize);
         if (DEBUG) Log.d(TAG, "unpacked " + widget.provider);
         if (widget.icon.data != null)  {
-            Bitmap icon = BitmapFactory
-                    .decodeByteArray(widget.icon.data, 0, widget.icon.data.length);
-            if (icon == null) {
-                Log.w(TAG, "failed to unpack widget icon for " + key.name);
-            } else {
-                mIconCache.preloadIcon(ComponentName.unflattenFromString(widget.provider),
-                        icon, widget.icon.dpi, widget.label, mUserSerial, mIdp);
-            }
+            mRestoredIcons.add(new PreloadRequest(
+                    ComponentName.unflattenFromString(widget.provider),
+                    widget.icon.data, widget.icon.dpi, widget.label));
         }
 
         // Cache widget min sizes incase migration is required.
@@ -1000,7 +1177,7 @@ public class LauncherBackupHelper implements BackupHelper {
     }
 
     /** Serialize an icon Resource for persistence, including a checksum wrapper. */
-    private Resource packIcon(int dpi, Bitmap icon) {
+    @Thunk Resource packIcon(int dpi, Bitmap icon) {
         Resource res = new Resource();
         res.dpi = dpi;
         res.data = Utilities.flattenBitmap(icon);
@@ -1008,7 +1185,7 @@ public class LauncherBackupHelper implements BackupHelper {
     }
 
     /** Serialize a widget for persistence, including a checksum wrapper. */
-    private Widget packWidget(int dpi, ComponentName provider, UserHandleCompat user) {
+    @Thunk Widget packWidget(int dpi, ComponentName provider, UserHandleCompat user) {
         final LauncherAppWidgetProviderInfo info =
                 LauncherModel.getProviderInfo(mContext, provider, user);
         Widget widget = new Widget();
@@ -1177,7 +1354,8 @@ public class LauncherBackupHelper implements BackupHelper {
      */
     private boolean launcherIsReady() {
         ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION, null, null, null);
+        Cursor cursor = cr.query(Favorites.CONTENT_URI, new String[] {Favorites._ID},
+                Favorites._ID + "=-1", null, null);
         if (cursor == null) {
             // launcher data has been wiped, do nothing
             return false;
@@ -1197,6 +1375,23 @@ public class LauncherBackupHelper implements BackupHelper {
                 .getSerialNumberForUser(UserHandleCompat.myUserHandle());
     }
 
+    /**
+     * An icon or widget queued for the backup, serialized in the background.
+     */
+    private static class PendingResource {
+        final Key key;
+        final String backupKey;
+        final long favoriteId;
+        final Future<MessageNano> proto;
+
+        PendingResource(Key key, String backupKey, long favoriteId, Future<MessageNano> proto) {
+            this.key = key;
+            this.backupKey = backupKey;
+            this.favoriteId = favoriteId;
+            this.proto = proto;
+        }
+    }
+
     @Thunk class InvalidBackupException extends IOException {
 
         private static final long serialVersionUID = 8931456637211665082L;
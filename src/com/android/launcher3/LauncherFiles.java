@@ -25,6 +25,9 @@ public class LauncherFiles {
     public static final String WALLPAPER_IMAGES_DB = "saved_wallpaper_images.db";
     public static final String WIDGET_PREVIEWS_DB = "widgetpreviews.db";
     public static final String APP_ICONS_DB = "app_icons.db";
+    public static final String WORKSPACE_SNAPSHOT = "workspace.snapshot";
+    public static final String INSTALL_QUEUE_DB = "install_queue.db";
+    public static final String MANAGED_USER_PACKAGES = "managed_user_packages";
 
     public static final List<String> ALL_FILES = Collections.unmodifiableList(Arrays.asList(
             DEFAULT_WALLPAPER_THUMBNAIL,
@@ -35,7 +38,10 @@ public class LauncherFiles {
             WALLPAPER_IMAGES_DB,
             WIDGET_PREVIEWS_DB,
             MANAGED_USER_PREFERENCES_KEY,
-            APP_ICONS_DB));
+            APP_ICONS_DB,
+            WORKSPACE_SNAPSHOT,
+            INSTALL_QUEUE_DB,
+            MANAGED_USER_PACKAGES));
 
     // TODO: Delete these files on upgrade
     public static final List<String> OBSOLETE_FILES = Collections.unmodifiableList(Arrays.asList(
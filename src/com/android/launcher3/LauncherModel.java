@@ -59,15 +59,19 @@ import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.model.MigrateFromRestoreTask;
 import com.android.launcher3.model.WidgetsModel;
+import com.android.launcher3.model.WorkspaceSnapshot;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.CursorIconInfo;
 import com.android.launcher3.util.LongArrayMap;
 import com.android.launcher3.util.ManagedProfileHeuristic;
+import com.android.launcher3.util.StartupTrace;
 import com.android.launcher3.util.Thunk;
 import cyanogenmod.providers.CMSettings;
 
 import com.android.launcher3.settings.SettingsProvider;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.security.InvalidParameterException;
@@ -128,6 +132,9 @@ public class LauncherModel extends BroadcastReceiver
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
     @Thunk boolean mWorkspaceLoaded;
+    // Whether the workspace snapshot was considered, which is only done by the first load of the
+    // process, as a reload must not show an older state than the one bound.
+    @Thunk boolean mWorkspaceSnapshotChecked;
     @Thunk boolean mAllAppsLoaded;
 
     // When we are loading pages synchronously, we can't just post the binding of items on the side
@@ -279,6 +286,115 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    static File getWorkspaceSnapshotFile(Context context) {
+        return new File(context.getFilesDir(), LauncherFiles.WORKSPACE_SNAPSHOT);
+    }
+
+    /**
+     * Deletes the workspace snapshot if it was written before {@param changedAt}, since it might
+     * not match the database anymore.
+     */
+    static void invalidateWorkspaceSnapshot(Context context, long changedAt) {
+        File file = getWorkspaceSnapshotFile(context);
+        if (file.exists() && file.lastModified() <= changedAt) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes the workspace snapshot again after a change of the database, when the loaded
+     * workspace includes it. Otherwise the next full bind writes it. Called on the worker thread.
+     */
+    void updateWorkspaceSnapshot() {
+        if (mWorkspaceLoaded && !mIsLoaderTaskRunning) {
+            writeWorkspaceSnapshot();
+        }
+    }
+
+    /**
+     * Writes the {@link WorkspaceSnapshot} of the bound workspace, which binds its current page on
+     * the next start. Only apps, shortcuts and the visible folders are kept.
+     */
+    @Thunk void writeWorkspaceSnapshot() {
+        Context context = mApp.getContext();
+        ArrayList<Long> screenIds;
+        ArrayList<WorkspaceSnapshot.Item> items = new ArrayList<>();
+        synchronized (sBgLock) {
+            // Only the loader lists are read, as the contents of the bound folders are changed on
+            // the UI thread. Folder contents are in sBgItemsIdMap, with the folder as container.
+            screenIds = new ArrayList<Long>(sBgWorkspaceScreens);
+            LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+            ArrayList<ItemInfo> shortcuts = new ArrayList<ItemInfo>();
+            for (ItemInfo info : sBgWorkspaceItems) {
+                if (info instanceof FolderInfo) {
+                    FolderInfo folder = (FolderInfo) info;
+                    if (!folder.isRemote() && !folder.hidden) {
+                        folders.put(folder.id, folder);
+                        items.add(toSnapshotItem(folder));
+                    }
+                } else if (info instanceof ShortcutInfo
+                        && isSnapshotShortcut((ShortcutInfo) info)) {
+                    shortcuts.add(info);
+                }
+            }
+            for (ItemInfo info : sBgItemsIdMap) {
+                if (info instanceof ShortcutInfo && folders.get(info.container) != null
+                        && isSnapshotShortcut((ShortcutInfo) info)) {
+                    shortcuts.add(info);
+                }
+            }
+            for (ItemInfo info : shortcuts) {
+                items.add(toSnapshotItem(info));
+            }
+        }
+
+        InvariantDeviceProfile profile = mApp.getInvariantDeviceProfile();
+        WorkspaceSnapshot snapshot = new WorkspaceSnapshot(profile.numColumns, profile.numRows,
+                (int) profile.numHotseatIcons, screenIds, items);
+        File file = getWorkspaceSnapshotFile(context);
+        try {
+            snapshot.write(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the workspace snapshot", e);
+            file.delete();
+        }
+    }
+
+    private static boolean isSnapshotShortcut(ShortcutInfo info) {
+        return (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                || info.itemType == LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT)
+                && info.status == ShortcutInfo.DEFAULT && info.isDisabled == ShortcutInfo.DEFAULT
+                && info.intent != null;
+    }
+
+    private WorkspaceSnapshot.Item toSnapshotItem(ItemInfo info) {
+        WorkspaceSnapshot.Item item = new WorkspaceSnapshot.Item();
+        item.id = info.id;
+        item.itemType = info.itemType;
+        item.container = info.container;
+        item.screenId = info.screenId;
+        item.cellX = info.cellX;
+        item.cellY = info.cellY;
+        item.spanX = info.spanX;
+        item.spanY = info.spanY;
+        item.rank = info.rank;
+        item.userSerial = mUserManager.getSerialNumberForUser(info.user);
+        if (info.title != null) {
+            item.title = info.title.toString();
+        }
+        if (info instanceof FolderInfo) {
+            item.options = ((FolderInfo) info).options;
+        } else {
+            ShortcutInfo shortcut = (ShortcutInfo) info;
+            item.intent = shortcut.intent.toUri(0);
+            if (shortcut.iconResource != null && !shortcut.customIcon) {
+                item.iconPackage = shortcut.iconResource.packageName;
+                item.iconResource = shortcut.iconResource.resourceName;
+            }
+        }
+        return item;
+    }
+
     boolean canMigrateFromOldLauncherDb(Launcher launcher) {
         return mOldContentProviderExists && !launcher.isLauncherPreinstalled() ;
     }
@@ -1471,6 +1587,15 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Returns whether there are pages left to bind after the synchronously loaded page was drawn.
+     */
+    boolean hasRemainingSynchronousPages() {
+        synchronized (mDeferredBindRunnables) {
+            return !mDeferredBindRunnables.isEmpty();
+        }
+    }
+
     void bindRemainingSynchronousPages() {
         // Post the remaining side pages to be loaded
         if (!mDeferredBindRunnables.isEmpty()) {
@@ -1552,7 +1677,19 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             if (!mWorkspaceLoaded) {
-                loadWorkspace();
+                if (!mWorkspaceSnapshotChecked) {
+                    // Show the current page as it was last bound, while the workspace is loading
+                    // on a cold start.
+                    mWorkspaceSnapshotChecked = true;
+                    bindWorkspaceSnapshot();
+                }
+
+                final long traceStart = StartupTrace.begin(StartupTrace.PHASE_LOAD_WORKSPACE);
+                try {
+                    loadWorkspace();
+                } finally {
+                    StartupTrace.end(StartupTrace.PHASE_LOAD_WORKSPACE, traceStart);
+                }
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
@@ -1565,6 +1702,185 @@ public class LauncherModel extends BroadcastReceiver
             bindWorkspace(-1);
         }
 
+        /**
+         * Binds the current page from the {@link WorkspaceSnapshot} of the last bound workspace,
+         * before the workspace is loaded. {@link #bindWorkspace(int)} binds everything again once
+         * it is loaded, which reconciles the page with the database. Widgets are left to it.
+         */
+        private void bindWorkspaceSnapshot() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return;
+            }
+            final long traceStart = System.nanoTime();
+            final File file = getWorkspaceSnapshotFile(mContext);
+            WorkspaceSnapshot snapshot;
+            try {
+                snapshot = WorkspaceSnapshot.read(file);
+            } catch (IOException e) {
+                if (file.exists()) {
+                    Log.w(TAG, "Ignoring the workspace snapshot", e);
+                    file.delete();
+                }
+                return;
+            }
+            InvariantDeviceProfile profile = mApp.getInvariantDeviceProfile();
+            if (snapshot.numColumns != profile.numColumns || snapshot.numRows != profile.numRows
+                    || snapshot.numHotseatIcons != (int) profile.numHotseatIcons) {
+                file.delete();
+                return;
+            }
+
+            final ArrayList<Long> orderedScreenIds = snapshot.screenIds;
+            int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            final long currentScreenId = currentScreen >= 0
+                    && currentScreen < orderedScreenIds.size()
+                    ? orderedScreenIds.get(currentScreen) : INVALID_SCREEN_ID;
+
+            // Folders come before their contents in the snapshot
+            final ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+            final LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+            final LongArrayMap<ShortcutInfo> rowIcons = new LongArrayMap<>();
+            for (WorkspaceSnapshot.Item item : snapshot.items) {
+                FolderInfo parent = null;
+                if (item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                        && (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP
+                        || item.screenId != currentScreenId)) {
+                    parent = folders.get(item.container);
+                    if (parent == null) {
+                        // Not on the current page
+                        continue;
+                    }
+                }
+                ItemInfo info = createSnapshotItem(item, rowIcons);
+                if (info == null) {
+                    continue;
+                }
+                if (parent != null) {
+                    parent.add((ShortcutInfo) info);
+                } else {
+                    items.add(info);
+                    if (info instanceof FolderInfo) {
+                        folders.put(info.id, (FolderInfo) info);
+                    }
+                }
+            }
+            loadSnapshotRowIcons(rowIcons);
+            sortWorkspaceItemsSpatially(items);
+
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.startBinding();
+                        callbacks.bindScreens(orderedScreenIds);
+                        callbacks.bindItems(items, 0, items.size(), false);
+                        if (!folders.isEmpty()) {
+                            callbacks.bindFolders(folders);
+                        }
+                    }
+                    StartupTrace.record(StartupTrace.PHASE_BIND_SNAPSHOT, traceStart);
+                }
+            });
+        }
+
+        /**
+         * Creates the app, shortcut or folder of a snapshot item, or returns null if it can not
+         * be shown anymore. Shortcuts whose icon is stored in their row are added to
+         * {@param rowIcons}.
+         */
+        private ItemInfo createSnapshotItem(WorkspaceSnapshot.Item item,
+                LongArrayMap<ShortcutInfo> rowIcons) {
+            UserHandleCompat user = mUserManager.getUserForSerialNumber(item.userSerial);
+            if (user == null) {
+                return null;
+            }
+            final ItemInfo info;
+            if (item.itemType == LauncherSettings.Favorites.ITEM_TYPE_FOLDER) {
+                FolderInfo folder = new FolderInfo();
+                folder.title = item.title;
+                folder.options = item.options;
+                info = folder;
+            } else {
+                Intent intent;
+                try {
+                    intent = Intent.parseUri(item.intent, 0);
+                } catch (URISyntaxException e) {
+                    return null;
+                }
+                ShortcutInfo shortcut;
+                if (item.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                    shortcut = getAppShortcutInfo(mContext.getPackageManager(), intent, user,
+                            mContext, null, -1, -1, false, false);
+                    if (shortcut == null) {
+                        return null;
+                    }
+                } else {
+                    shortcut = new ShortcutInfo();
+                    shortcut.itemType = item.itemType;
+                    shortcut.user = user;
+                    shortcut.title = item.title;
+                    Bitmap icon = null;
+                    if (item.iconPackage != null || item.iconResource != null) {
+                        shortcut.iconResource = new ShortcutIconResource();
+                        shortcut.iconResource.packageName = item.iconPackage;
+                        shortcut.iconResource.resourceName = item.iconResource;
+                        icon = Utilities.createIconBitmap(item.iconPackage, item.iconResource,
+                                mContext);
+                    }
+                    if (icon == null) {
+                        icon = mIconCache.getDefaultIcon(user);
+                        rowIcons.put(item.id, shortcut);
+                    }
+                    shortcut.setIcon(icon);
+                }
+                shortcut.intent = intent;
+                info = shortcut;
+            }
+            info.id = item.id;
+            info.container = item.container;
+            info.screenId = item.screenId;
+            info.cellX = item.cellX;
+            info.cellY = item.cellY;
+            info.spanX = item.spanX;
+            info.spanY = item.spanY;
+            info.rank = item.rank;
+            return info;
+        }
+
+        /**
+         * Loads the icons of the snapshot shortcuts which are stored in their row, with one query.
+         */
+        private void loadSnapshotRowIcons(LongArrayMap<ShortcutInfo> rowIcons) {
+            if (rowIcons.isEmpty()) {
+                return;
+            }
+            ArrayList<Long> ids = new ArrayList<Long>();
+            for (int i = 0; i < rowIcons.size(); i++) {
+                ids.add(rowIcons.keyAt(i));
+            }
+            Cursor c = mContext.getContentResolver().query(
+                    LauncherSettings.Favorites.CONTENT_URI,
+                    new String[] {LauncherSettings.Favorites._ID, LauncherSettings.Favorites.ICON},
+                    Utilities.createDbSelectionQuery(LauncherSettings.Favorites._ID, ids),
+                    null, null);
+            if (c == null) {
+                return;
+            }
+            try {
+                while (c.moveToNext()) {
+                    ShortcutInfo shortcut = rowIcons.get(c.getLong(0));
+                    Bitmap icon = Utilities.createIconBitmap(c, 1, mContext);
+                    if (shortcut != null && icon != null) {
+                        shortcut.setIcon(icon);
+                        shortcut.customIcon = true;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
         private void waitForIdle() {
             // Wait until the either we're stopped or the other threads are done.
             // This way we don't start loading all apps until the workspace has settled
@@ -1628,6 +1944,7 @@ public class LauncherModel extends BroadcastReceiver
             // operations from the previous activity.  We need to ensure that all queued operations
             // are executed before any synchronous binding work is done.
             mHandler.flush();
+            StartupTrace.startRebind();
 
             // Divide the set of loaded items into those that we are binding synchronously, and
             // everything else that is to be bound normally (asynchronously).
@@ -1644,6 +1961,7 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 mIsLoaderTaskRunning = true;
             }
+            StartupTrace.startRun();
             // Optimize for end-user experience: if the Launcher is up and // running with the
             // All Apps interface in the foreground, load All Apps first. Otherwise, load the
             // workspace first (default).
@@ -1974,6 +2292,7 @@ public class LauncherModel extends BroadcastReceiver
                 final ArrayList<Long> restoredRows = new ArrayList<Long>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
+                final long readTraceStart = StartupTrace.begin(StartupTrace.PHASE_READ_ITEMS);
                 final Cursor c = contentResolver.query(contentUri, null, null, null, null);
 
                 // +1 for the hotseat (it can be larger than the workspace)
@@ -2180,6 +2499,7 @@ public class LauncherModel extends BroadcastReceiver
                                 boolean useLowResIcon = container >= 0 &&
                                         c.getInt(rankIndex) >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
 
+                                final long iconTraceStart = System.nanoTime();
                                 if (itemReplaced) {
                                     if (user.equals(UserHandleCompat.myUserHandle())) {
                                         info = getAppShortcutInfo(manager, intent, user, context, null,
@@ -2223,6 +2543,8 @@ public class LauncherModel extends BroadcastReceiver
                                             Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
                                     }
                                 }
+                                StartupTrace.accumulate(StartupTrace.PHASE_ICON_DECODE,
+                                        iconTraceStart);
 
                                 if (info != null) {
                                     info.id = id;
@@ -2459,6 +2781,8 @@ public class LauncherModel extends BroadcastReceiver
                     if (c != null) {
                         c.close();
                     }
+                    StartupTrace.end(StartupTrace.PHASE_READ_ITEMS, readTraceStart);
+                    StartupTrace.flushAccumulated(StartupTrace.PHASE_ICON_DECODE);
                 }
 
                 // Break early if we've stopped loading
@@ -2917,6 +3241,7 @@ public class LauncherModel extends BroadcastReceiver
          */
         private void bindWorkspace(int synchronizeBindPage) {
             final long t = SystemClock.uptimeMillis();
+            final long traceStart = System.nanoTime();
             Runnable r;
 
             // Don't use these two variables in any of the callback runnables.
@@ -2997,6 +3322,11 @@ public class LauncherModel extends BroadcastReceiver
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
                     currentFolders, null);
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    StartupTrace.record(StartupTrace.PHASE_BIND_PAGE, traceStart);
+                }
+            });
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -3037,7 +3367,15 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
 
+                    // Keep what was bound for the next start
+                    runOnWorkerThread(new Runnable() {
+                        public void run() {
+                            writeWorkspaceSnapshot();
+                        }
+                    });
+
                     // If we're profiling, ensure this is the last thing in the queue.
+                    StartupTrace.record(StartupTrace.PHASE_BIND_WORKSPACE, traceStart);
                     if (DEBUG_LOADERS) {
                         Log.d(TAG, "bound workspace in "
                             + (SystemClock.uptimeMillis()-t) + "ms");
@@ -3059,7 +3397,12 @@ public class LauncherModel extends BroadcastReceiver
                 Log.d(TAG, "loadAndBindAllApps mAllAppsLoaded=" + mAllAppsLoaded);
             }
             if (!mAllAppsLoaded) {
-                loadAllApps();
+                final long traceStart = StartupTrace.begin(StartupTrace.PHASE_LOAD_ALL_APPS);
+                try {
+                    loadAllApps();
+                } finally {
+                    StartupTrace.end(StartupTrace.PHASE_LOAD_ALL_APPS, traceStart);
+                }
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
@@ -3150,7 +3493,13 @@ public class LauncherModel extends BroadcastReceiver
             for (UserHandleCompat user : profiles) {
                 // Query for the set of apps
                 final long qiaTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
+                final long queryTraceStart = StartupTrace.begin(StartupTrace.PHASE_QUERY_APPS);
+                final List<LauncherActivityInfoCompat> apps;
+                try {
+                    apps = mLauncherApps.getActivityList(null, user);
+                } finally {
+                    StartupTrace.end(StartupTrace.PHASE_QUERY_APPS, queryTraceStart);
+                }
                 if (DEBUG_LOADERS) {
                     Log.d(TAG, "getActivityList took "
                             + (SystemClock.uptimeMillis()-qiaTime) + "ms for user " + user);
@@ -3166,8 +3515,11 @@ public class LauncherModel extends BroadcastReceiver
                 for (int i = 0; i < apps.size(); i++) {
                     LauncherActivityInfoCompat app = apps.get(i);
                     // This builds the icon bitmaps.
+                    final long iconTraceStart = System.nanoTime();
                     mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache));
+                    StartupTrace.accumulate(StartupTrace.PHASE_ICON_DECODE, iconTraceStart);
                 }
+                StartupTrace.flushAccumulated(StartupTrace.PHASE_ICON_DECODE);
 
                 final ManagedProfileHeuristic heuristic = ManagedProfileHeuristic.get(mContext, user);
                 if (heuristic != null) {
@@ -3206,7 +3558,13 @@ public class LauncherModel extends BroadcastReceiver
                     final long bindTime = SystemClock.uptimeMillis();
                     final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
-                        callbacks.bindAllApplications(added);
+                        final long traceStart =
+                                StartupTrace.begin(StartupTrace.PHASE_BIND_ALL_APPS);
+                        try {
+                            callbacks.bindAllApplications(added);
+                        } finally {
+                            StartupTrace.end(StartupTrace.PHASE_BIND_ALL_APPS, traceStart);
+                        }
                         if (DEBUG_LOADERS) {
                             Log.d(TAG, "bound " + added.size() + " apps in "
                                 + (SystemClock.uptimeMillis() - bindTime) + "ms");
@@ -3810,12 +4168,17 @@ public class LauncherModel extends BroadcastReceiver
      * @see #loadAndBindWidgetsAndShortcuts
      */
     @Thunk void updateWidgetsModel(boolean refresh) {
-        PackageManager packageManager = mApp.getContext().getPackageManager();
-        final ArrayList<Object> widgetsAndShortcuts = new ArrayList<Object>();
-        widgetsAndShortcuts.addAll(getWidgetProviders(mApp.getContext(), refresh));
-        Intent shortcutsIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
-        widgetsAndShortcuts.addAll(packageManager.queryIntentActivities(shortcutsIntent, 0));
-        mBgWidgetsModel.setWidgetsAndShortcuts(widgetsAndShortcuts);
+        final long traceStart = StartupTrace.begin(StartupTrace.PHASE_LOAD_WIDGETS);
+        try {
+            PackageManager packageManager = mApp.getContext().getPackageManager();
+            final ArrayList<Object> widgetsAndShortcuts = new ArrayList<Object>();
+            widgetsAndShortcuts.addAll(getWidgetProviders(mApp.getContext(), refresh));
+            Intent shortcutsIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
+            widgetsAndShortcuts.addAll(packageManager.queryIntentActivities(shortcutsIntent, 0));
+            mBgWidgetsModel.setWidgetsAndShortcuts(widgetsAndShortcuts);
+        } finally {
+            StartupTrace.end(StartupTrace.PHASE_LOAD_WIDGETS, traceStart);
+        }
     }
 
     @Thunk static boolean isPackageDisabled(Context context, String packageName,
@@ -4090,6 +4453,24 @@ public class LauncherModel extends BroadcastReceiver
                 && (provider.provider.getPackageName() != null);
     }
 
+    /**
+     * Returns the number of workspace, hotseat and folder items in the model.
+     */
+    static int getItemCount() {
+        synchronized (sBgLock) {
+            return sBgItemsIdMap.size();
+        }
+    }
+
+    /**
+     * Returns the number of widgets in the model.
+     */
+    static int getAppWidgetCount() {
+        synchronized (sBgLock) {
+            return sBgAppWidgets.size();
+        }
+    }
+
     public void dumpState() {
         Log.d(TAG, "mCallbacks=" + mCallbacks);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.data", mBgAllAppsList.data);
@@ -36,6 +36,7 @@ import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -45,6 +46,7 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Process;
 import android.os.StrictMode;
 import android.os.SystemProperties;
@@ -59,42 +61,72 @@ import com.android.launcher3.LauncherSettings.Favorites;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.ProviderConfig;
+import com.android.launcher3.util.DatabaseTuning;
 import com.android.launcher3.util.ManagedProfileHeuristic;
+import com.android.launcher3.util.StartupTrace;
 import com.android.launcher3.util.Thunk;
 
 import java.io.File;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LauncherProvider extends ContentProvider {
     private static final String TAG = "LauncherProvider";
     private static final boolean LOGD = false;
 
-    private static final int DATABASE_VERSION = 29;
+    private static final int DATABASE_VERSION = 31;
 
     public static final String AUTHORITY = ProviderConfig.AUTHORITY;
 
     static final String TABLE_FAVORITES = LauncherSettings.Favorites.TABLE_NAME;
     static final String TABLE_WORKSPACE_SCREENS = LauncherSettings.WorkspaceScreens.TABLE_NAME;
+    static final String TABLE_BACKUP_JOURNAL = "backupJournal";
     static final String EMPTY_DATABASE_CREATED = "EMPTY_DATABASE_CREATED";
 
     private static final String RESTRICTION_PACKAGE_NAME = "workspace.configuration.package.name";
 
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
+    // Changes within this time of the first one are notified together
+    private static final int NOTIFY_DELAY_MS = 200;
+
     @Thunk LauncherProviderChangeListener mListener;
     @Thunk DatabaseHelper mOpenHelper;
 
+    private Handler mNotifyHandler;
+    @Thunk final AtomicBoolean mNotifyPending = new AtomicBoolean();
+    // Time of the last change, up to which the workspace snapshot is out of date
+    private volatile long mLastChangeTime;
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNotifyPending.set(false);
+            sendNotify();
+        }
+    };
+
+    /**
+     * The batch being applied by a thread. Changes made within it are notified when it ends.
+     */
+    private static class PendingBatch {
+        boolean changed;
+    }
+    private final ThreadLocal<PendingBatch> mBatches = new ThreadLocal<>();
+
     @Override
     public boolean onCreate() {
         final Context context = getContext();
         StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskWrites();
         mOpenHelper = new DatabaseHelper(context);
         StrictMode.setThreadPolicy(oldPolicy);
+        mNotifyHandler = new Handler(LauncherModel.getWorkerLooper());
         LauncherAppState.setLauncherProvider(this);
         return true;
     }
@@ -219,14 +251,26 @@ public class LauncherProvider extends ContentProvider {
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        PendingBatch outerBatch = mBatches.get();
+        PendingBatch batch = outerBatch != null ? outerBatch : new PendingBatch();
+        mBatches.set(batch);
+        boolean success = false;
         db.beginTransaction();
         try {
             ContentProviderResult[] result =  super.applyBatch(operations);
             db.setTransactionSuccessful();
+            success = true;
             reloadLauncherIfExternal();
             return result;
         } finally {
             db.endTransaction();
+            if (outerBatch == null) {
+                mBatches.remove();
+                // A batch which was rolled back did not change anything.
+                if (success && batch.changed) {
+                    scheduleNotify();
+                }
+            }
         }
     }
 
@@ -248,7 +292,9 @@ public class LauncherProvider extends ContentProvider {
 
         addModifiedTime(values);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.update(args.table, values, args.where, args.args);
+        int count = args.itemId >= 0 && TABLE_FAVORITES.equals(args.table)
+                ? mOpenHelper.updateFavorite(db, args.itemId, values)
+                : db.update(args.table, values, args.where, args.args);
         if (count > 0) notifyListeners();
 
         reloadLauncherIfExternal();
@@ -323,14 +369,99 @@ public class LauncherProvider extends ContentProvider {
         return folderIds;
     }
 
+    /**
+     * Notifies the backup agent and the listener of a change. Changes made within a batch are
+     * notified once at its end, and other changes are coalesced over {@link #NOTIFY_DELAY_MS}.
+     */
     private void notifyListeners() {
+        PendingBatch batch = mBatches.get();
+        if (batch != null) {
+            batch.changed = true;
+        } else {
+            scheduleNotify();
+        }
+    }
+
+    private void scheduleNotify() {
+        mLastChangeTime = System.currentTimeMillis();
+        if (mNotifyPending.compareAndSet(false, true)) {
+            mNotifyHandler.postDelayed(mNotifyRunnable, NOTIFY_DELAY_MS);
+        }
+    }
+
+    @Thunk void sendNotify() {
         // always notify the backup agent
         LauncherBackupAgentHelper.dataChanged(getContext());
+        LauncherModel.invalidateWorkspaceSnapshot(getContext(), mLastChangeTime);
+        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+        if (app != null) {
+            app.getModel().updateWorkspaceSnapshot();
+        }
         if (mListener != null) {
             mListener.onLauncherProviderChange();
         }
     }
 
+    /**
+     * Creates the favorites table, whose items belong to {@param userSerial} by default.
+     */
+    static void addFavoritesTable(SQLiteDatabase db, long userSerial) {
+        db.execSQL("CREATE TABLE favorites (" +
+                "_id INTEGER PRIMARY KEY," +
+                "title TEXT," +
+                "intent TEXT," +
+                "container INTEGER," +
+                "screen INTEGER," +
+                "cellX INTEGER," +
+                "cellY INTEGER," +
+                "spanX INTEGER," +
+                "spanY INTEGER," +
+                "itemType INTEGER," +
+                "appWidgetId INTEGER NOT NULL DEFAULT -1," +
+                "isShortcut INTEGER," +
+                "iconType INTEGER," +
+                "iconPackage TEXT," +
+                "iconResource TEXT," +
+                "icon BLOB," +
+                "uri TEXT," +
+                "displayMode INTEGER," +
+                "appWidgetProvider TEXT," +
+                "modified INTEGER NOT NULL DEFAULT 0," +
+                "restored INTEGER NOT NULL DEFAULT 0," +
+                "profileId INTEGER DEFAULT " + userSerial + "," +
+                "hidden INTEGER DEFAULT 0" + "," +
+                "rank INTEGER NOT NULL DEFAULT 0," +
+                "options INTEGER NOT NULL DEFAULT 0," +
+                "subType INTEGER DEFAULT 0" +
+                ");");
+    }
+
+    static void addWorkspacesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_WORKSPACE_SCREENS + " (" +
+                LauncherSettings.WorkspaceScreens._ID + " INTEGER PRIMARY KEY," +
+                LauncherSettings.WorkspaceScreens.SCREEN_RANK + " INTEGER," +
+                LauncherSettings.ChangeLogColumns.MODIFIED + " INTEGER NOT NULL DEFAULT 0" +
+                ");");
+    }
+
+    /**
+     * Creates the indexes used by the lookups of items by container and screen, by type and by
+     * widget id, and of the last screen rank. The index on the container also covers the
+     * sub-queries listing the containers in use, like the one of {@link #deleteEmptyFolders()}.
+     */
+    static void addIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS favorites_container_screen ON "
+                + TABLE_FAVORITES + " (" + LauncherSettings.Favorites.CONTAINER + ", "
+                + LauncherSettings.Favorites.SCREEN + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS favorites_item_type ON "
+                + TABLE_FAVORITES + " (" + LauncherSettings.Favorites.ITEM_TYPE + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS favorites_app_widget_id ON "
+                + TABLE_FAVORITES + " (" + LauncherSettings.Favorites.APPWIDGET_ID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS workspaceScreens_rank ON "
+                + TABLE_WORKSPACE_SCREENS + " ("
+                + LauncherSettings.WorkspaceScreens.SCREEN_RANK + ");");
+    }
+
     @Thunk static void addModifiedTime(ContentValues values) {
         values.put(LauncherSettings.ChangeLogColumns.MODIFIED, System.currentTimeMillis());
     }
@@ -509,6 +640,38 @@ public class LauncherProvider extends ContentProvider {
     }
 
 
+    /**
+     * Writes all the committed changes to the database file, so that it can be copied.
+     */
+    public void checkpointDatabase() {
+        DatabaseTuning.checkpoint(mOpenHelper.getWritableDatabase());
+    }
+
+    /**
+     * Returns the ids of the rows of {@param table} which were inserted, updated or deleted at or
+     * after {@param since}, or null if the journal was reset since then and any row may have
+     * changed.
+     */
+    public HashSet<Long> getChangedIds(String table, long since) {
+        return mOpenHelper.getChangedIds(table, since);
+    }
+
+    /**
+     * Records the rows as changed, so that they are returned by the next
+     * {@link #getChangedIds(String, long)} again.
+     */
+    public void markChanged(String table, Iterable<Long> ids) {
+        mOpenHelper.markChanged(table, ids);
+    }
+
+    /**
+     * Forgets the changes made before {@param before}, once a backup has covered them.
+     */
+    public void pruneBackupJournal(long before) {
+        mOpenHelper.getWritableDatabase().delete(TABLE_BACKUP_JOURNAL,
+                BackupJournal.MODIFIED + "<" + before, null);
+    }
+
     public void deleteDatabase() {
         // Are you sure? (y/n)
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -531,6 +694,11 @@ public class LauncherProvider extends ContentProvider {
 
         @Thunk LauncherProviderChangeListener mListener;
 
+        // Compiled statements updating a single favorite, by the updated columns
+        private static final int MAX_UPDATE_STATEMENTS = 8;
+        private final HashMap<String, SQLiteStatement> mUpdateStatements = new HashMap<>();
+        private SQLiteDatabase mUpdateStatementsDb;
+
         DatabaseHelper(Context context) {
             super(context, LauncherFiles.LAUNCHER_DB, null, DATABASE_VERSION);
             mContext = context;
@@ -550,6 +718,51 @@ public class LauncherProvider extends ContentProvider {
             return mNewDbCreated;
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            DatabaseTuning.configure(mContext, db, true);
+        }
+
+        /**
+         * Updates a single favorite with a statement which is compiled once for every set of
+         * columns, like the position columns of a move.
+         */
+        int updateFavorite(SQLiteDatabase db, long id, ContentValues values) {
+            String[] columns = values.keySet().toArray(new String[values.size()]);
+            Arrays.sort(columns);
+            String key = TextUtils.join(",", columns);
+
+            synchronized (mUpdateStatements) {
+                if (mUpdateStatementsDb != db
+                        || mUpdateStatements.size() >= MAX_UPDATE_STATEMENTS) {
+                    for (SQLiteStatement statement : mUpdateStatements.values()) {
+                        statement.close();
+                    }
+                    mUpdateStatements.clear();
+                    mUpdateStatementsDb = db;
+                }
+
+                SQLiteStatement statement = mUpdateStatements.get(key);
+                if (statement == null) {
+                    StringBuilder sql = new StringBuilder("UPDATE ").append(TABLE_FAVORITES)
+                            .append(" SET ");
+                    for (int i = 0; i < columns.length; i++) {
+                        sql.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+                    }
+                    sql.append(" WHERE ").append(LauncherSettings.Favorites._ID).append("=?");
+                    statement = db.compileStatement(sql.toString());
+                    mUpdateStatements.put(key, statement);
+                }
+
+                statement.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+                }
+                statement.bindLong(columns.length + 1, id);
+                return statement.executeUpdateDelete();
+            }
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             if (LOGD) Log.d(TAG, "creating new launcher database");
@@ -557,40 +770,16 @@ public class LauncherProvider extends ContentProvider {
             mMaxItemId = 1;
             mMaxScreenId = 0;
             mNewDbCreated = true;
+            LauncherModel.getWorkspaceSnapshotFile(mContext).delete();
 
             UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
             long userSerialNumber = userManager.getSerialNumberForUser(
                     UserHandleCompat.myUserHandle());
 
-            db.execSQL("CREATE TABLE favorites (" +
-                    "_id INTEGER PRIMARY KEY," +
-                    "title TEXT," +
-                    "intent TEXT," +
-                    "container INTEGER," +
-                    "screen INTEGER," +
-                    "cellX INTEGER," +
-                    "cellY INTEGER," +
-                    "spanX INTEGER," +
-                    "spanY INTEGER," +
-                    "itemType INTEGER," +
-                    "appWidgetId INTEGER NOT NULL DEFAULT -1," +
-                    "isShortcut INTEGER," +
-                    "iconType INTEGER," +
-                    "iconPackage TEXT," +
-                    "iconResource TEXT," +
-                    "icon BLOB," +
-                    "uri TEXT," +
-                    "displayMode INTEGER," +
-                    "appWidgetProvider TEXT," +
-                    "modified INTEGER NOT NULL DEFAULT 0," +
-                    "restored INTEGER NOT NULL DEFAULT 0," +
-                    "profileId INTEGER DEFAULT " + userSerialNumber + "," +
-                    "hidden INTEGER DEFAULT 0" + "," +
-                    "rank INTEGER NOT NULL DEFAULT 0," +
-                    "options INTEGER NOT NULL DEFAULT 0," +
-                    "subType INTEGER DEFAULT 0" +
-                    ");");
+            addFavoritesTable(db, userSerialNumber);
             addWorkspacesTable(db);
+            addIndexes(db);
+            addBackupJournal(db);
 
             // Database was just created, so wipe any previous widgets
             if (mAppWidgetHost != null) {
@@ -624,16 +813,91 @@ public class LauncherProvider extends ContentProvider {
             setFlagEmptyDbCreated();
 
             // When a new DB is created, remove all previously stored managed profile information.
-            ManagedProfileHeuristic.processAllUsers(Collections.<UserHandleCompat>emptyList(),
-                    mContext);
+            // This is done on the worker thread, which is the one using it.
+            final Context context = mContext;
+            LauncherModel.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    ManagedProfileHeuristic.processAllUsers(
+                            Collections.<UserHandleCompat>emptyList(), context);
+                }
+            });
         }
 
-        private void addWorkspacesTable(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + TABLE_WORKSPACE_SCREENS + " (" +
-                    LauncherSettings.WorkspaceScreens._ID + " INTEGER PRIMARY KEY," +
-                    LauncherSettings.WorkspaceScreens.SCREEN_RANK + " INTEGER," +
-                    LauncherSettings.ChangeLogColumns.MODIFIED + " INTEGER NOT NULL DEFAULT 0" +
+        /**
+         * Creates the journal of the favorites and screens written since the last backup. It is
+         * kept by triggers, so that every write is recorded, including the ones of the upgrades
+         * and the ones selecting rows by a condition. It starts with a reset entry, as the
+         * writes before it are unknown.
+         */
+        private void addBackupJournal(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_BACKUP_JOURNAL);
+            db.execSQL("CREATE TABLE " + TABLE_BACKUP_JOURNAL + " (" +
+                    BackupJournal.TABLE + " TEXT NOT NULL," +
+                    BackupJournal.ITEM_ID + " INTEGER NOT NULL," +
+                    BackupJournal.MODIFIED + " INTEGER NOT NULL," +
+                    "PRIMARY KEY (" + BackupJournal.TABLE + ", " + BackupJournal.ITEM_ID + ")" +
                     ");");
+            addBackupJournalTriggers(db, TABLE_FAVORITES);
+            addBackupJournalTriggers(db, TABLE_WORKSPACE_SCREENS);
+
+            ContentValues values = new ContentValues();
+            values.put(BackupJournal.TABLE, BackupJournal.TABLE_RESET);
+            values.put(BackupJournal.ITEM_ID, 0);
+            values.put(BackupJournal.MODIFIED, System.currentTimeMillis());
+            db.insert(TABLE_BACKUP_JOURNAL, null, values);
+        }
+
+        private void addBackupJournalTriggers(SQLiteDatabase db, String table) {
+            String record = " BEGIN INSERT OR REPLACE INTO " + TABLE_BACKUP_JOURNAL +
+                    " VALUES ('" + table + "', %s._id, " + BackupJournal.SQL_NOW + "); END";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_journal_insert" +
+                    " AFTER INSERT ON " + table + String.format(record, "NEW"));
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_journal_update" +
+                    " AFTER UPDATE ON " + table + String.format(record, "NEW"));
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_journal_move" +
+                    " AFTER UPDATE OF _id ON " + table + " WHEN OLD._id <> NEW._id" +
+                    String.format(record, "OLD"));
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_journal_delete" +
+                    " AFTER DELETE ON " + table + String.format(record, "OLD"));
+        }
+
+        public HashSet<Long> getChangedIds(String table, long since) {
+            HashSet<Long> ids = new HashSet<>();
+            Cursor c = getReadableDatabase().query(TABLE_BACKUP_JOURNAL,
+                    new String[] {BackupJournal.TABLE, BackupJournal.ITEM_ID},
+                    BackupJournal.MODIFIED + ">=? AND " + BackupJournal.TABLE + " IN (?, ?)",
+                    new String[] {Long.toString(since), table, BackupJournal.TABLE_RESET},
+                    null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    if (BackupJournal.TABLE_RESET.equals(c.getString(0))) {
+                        return null;
+                    }
+                    ids.add(c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+            return ids;
+        }
+
+        public void markChanged(String table, Iterable<Long> ids) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " +
+                    TABLE_BACKUP_JOURNAL + " VALUES (?, ?, ?)");
+            db.beginTransaction();
+            try {
+                long now = System.currentTimeMillis();
+                for (long id : ids) {
+                    DatabaseTuning.bindAll(statement, 1, table, id, now);
+                    statement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
         }
 
         private void removeOrphanedItems(SQLiteDatabase db) {
@@ -682,6 +946,7 @@ public class LauncherProvider extends ContentProvider {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (LOGD) Log.d(TAG, "onUpgrade triggered: " + oldVersion);
+            LauncherModel.getWorkspaceSnapshotFile(mContext).delete();
             switch (oldVersion) {
                 // The version cannot be lower that 12, as Launcher3 never supported a lower
                 // version of the DB.
@@ -845,9 +1110,16 @@ public class LauncherProvider extends ContentProvider {
                     }
                 }
                 case 29: {
-                    migrateLauncherFavorite(db, "com.cyngn.dialer", "com.android.dialer",
-                            "com.android.dialer.DialtactsActivity",
-                            "com.android.dialer.DialtactsActivity");
+                    if (oldVersion < 29) {
+                        // Already done by the databases which reached version 29
+                        migrateLauncherFavorite(db, "com.cyngn.dialer", "com.android.dialer",
+                                "com.android.dialer.DialtactsActivity",
+                                "com.android.dialer.DialtactsActivity");
+                    }
+                    addBackupJournal(db);
+                }
+                case 30: {
+                    addIndexes(db);
                     return;
                 }
             }
@@ -1288,22 +1560,39 @@ public class LauncherProvider extends ContentProvider {
 
         @Thunk int loadFavorites(SQLiteDatabase db, AutoInstallsLayout loader) {
             ArrayList<Long> screenIds = new ArrayList<Long>();
-            // TODO: Use multiple loaders with fall-back and transaction.
-            int count = loader.loadLayout(db, screenIds);
+            // TODO: Use multiple loaders with fall-back.
+            long start = StartupTrace.begin(StartupTrace.PHASE_LOAD_LAYOUT);
+            int count;
 
-            // Add the screens specified by the items above
-            Collections.sort(screenIds);
-            int rank = 0;
-            ContentValues values = new ContentValues();
-            for (Long id : screenIds) {
-                values.clear();
-                values.put(LauncherSettings.WorkspaceScreens._ID, id);
-                values.put(LauncherSettings.WorkspaceScreens.SCREEN_RANK, rank);
-                if (dbInsertAndCheck(this, db, TABLE_WORKSPACE_SCREENS, null, values) < 0) {
-                    throw new RuntimeException("Failed initialize screen table"
-                            + "from default layout");
+            // The items and screens of the layout are committed together, instead of a
+            // transaction for every row.
+            db.beginTransaction();
+            try {
+                count = loader.loadLayout(db, screenIds);
+
+                // Add the screens specified by the items above
+                Collections.sort(screenIds);
+                int rank = 0;
+                ContentValues values = new ContentValues();
+                for (Long id : screenIds) {
+                    values.clear();
+                    values.put(LauncherSettings.WorkspaceScreens._ID, id);
+                    values.put(LauncherSettings.WorkspaceScreens.SCREEN_RANK, rank);
+                    if (dbInsertAndCheck(this, db, TABLE_WORKSPACE_SCREENS, null, values) < 0) {
+                        throw new RuntimeException("Failed initialize screen table"
+                                + "from default layout");
+                    }
+                    rank++;
                 }
-                rank++;
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                StartupTrace.end(StartupTrace.PHASE_LOAD_LAYOUT, start);
+            }
+            if (LOGD) {
+                Log.d(TAG, "Loaded " + count + " items and " + screenIds.size() + " screens from "
+                        + loader.getClass().getSimpleName() + " in "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
             }
 
             // Ensure that the max ids are initialized
@@ -1645,24 +1934,44 @@ public class LauncherProvider extends ContentProvider {
         return selectWhere.toString();
     }
 
+    /**
+     * Columns of the journal of the favorites and screens written since the last backup.
+     */
+    private static final class BackupJournal {
+        static final String TABLE = "tableName";
+        static final String ITEM_ID = "itemId";
+        static final String MODIFIED = "modified";
+
+        /** Table of the entry recording that the writes before it are unknown. */
+        static final String TABLE_RESET = "*";
+
+        /** The current time in milliseconds, like {@link System#currentTimeMillis()}. */
+        static final String SQL_NOW = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+    }
+
     static class SqlArguments {
         public final String table;
         public final String where;
         public final String[] args;
+        // The id of the item in the URI, or -1
+        public final long itemId;
 
         SqlArguments(Uri url, String where, String[] args) {
             if (url.getPathSegments().size() == 1) {
                 this.table = url.getPathSegments().get(0);
                 this.where = where;
                 this.args = args;
+                this.itemId = -1;
             } else if (url.getPathSegments().size() != 2) {
                 throw new IllegalArgumentException("Invalid URI: " + url);
             } else if (!TextUtils.isEmpty(where)) {
                 throw new UnsupportedOperationException("WHERE clause not supported: " + url);
             } else {
                 this.table = url.getPathSegments().get(0);
-                this.where = "_id=" + ContentUris.parseId(url);
-                this.args = null;
+                this.itemId = ContentUris.parseId(url);
+                // Bound, so that the statement is the same for every item and stays cached
+                this.where = "_id=?";
+                this.args = new String[] {Long.toString(itemId)};
             }
         }
 
@@ -1671,6 +1980,7 @@ public class LauncherProvider extends ContentProvider {
                 table = url.getPathSegments().get(0);
                 where = null;
                 args = null;
+                itemId = -1;
             } else {
                 throw new IllegalArgumentException("Invalid URI: " + url);
             }
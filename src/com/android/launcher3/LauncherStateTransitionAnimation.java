@@ -339,11 +339,7 @@ public class LauncherStateTransitionAnimation {
                     contentBackground.setAlpha(alpha);
 
                     // Disable all necessary layers
-                    for (View v : layerViews.keySet()) {
-                        if (layerViews.get(v) == BUILD_AND_SET_LAYER) {
-                            v.setLayerType(View.LAYER_TYPE_NONE, null);
-                        }
-                    }
+                    releaseLayers(layerViews);
 
                     // This can hold unnecessary references to views.
                     cleanupAnimation();
@@ -373,14 +369,7 @@ public class LauncherStateTransitionAnimation {
                     dispatchOnLauncherTransitionStart(toView, animated, false);
 
                     // Enable all necessary layers
-                    for (View v : layerViews.keySet()) {
-                        if (layerViews.get(v) == BUILD_AND_SET_LAYER) {
-                            v.setLayerType(View.LAYER_TYPE_HARDWARE, null);
-                        }
-                        if (Utilities.ATLEAST_LOLLIPOP && Utilities.isViewAttachedToWindow(v)) {
-                            v.buildLayer();
-                        }
-                    }
+                    acquireLayers(layerViews);
 
                     // Focus the new view
                     toView.requestFocus();
@@ -658,11 +647,7 @@ public class LauncherStateTransitionAnimation {
                     }
 
                     // Disable all necessary layers
-                    for (View v : layerViews.keySet()) {
-                        if (layerViews.get(v) == BUILD_AND_SET_LAYER) {
-                            v.setLayerType(View.LAYER_TYPE_NONE, null);
-                        }
-                    }
+                    releaseLayers(layerViews);
 
                     // Reset page transforms
                     if (contentView != null) {
@@ -693,14 +678,7 @@ public class LauncherStateTransitionAnimation {
                     dispatchOnLauncherTransitionStart(toView, animated, false);
 
                     // Enable all necessary layers
-                    for (View v : layerViews.keySet()) {
-                        if (layerViews.get(v) == BUILD_AND_SET_LAYER) {
-                            v.setLayerType(View.LAYER_TYPE_HARDWARE, null);
-                        }
-                        if (Utilities.ATLEAST_LOLLIPOP && Utilities.isViewAttachedToWindow(v)) {
-                            v.buildLayer();
-                        }
-                    }
+                    acquireLayers(layerViews);
                     stateAnimation.start();
                 }
             };
@@ -760,6 +738,37 @@ public class LauncherStateTransitionAnimation {
         }
     }
 
+    /**
+     * Gives the views of a transition their layers and builds them, so that the first frame of the
+     * animation does not have to render them.
+     */
+    @Thunk void acquireLayers(HashMap<View, Integer> layerViews) {
+        HardwareLayerBudget budget = mLauncher.getHardwareLayerBudget();
+        for (View v : layerViews.keySet()) {
+            if (layerViews.get(v) == BUILD_AND_SET_LAYER) {
+                budget.acquire(v, HardwareLayerBudget.PRIORITY_TRANSITION);
+            }
+            if (v instanceof CellLayout) {
+                // The layer of a page is on its children
+                ((CellLayout) v).buildHardwareLayer();
+            } else if (Utilities.ATLEAST_LOLLIPOP && Utilities.isViewAttachedToWindow(v)) {
+                v.buildLayer();
+            }
+        }
+    }
+
+    /**
+     * Removes the layers given by {@link #acquireLayers}.
+     */
+    @Thunk void releaseLayers(HashMap<View, Integer> layerViews) {
+        HardwareLayerBudget budget = mLauncher.getHardwareLayerBudget();
+        for (View v : layerViews.keySet()) {
+            if (layerViews.get(v) == BUILD_AND_SET_LAYER) {
+                budget.release(v);
+            }
+        }
+    }
+
     /**
      * Dispatches the prepare-transition event to suitable views.
      */
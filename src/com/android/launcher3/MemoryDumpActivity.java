@@ -111,6 +111,22 @@ public class MemoryDumpActivity extends Activity {
             }
         }
 
+        // Include the sampled memory and counters, to correlate them with the heap dump
+        final String seriesPath = String.format("%s/launcher-memory-%d.csv",
+                Environment.getExternalStorageDirectory(), myPid);
+        PrintWriter seriesWriter = null;
+        try {
+            seriesWriter = new PrintWriter(new BufferedWriter(new FileWriter(seriesPath)));
+            tracker.writeCsv(seriesWriter);
+            paths.add(seriesPath);
+        } catch (IOException e) {
+            Log.e(TAG, "error writing memory samples:", e);
+        } finally {
+            if (seriesWriter != null) {
+                seriesWriter.close();
+            }
+        }
+
         String zipfile = zipUp(paths);
 
         if (zipfile == null) return;
@@ -24,44 +24,130 @@ import android.os.*;
 import android.util.Log;
 import android.util.LongSparseArray;
 
+import com.android.launcher3.util.Thunk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Samples the memory of the launcher processes and of the registered {@link Counter}s into fixed
+ * size ring buffers, which can be exported as CSV or in a compact binary format with
+ * {@code adb shell dumpsys activity service com.android.launcher3/.MemoryTracker [--csv]
+ * [--binary <path>]}, or through {@link MemoryDumpActivity}.
+ */
 public class MemoryTracker extends Service {
     public static final String TAG = MemoryTracker.class.getSimpleName();
     public static final String ACTION_START_TRACKING = "com.android.launcher3.action.START_TRACKING";
 
-    private static final long UPDATE_RATE = 5000;
+    /** The sampling interval in milliseconds, used if set on {@link #ACTION_START_TRACKING}. */
+    public static final String EXTRA_UPDATE_RATE = "update_rate";
+
+    private static final long DEFAULT_UPDATE_RATE = 5000;
+    private static final long MIN_UPDATE_RATE = 100;
+
+    /** The number of samples kept for each process and counter. */
+    public static final int CAPACITY = 256;
+
+    private static final int BINARY_MAGIC = 0x4C4D5453; // LMTS
+    private static final int BINARY_VERSION = 1;
 
     private static final int MSG_START = 1;
     private static final int MSG_STOP = 2;
     private static final int MSG_UPDATE = 3;
 
+    /**
+     * A launcher specific value sampled along with the process memory, like the size of a cache.
+     * Counters are sampled on a background thread unless they are registered for the main thread.
+     */
+    public interface Counter {
+        long getValue();
+    }
+
+    private static class RegisteredCounter {
+        final String name;
+        final Counter counter;
+        final boolean onMainThread;
+        RegisteredCounter(String name, Counter counter, boolean onMainThread) {
+            this.name = name;
+            this.counter = counter;
+            this.onMainThread = onMainThread;
+        }
+    }
+
     public static class ProcessMemInfo {
         public int pid;
         public String name;
         public long startTime;
         public long currentPss, currentUss;
-        public long[] pss = new long[256];
-        public long[] uss = new long[256];
-            //= new Meminfo[(int) (30 * 60 / (UPDATE_RATE / 1000))]; // 30 minutes
+        public final long[] time = new long[CAPACITY];
+        public final long[] pss = new long[CAPACITY];
+        public final long[] uss = new long[CAPACITY];
         public long max = 1;
+        // The index of the latest sample, and the number of samples in the buffers
         public int head = 0;
+        public int count = 0;
         public ProcessMemInfo(int pid, String name, long start) {
             this.pid = pid;
             this.name = name;
             this.startTime = start;
         }
+        private ProcessMemInfo(ProcessMemInfo info) {
+            this(info.pid, info.name, info.startTime);
+            currentPss = info.currentPss;
+            currentUss = info.currentUss;
+            System.arraycopy(info.time, 0, time, 0, CAPACITY);
+            System.arraycopy(info.pss, 0, pss, 0, CAPACITY);
+            System.arraycopy(info.uss, 0, uss, 0, CAPACITY);
+            max = info.max;
+            head = info.head;
+            count = info.count;
+        }
         public long getUptime() {
             return System.currentTimeMillis() - startTime;
         }
     };
+
+    /**
+     * The samples of a {@link Counter}, in the same ring buffer layout as {@link ProcessMemInfo}.
+     */
+    public static class CounterSeries {
+        public final String name;
+        public final long[] time = new long[CAPACITY];
+        public final long[] values = new long[CAPACITY];
+        public int head = 0;
+        public int count = 0;
+        public CounterSeries(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final ArrayList<RegisteredCounter> sCounters = new ArrayList<>();
+
     public final LongSparseArray<ProcessMemInfo> mData = new LongSparseArray<ProcessMemInfo>();
-    public final ArrayList<Long> mPids = new ArrayList<Long>();
-    private int[] mPidsArray = new int[0];
+    private volatile int[] mPidsArray = new int[0];
+    private final ArrayList<CounterSeries> mCounterSeries = new ArrayList<>();
     private final Object mLock = new Object();
+    private volatile long mUpdateRate = DEFAULT_UPDATE_RATE;
+
+    // Sampling runs on its own thread, as getting the memory info of processes is a binder call
+    private final HandlerThread mSamplingThread = startSamplingThread();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSampleMainThreadCounters = new Runnable() {
+        @Override
+        public void run() {
+            sampleCounters(true);
+        }
+    };
 
-    Handler mHandler = new Handler() {
+    Handler mHandler = new Handler(mSamplingThread.getLooper()) {
         @Override
         public void handleMessage(Message m) {
             switch (m.what) {
@@ -75,7 +161,7 @@ public class MemoryTracker extends Service {
                 case MSG_UPDATE:
                     update();
                     mHandler.removeMessages(MSG_UPDATE);
-                    mHandler.sendEmptyMessageDelayed(MSG_UPDATE, UPDATE_RATE);
+                    mHandler.sendEmptyMessageDelayed(MSG_UPDATE, mUpdateRate);
                     break;
             }
         }
@@ -83,6 +169,13 @@ public class MemoryTracker extends Service {
 
     ActivityManager mAm;
 
+    private static HandlerThread startSamplingThread() {
+        HandlerThread thread = new HandlerThread("launcher-memory-tracker",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return thread;
+    }
+
     public static void startTrackingMe(Context context, String name) {
         context.startService(new Intent(context, MemoryTracker.class)
                 .setAction(MemoryTracker.ACTION_START_TRACKING)
@@ -91,69 +184,325 @@ public class MemoryTracker extends Service {
         );
     }
 
+    /**
+     * Adds a counter which is sampled with the memory of the processes, replacing any counter
+     * with the same name. The samples taken so far are kept when a counter is replaced or removed.
+     * @param onMainThread whether the counter reads state which is only safe to access on the main
+     *        thread, like views.
+     */
+    public static void registerCounter(String name, Counter counter, boolean onMainThread) {
+        synchronized (sCounters) {
+            int index = indexOfCounterL(name);
+            RegisteredCounter registered = new RegisteredCounter(name, counter, onMainThread);
+            if (index >= 0) {
+                sCounters.set(index, registered);
+            } else {
+                sCounters.add(registered);
+            }
+        }
+    }
+
+    /**
+     * Removes the counter, unless it was already replaced by another counter with the same name.
+     */
+    public static void unregisterCounter(Counter counter) {
+        synchronized (sCounters) {
+            for (int i = 0; i < sCounters.size(); i++) {
+                if (sCounters.get(i).counter == counter) {
+                    sCounters.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int indexOfCounterL(String name) {
+        for (int i = 0; i < sCounters.size(); i++) {
+            if (sCounters.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of the samples of the process, as they are updated on the sampling thread.
+     */
     public ProcessMemInfo getMemInfo(int pid) {
-        return mData.get(pid);
+        synchronized (mLock) {
+            ProcessMemInfo info = mData.get(pid);
+            return info == null ? null : new ProcessMemInfo(info);
+        }
     }
 
     public int[] getTrackedProcesses() {
         return mPidsArray;
     }
 
+    public long getUpdateRate() {
+        return mUpdateRate;
+    }
+
+    public void setUpdateRate(long updateRate) {
+        mUpdateRate = Math.max(MIN_UPDATE_RATE, updateRate);
+        if (mHandler.hasMessages(MSG_UPDATE)) {
+            mHandler.sendEmptyMessage(MSG_START);
+        }
+    }
+
     public void startTrackingProcess(int pid, String name, long start) {
         synchronized (mLock) {
-            final Long lpid = Long.valueOf(pid);
+            if (indexOf(mPidsArray, pid) >= 0) return;
 
-            if (mPids.contains(lpid)) return;
-
-            mPids.add(lpid);
-            updatePidsArrayL();
+            final int N = mPidsArray.length;
+            mPidsArray = Arrays.copyOf(mPidsArray, N + 1);
+            mPidsArray[N] = pid;
+            logTrackedProcessesL();
 
             mData.put(pid, new ProcessMemInfo(pid, name, start));
         }
     }
 
-    void updatePidsArrayL() {
-        final int N = mPids.size();
-        mPidsArray = new int[N];
-        StringBuffer sb = new StringBuffer("Now tracking processes: ");
-        for (int i=0; i<N; i++) {
-            final int p = mPids.get(i).intValue();
-            mPidsArray[i] = p;
+    private static int indexOf(int[] a, int x) {
+        for (int i=0; i<a.length; i++) {
+            if (a[i] == x) return i;
+        }
+        return -1;
+    }
+
+    void logTrackedProcessesL() {
+        StringBuilder sb = new StringBuilder("Now tracking processes: ");
+        for (int p : mPidsArray) {
             sb.append(p); sb.append(" ");
         }
         Log.v(TAG, sb.toString());
     }
 
     void update() {
+        final long now = System.currentTimeMillis();
+        // Don't hold the lock during the binder call. The array is never modified once published.
+        final int[] pids = mPidsArray;
+        Debug.MemoryInfo[] dinfos = mAm.getProcessMemoryInfo(pids);
         synchronized (mLock) {
-            Debug.MemoryInfo[] dinfos = mAm.getProcessMemoryInfo(mPidsArray);
+            int deadCount = 0;
             for (int i=0; i<dinfos.length; i++) {
                 Debug.MemoryInfo dinfo = dinfos[i];
-                if (i > mPids.size()) {
+                if (i >= pids.length) {
                     Log.e(TAG, "update: unknown process info received: " + dinfo);
                     break;
                 }
-                final long pid = mPids.get(i).intValue();
+                final long pid = pids[i];
                 final ProcessMemInfo info = mData.get(pid);
-                info.head = (info.head+1) % info.pss.length;
+                if (info == null) {
+                    continue;
+                }
+                info.head = (info.head+1) % CAPACITY;
+                info.count = Math.min(info.count + 1, CAPACITY);
+                info.time[info.head] = now;
                 info.pss[info.head] = info.currentPss = dinfo.getTotalPss();
                 info.uss[info.head] = info.currentUss = dinfo.getTotalPrivateDirty();
                 if (info.currentPss > info.max) info.max = info.currentPss;
                 if (info.currentUss > info.max) info.max = info.currentUss;
-                // Log.v(TAG, "update: pid " + pid + " pss=" + info.currentPss + " uss=" + info.currentUss);
                 if (info.currentPss == 0) {
                     Log.v(TAG, "update: pid " + pid + " has pss=0, it probably died");
                     mData.remove(pid);
+                    deadCount++;
+                }
+            }
+            if (deadCount > 0) {
+                int[] alive = new int[mPidsArray.length];
+                int j = 0;
+                for (int pid : mPidsArray) {
+                    if (mData.get(pid) != null) {
+                        alive[j++] = pid;
+                    }
+                }
+                mPidsArray = Arrays.copyOf(alive, j);
+                logTrackedProcessesL();
+            }
+
+        }
+
+        if (sampleCounters(false)) {
+            mMainHandler.post(mSampleMainThreadCounters);
+        }
+    }
+
+    /**
+     * Samples the counters registered for the main thread or for any thread.
+     * @return whether there are counters registered for the other kind of thread.
+     */
+    @Thunk boolean sampleCounters(boolean onMainThread) {
+        final long now = System.currentTimeMillis();
+        boolean hasOtherCounters = false;
+        synchronized (sCounters) {
+            for (int i = 0; i < sCounters.size(); i++) {
+                final RegisteredCounter counter = sCounters.get(i);
+                if (counter.onMainThread != onMainThread) {
+                    hasOtherCounters = true;
+                    continue;
+                }
+                final long value = counter.counter.getValue();
+                synchronized (mLock) {
+                    final CounterSeries series = getCounterSeriesL(counter.name);
+                    series.head = (series.head + 1) % CAPACITY;
+                    series.count = Math.min(series.count + 1, CAPACITY);
+                    series.time[series.head] = now;
+                    series.values[series.head] = value;
+                }
+            }
+        }
+        return hasOtherCounters;
+    }
+
+    private CounterSeries getCounterSeriesL(String name) {
+        for (int i = 0; i < mCounterSeries.size(); i++) {
+            if (mCounterSeries.get(i).name.equals(name)) {
+                return mCounterSeries.get(i);
+            }
+        }
+        CounterSeries series = new CounterSeries(name);
+        mCounterSeries.add(series);
+        return series;
+    }
+
+    /**
+     * Returns the index of the oldest sample in a ring buffer.
+     */
+    private static int oldest(int head, int count) {
+        return (head - count + 1 + CAPACITY) % CAPACITY;
+    }
+
+    /**
+     * Writes all the samples as CSV, one sample of a process or a counter per line.
+     */
+    public void writeCsv(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("kind,name,pid,time_ms,value,uss_kb");
+            for (int i = 0; i < mData.size(); i++) {
+                final ProcessMemInfo info = mData.valueAt(i);
+                int index = oldest(info.head, info.count);
+                for (int j = 0; j < info.count; j++) {
+                    writer.print("pss_kb,");
+                    writer.print(info.name);
+                    writer.print(',');
+                    writer.print(info.pid);
+                    writer.print(',');
+                    writer.print(info.time[index]);
+                    writer.print(',');
+                    writer.print(info.pss[index]);
+                    writer.print(',');
+                    writer.println(info.uss[index]);
+                    index = (index + 1) % CAPACITY;
+                }
+            }
+            for (int i = 0; i < mCounterSeries.size(); i++) {
+                final CounterSeries series = mCounterSeries.get(i);
+                int index = oldest(series.head, series.count);
+                for (int j = 0; j < series.count; j++) {
+                    writer.print("counter,");
+                    writer.print(series.name);
+                    writer.print(",,");
+                    writer.print(series.time[index]);
+                    writer.print(',');
+                    writer.print(series.values[index]);
+                    writer.println(',');
+                    index = (index + 1) % CAPACITY;
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes all the samples in a compact binary format: a header with a magic number and
+     * version, the processes with their (time, pss, uss) samples, and the counters with their
+     * (time, value) samples. Each series starts with the time of its oldest sample, and the
+     * times of the samples are stored as deltas from the previous one.
+     */
+    public void writeBinary(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        synchronized (mLock) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(mData.size());
+            for (int i = 0; i < mData.size(); i++) {
+                final ProcessMemInfo info = mData.valueAt(i);
+                out.writeInt(info.pid);
+                out.writeUTF(info.name == null ? "" : info.name);
+                out.writeInt(info.count);
+                int index = oldest(info.head, info.count);
+                long lastTime = info.count > 0 ? info.time[index] : 0;
+                out.writeLong(lastTime);
+                for (int j = 0; j < info.count; j++) {
+                    out.writeInt((int) (info.time[index] - lastTime));
+                    out.writeInt((int) info.pss[index]);
+                    out.writeInt((int) info.uss[index]);
+                    lastTime = info.time[index];
+                    index = (index + 1) % CAPACITY;
                 }
             }
-            for (int i=mPids.size()-1; i>=0; i--) {
-                final long pid = mPids.get(i).intValue();
-                if (mData.get(pid) == null) {
-                    mPids.remove(i);
-                    updatePidsArrayL();
+            out.writeInt(mCounterSeries.size());
+            for (int i = 0; i < mCounterSeries.size(); i++) {
+                final CounterSeries series = mCounterSeries.get(i);
+                out.writeUTF(series.name);
+                out.writeInt(series.count);
+                int index = oldest(series.head, series.count);
+                long lastTime = series.count > 0 ? series.time[index] : 0;
+                out.writeLong(lastTime);
+                for (int j = 0; j < series.count; j++) {
+                    out.writeInt((int) (series.time[index] - lastTime));
+                    out.writeLong(series.values[index]);
+                    lastTime = series.time[index];
+                    index = (index + 1) % CAPACITY;
                 }
             }
         }
+        out.flush();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        for (int i = 0; args != null && i < args.length; i++) {
+            if ("--csv".equals(args[i])) {
+                writeCsv(writer);
+                return;
+            } else if ("--binary".equals(args[i]) && i + 1 < args.length) {
+                String path = args[i + 1];
+                FileOutputStream os = null;
+                try {
+                    os = new FileOutputStream(path);
+                    writeBinary(os);
+                    writer.println("Wrote memory samples to " + path);
+                } catch (IOException e) {
+                    writer.println("Failed to write memory samples to " + path + ": " + e);
+                } finally {
+                    if (os != null) {
+                        try {
+                            os.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                }
+                return;
+            }
+        }
+
+        synchronized (mLock) {
+            writer.println(TAG + ": updateRate=" + mUpdateRate + "ms capacity=" + CAPACITY);
+            for (int i = 0; i < mData.size(); i++) {
+                final ProcessMemInfo info = mData.valueAt(i);
+                writer.println("  pid " + info.pid + " (" + info.name + "): samples=" + info.count
+                        + " pss=" + info.currentPss + "kB uss=" + info.currentUss + "kB max="
+                        + info.max + "kB");
+            }
+            for (int i = 0; i < mCounterSeries.size(); i++) {
+                final CounterSeries series = mCounterSeries.get(i);
+                writer.println("  " + series.name + ": samples=" + series.count + " value="
+                        + (series.count > 0 ? series.values[series.head] : 0));
+            }
+        }
     }
 
     @Override
@@ -183,6 +532,8 @@ public class MemoryTracker extends Service {
     @Override
     public void onDestroy() {
         mHandler.sendEmptyMessage(MSG_STOP);
+        mMainHandler.removeCallbacks(mSampleMainThreadCounters);
+        mSamplingThread.quit();
     }
 
     @Override
@@ -195,6 +546,9 @@ public class MemoryTracker extends Service {
                 final String name = intent.getStringExtra("name");
                 final long start = intent.getLongExtra("start", System.currentTimeMillis());
                 startTrackingProcess(pid, name, start);
+                if (intent.hasExtra(EXTRA_UPDATE_RATE)) {
+                    setUpdateRate(intent.getLongExtra(EXTRA_UPDATE_RATE, DEFAULT_UPDATE_RATE));
+                }
             }
         }
 
@@ -126,6 +126,10 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
     private boolean mCancelTap;
 
     private int[] mPageScrolls;
+    // The left and right edges of the pages as of the last layout, in page index order. These are
+    // used to find the visible pages without mapping every page through the view hierarchy.
+    private int[] mPageLefts;
+    private int[] mPageRights;
 
     protected final static int TOUCH_STATE_REST = 0;
     protected final static int TOUCH_STATE_SCROLLING = 1;
@@ -863,6 +867,8 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
         int childLeft = offsetX + (lp.isFullScreenPage ? 0 : getPaddingLeft());
         if (mPageScrolls == null || childCount != mChildCountOnLastLayout) {
             mPageScrolls = new int[childCount];
+            mPageLefts = new int[childCount];
+            mPageRights = new int[childCount];
         }
 
         for (int i = startIndex; i != endIndex; i += delta) {
@@ -888,6 +894,8 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
 
                 int scrollOffsetLeft = lp.isFullScreenPage ? 0 : getPaddingLeft();
                 mPageScrolls[i] = childLeft - scrollOffsetLeft - offsetX;
+                mPageLefts[i] = childLeft;
+                mPageRights[i] = childLeft + childWidth;
 
                 int pageGap = mPageSpacing;
                 int next = i + delta;
@@ -906,6 +914,8 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
                 }
 
                 childLeft += childWidth + pageGap + getChildGap();
+            } else {
+                mPageLefts[i] = mPageRights[i] = childLeft;
             }
         }
 
@@ -1056,6 +1066,92 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
     }
 
     protected void getVisiblePages(int[] range) {
+        final int pageCount = getChildCount();
+        if (pageCount == 0 || mPageLefts == null || mPageLefts.length != pageCount
+                || !getMatrix().isIdentity()) {
+            // The pages have not been laid out yet, or this view is transformed.
+            getVisiblePagesByTransformedBounds(range);
+            return;
+        }
+
+        // The left edge of the viewport in the coordinates the pages were laid out in.
+        final int viewportLeft = getScrollX() - getLeft();
+        final int viewportRight = viewportLeft + getViewportWidth();
+
+        // The pages are laid out left to right in layout order, which is the reverse of the index
+        // order in RTL. Find the first page whose right edge is in or after the viewport, and the
+        // last page whose left edge is in or before it.
+        int low = 0;
+        int high = pageCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mPageRights[getPageIndexInLayoutOrder(mid)] < viewportLeft) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        high = pageCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mPageLefts[getPageIndexInLayoutOrder(mid)] <= viewportRight) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int last = low - 1;
+
+        if (first > last) {
+            range[0] = -1;
+            range[1] = 0;
+            return;
+        }
+        int start = getPageIndexInLayoutOrder(mIsRtl ? last : first);
+        int end = getPageIndexInLayoutOrder(mIsRtl ? first : last);
+
+        // Pages which are translated or scaled, eg. by page transition effects or in overview
+        // mode, may be visible outside of their laid out bounds.
+        while (start > 0 && isTransformedPageVisible(start - 1)) {
+            start--;
+        }
+        while (end < pageCount - 1 && isTransformedPageVisible(end + 1)) {
+            end++;
+        }
+        range[0] = start;
+        range[1] = end;
+    }
+
+    private int getPageIndexInLayoutOrder(int position) {
+        return mIsRtl ? getChildCount() - 1 - position : position;
+    }
+
+    /**
+     * Returns whether the page at the given index has a transformation and is visible in the
+     * viewport because of it.
+     */
+    private boolean isTransformedPageVisible(int index) {
+        View page = getPageAt(index);
+        if (page.getMatrix().isIdentity()) {
+            return false;
+        }
+        int viewportWidth = getViewportWidth();
+        sTmpIntPoint[0] = 0;
+        sTmpIntPoint[1] = 0;
+        Utilities.getDescendantCoordRelativeToParent(page, this, sTmpIntPoint, false);
+        if (sTmpIntPoint[0] > viewportWidth) {
+            return false;
+        }
+        sTmpIntPoint[0] = page.getMeasuredWidth();
+        Utilities.getDescendantCoordRelativeToParent(page, this, sTmpIntPoint, false);
+        return sTmpIntPoint[0] >= 0;
+    }
+
+    /**
+     * Finds the visible pages by mapping the bounds of every page through the view hierarchy.
+     */
+    private void getVisiblePagesByTransformedBounds(int[] range) {
         final int pageCount = getChildCount();
         sTmpIntPoint[0] = sTmpIntPoint[1] = 0;
 
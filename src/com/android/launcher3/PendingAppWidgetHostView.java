@@ -140,7 +140,7 @@ public class PendingAppWidgetHostView extends LauncherAppWidgetHostView implemen
                 mCenterDrawable = new FastBitmapDrawable(mIcon);
                 mSettingIconDrawable = getResources().getDrawable(R.drawable.ic_setting).mutate();
 
-                updateSettingColor();
+                updateSettingColor(cache);
             } else {
                 if (sPreloaderTheme == null) {
                     sPreloaderTheme = getResources().newTheme();
@@ -157,8 +157,8 @@ public class PendingAppWidgetHostView extends LauncherAppWidgetHostView implemen
         }
     }
 
-    private void updateSettingColor() {
-        int color = Utilities.findDominantColorByHue(mIcon, 20);
+    private void updateSettingColor(IconCache cache) {
+        int color = cache.getDominantColor(mIconLookupIntent.getComponent(), mInfo.user, mIcon);
         // Make the dominant color bright.
         float[] hsv = new float[3];
         Color.colorToHSV(color, hsv);
@@ -36,6 +36,8 @@ class PreloadIconDrawable extends Drawable {
     private int mRingOutset;
 
     private int mIndicatorColor = 0;
+    // The dominant color of the icon if already known, or 0
+    private int mIconDominantColor = 0;
 
     /**
      * Indicates the progress of the preloader [0-100]. If it goes above 100, only the icon
@@ -227,16 +229,28 @@ class PreloadIconDrawable extends Drawable {
         return mIcon.getIntrinsicWidth();
     }
 
+    /**
+     * Sets the dominant color of the icon, eg. from {@link IconCache#getDominantColor}, so that it
+     * does not need to be computed again.
+     */
+    public void setIconDominantColor(int color) {
+        mIconDominantColor = color;
+        mIndicatorColor = 0;
+    }
+
     private int getIndicatorColor() {
         if (mIndicatorColor != 0) {
             return mIndicatorColor;
         }
-        if (!(mIcon instanceof FastBitmapDrawable)) {
+        if (mIconDominantColor != 0) {
+            mIndicatorColor = mIconDominantColor;
+        } else if (mIcon instanceof FastBitmapDrawable) {
+            mIndicatorColor = Utilities.findDominantColorByHue(
+                    ((FastBitmapDrawable) mIcon).getBitmap(), 20);
+        } else {
             mIndicatorColor = DEFAULT_COLOR;
             return mIndicatorColor;
         }
-        mIndicatorColor = Utilities.findDominantColorByHue(
-                ((FastBitmapDrawable) mIcon).getBitmap(), 20);
 
         // Make sure that the dominant color has enough saturation to be visible properly.
         float[] hsv = new float[3];
@@ -35,7 +35,6 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PaintFlagsDrawFilter;
@@ -53,7 +52,6 @@ import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.View;
 import android.widget.Toast;
@@ -63,6 +61,7 @@ import com.android.launcher3.settings.SettingsProvider;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -76,16 +75,29 @@ public final class Utilities {
 
     private static final String TAG = "Launcher.Utilities";
 
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
+    /**
+     * The state used to render icons. Each thread has its own, so that icons can be rendered
+     * concurrently by the loader, the icon cache and the package update tasks.
+     */
+    private static class IconCanvas {
+        final Canvas canvas = new Canvas();
+        final Rect oldBounds = new Rect();
+
+        IconCanvas() {
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+        }
+    }
+
+    private static final ThreadLocal<IconCanvas> sIconCanvas = new ThreadLocal<IconCanvas>() {
+        @Override
+        protected IconCanvas initialValue() {
+            return new IconCanvas();
+        }
+    };
 
     private static final Pattern sTrimPattern =
             Pattern.compile("^[\\s|\\p{javaSpaceChar}]*(.*)[\\s|\\p{javaSpaceChar}]*$");
-
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
     static int sColors[] = { 0xffff0000, 0xff00ff00, 0xff0000ff };
     static int sColorIndex = 0;
 
@@ -180,67 +192,65 @@ public final class Utilities {
      * Returns a bitmap suitable for the all apps view.
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context) {
-        synchronized (sCanvas) {
-            final int iconBitmapSize = getIconBitmapSize();
-
-            int width = iconBitmapSize;
-            int height = iconBitmapSize;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+        final int iconBitmapSize = getIconBitmapSize();
+        final IconCanvas iconCanvas = sIconCanvas.get();
+        int width = iconBitmapSize;
+        int height = iconBitmapSize;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-            if (sourceWidth > 0 && sourceHeight > 0) {
-                // Scale the icon proportionally to the icon dimensions
-                final float ratio = (float) sourceWidth / sourceHeight;
-                if (sourceWidth > sourceHeight) {
-                    height = (int) (width / ratio);
-                } else if (sourceHeight > sourceWidth) {
-                    width = (int) (height * ratio);
-                }
+        }
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Scale the icon proportionally to the icon dimensions
+            final float ratio = (float) sourceWidth / sourceHeight;
+            if (sourceWidth > sourceHeight) {
+                height = (int) (width / ratio);
+            } else if (sourceHeight > sourceWidth) {
+                width = (int) (height * ratio);
             }
+        }
 
-            // no intrinsic size --> use default size
-            int textureWidth = iconBitmapSize;
-            int textureHeight = iconBitmapSize;
-
-            final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
-
-            final int left = (textureWidth-width) / 2;
-            final int top = (textureHeight-height) / 2;
-
-            @SuppressWarnings("all") // suppress dead code warning
-            final boolean debug = false;
-            if (debug) {
-                // draw a big box for the icon for debugging
-                canvas.drawColor(sColors[sColorIndex]);
-                if (++sColorIndex >= sColors.length) sColorIndex = 0;
-                Paint debugPaint = new Paint();
-                debugPaint.setColor(0xffcccc00);
-                canvas.drawRect(left, top, left+width, top+height, debugPaint);
-            }
+        // no intrinsic size --> use default size
+        int textureWidth = iconBitmapSize;
+        int textureHeight = iconBitmapSize;
+
+        final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = iconCanvas.canvas;
+        canvas.setBitmap(bitmap);
+
+        final int left = (textureWidth-width) / 2;
+        final int top = (textureHeight-height) / 2;
+
+        @SuppressWarnings("all") // suppress dead code warning
+        final boolean debug = false;
+        if (debug) {
+            // draw a big box for the icon for debugging
+            canvas.drawColor(sColors[sColorIndex]);
+            if (++sColorIndex >= sColors.length) sColorIndex = 0;
+            Paint debugPaint = new Paint();
+            debugPaint.setColor(0xffcccc00);
+            canvas.drawRect(left, top, left+width, top+height, debugPaint);
+        }
 
-            sOldBounds.set(icon.getBounds());
-            icon.setBounds(left, top, left+width, top+height);
-            icon.draw(canvas);
-            icon.setBounds(sOldBounds);
-            canvas.setBitmap(null);
+        iconCanvas.oldBounds.set(icon.getBounds());
+        icon.setBounds(left, top, left+width, top+height);
+        icon.draw(canvas);
+        icon.setBounds(iconCanvas.oldBounds);
+        canvas.setBitmap(null);
 
-            return bitmap;
-        }
+        return bitmap;
     }
 
     /**
@@ -417,12 +427,53 @@ public final class Utilities {
         }
     }
 
+    /**
+     * Scratch buffers used by {@link #findDominantColorByHue}, reused across calls on each thread.
+     */
+    private static class DominantColorBuffers {
+        final float[] hueScoreHistogram = new float[360];
+        int[] row = new int[0];
+
+        // The opaque samples of the first pass
+        int[] sampleColors = new int[0];
+        int[] sampleHues = new int[0];
+        float[] sampleSaturations = new float[0];
+        float[] sampleValues = new float[0];
+
+        // The [s,v] buckets of the samples matching the winning hue
+        int[] buckets = new int[0];
+        float[] bucketScores = new float[0];
+
+        void ensureCapacity(int width, int sampleCount) {
+            if (row.length < width) {
+                row = new int[width];
+            }
+            if (sampleColors.length < sampleCount) {
+                sampleColors = new int[sampleCount];
+                sampleHues = new int[sampleCount];
+                sampleSaturations = new float[sampleCount];
+                sampleValues = new float[sampleCount];
+                buckets = new int[sampleCount];
+                bucketScores = new float[sampleCount];
+            }
+        }
+    }
+
+    private static final ThreadLocal<DominantColorBuffers> sDominantColorBuffers =
+            new ThreadLocal<DominantColorBuffers>() {
+                @Override
+                protected DominantColorBuffers initialValue() {
+                    return new DominantColorBuffers();
+                }
+            };
+
     /**
      * This picks a dominant color, looking for high-saturation, high-value, repeated hues.
+     * Consider using {@link IconCache#getDominantColor} for app icons, which caches the result.
      * @param bitmap The bitmap to scan
      * @param samples The approximate max number of samples to use.
      */
-    static int findDominantColorByHue(Bitmap bitmap, int samples) {
+    public static int findDominantColorByHue(Bitmap bitmap, int samples) {
         final int height = bitmap.getHeight();
         final int width = bitmap.getWidth();
         int sampleStride = (int) Math.sqrt((height * width) / samples);
@@ -430,67 +481,113 @@ public final class Utilities {
             sampleStride = 1;
         }
 
-        // This is an out-param, for getting the hsv values for an rgb
-        float[] hsv = new float[3];
+        final DominantColorBuffers buffers = sDominantColorBuffers.get();
+        buffers.ensureCapacity(width, ((height + sampleStride - 1) / sampleStride)
+                * ((width + sampleStride - 1) / sampleStride));
+        final int[] row = buffers.row;
+        final int[] sampleColors = buffers.sampleColors;
+        final int[] sampleHues = buffers.sampleHues;
+        final float[] sampleSaturations = buffers.sampleSaturations;
+        final float[] sampleValues = buffers.sampleValues;
 
         // First get the best hue, by creating a histogram over 360 hue buckets,
         // where each pixel contributes a score weighted by saturation, value, and alpha.
-        float[] hueScoreHistogram = new float[360];
+        final float[] hueScoreHistogram = buffers.hueScoreHistogram;
+        Arrays.fill(hueScoreHistogram, 0);
         float highScore = -1;
         int bestHue = -1;
+        int sampleCount = 0;
 
         for (int y = 0; y < height; y += sampleStride) {
+            // Read the whole row at once rather than each pixel separately
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
             for (int x = 0; x < width; x += sampleStride) {
-                int argb = bitmap.getPixel(x, y);
+                int argb = row[x];
                 int alpha = 0xFF & (argb >> 24);
                 if (alpha < 0x80) {
                     // Drop mostly-transparent pixels.
                     continue;
                 }
-                // Remove the alpha channel.
-                int rgb = argb | 0xFF000000;
-                Color.colorToHSV(rgb, hsv);
+
+                // Convert to HSV, the same way as Color.colorToHSV but without the JNI call.
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
+                int max = Math.max(r, Math.max(g, b));
+                int delta = max - Math.min(r, Math.min(g, b));
+                float s = (max == 0) ? 0 : (float) delta / max;
+                float v = max / 255f;
+                float h = 0;
+                if (delta != 0) {
+                    if (r == max) {
+                        h = (float) (g - b) / delta;
+                    } else if (g == max) {
+                        h = 2 + (float) (b - r) / delta;
+                    } else {
+                        h = 4 + (float) (r - g) / delta;
+                    }
+                    h *= 60;
+                    if (h < 0) {
+                        h += 360;
+                    }
+                }
+
                 // Bucket colors by the 360 integer hues.
-                int hue = (int) hsv[0];
+                int hue = (int) h;
                 if (hue < 0 || hue >= hueScoreHistogram.length) {
                     // Defensively avoid array bounds violations.
                     continue;
                 }
-                float score = hsv[1] * hsv[2];
+                float score = s * v;
                 hueScoreHistogram[hue] += score;
                 if (hueScoreHistogram[hue] > highScore) {
                     highScore = hueScoreHistogram[hue];
                     bestHue = hue;
                 }
+
+                // Remove the alpha channel.
+                sampleColors[sampleCount] = argb | 0xFF000000;
+                sampleHues[sampleCount] = hue;
+                sampleSaturations[sampleCount] = s;
+                sampleValues[sampleCount] = v;
+                sampleCount++;
             }
         }
 
-        SparseArray<Float> rgbScores = new SparseArray<Float>();
+        final int[] buckets = buffers.buckets;
+        final float[] bucketScores = buffers.bucketScores;
+        int bucketCount = 0;
         int bestColor = 0xff000000;
         highScore = -1;
         // Go back over the RGB colors that match the winning hue,
         // creating a histogram of weighted s*v scores, for up to 100*100 [s,v] buckets.
         // The highest-scoring RGB color wins.
-        for (int y = 0; y < height; y += sampleStride) {
-            for (int x = 0; x < width; x += sampleStride) {
-                int rgb = bitmap.getPixel(x, y) | 0xff000000;
-                Color.colorToHSV(rgb, hsv);
-                int hue = (int) hsv[0];
-                if (hue == bestHue) {
-                    float s = hsv[1];
-                    float v = hsv[2];
-                    int bucket = (int) (s * 100) + (int) (v * 10000);
-                    // Score by cumulative saturation * value.
-                    float score = s * v;
-                    Float oldTotal = rgbScores.get(bucket);
-                    float newTotal = oldTotal == null ? score : oldTotal + score;
-                    rgbScores.put(bucket, newTotal);
-                    if (newTotal > highScore) {
-                        highScore = newTotal;
-                        // All the colors in the winning bucket are very similar. Last in wins.
-                        bestColor = rgb;
-                    }
-                }
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleHues[i] != bestHue) {
+                continue;
+            }
+            float s = sampleSaturations[i];
+            float v = sampleValues[i];
+            int bucket = (int) (s * 100) + (int) (v * 10000);
+            // Score by cumulative saturation * value.
+            float score = s * v;
+
+            // There are only as many buckets as samples, so a linear search is cheap enough.
+            int index = 0;
+            while (index < bucketCount && buckets[index] != bucket) {
+                index++;
+            }
+            if (index == bucketCount) {
+                buckets[bucketCount] = bucket;
+                bucketScores[bucketCount] = 0;
+                bucketCount++;
+            }
+            float newTotal = bucketScores[index] + score;
+            bucketScores[index] = newTotal;
+            if (newTotal > highScore) {
+                highScore = newTotal;
+                // All the colors in the winning bucket are very similar. Last in wins.
+                bestColor = sampleColors[i];
             }
         }
         return bestColor;
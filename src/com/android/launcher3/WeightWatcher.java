@@ -42,8 +42,6 @@ public class WeightWatcher extends LinearLayout {
     private static final int TEXT_COLOR = 0xFFFFFFFF;
     private static final int BACKGROUND_COLOR = 0xc0000000;
 
-    private static final int UPDATE_RATE = 5000;
-
     private static final int MSG_START = 1;
     private static final int MSG_STOP = 2;
     private static final int MSG_UPDATE = 3;
@@ -78,7 +76,8 @@ public class WeightWatcher extends LinearLayout {
                         }
                         pw.update();
                     }
-                    mHandler.sendEmptyMessageDelayed(MSG_UPDATE, UPDATE_RATE);
+                    mHandler.sendEmptyMessageDelayed(MSG_UPDATE,
+                            mMemoryService.getUpdateRate());
                     break;
             }
         }
@@ -213,6 +212,11 @@ public class WeightWatcher extends LinearLayout {
         }
 
         public void update() {
+            // Take a new copy of the samples, which the tracker updates on its own thread
+            MemoryTracker.ProcessMemInfo memInfo = mMemoryService.getMemInfo(mPid);
+            if (memInfo != null) {
+                mMemInfo = memInfo;
+            }
             //Log.v("WeightWatcher.ProcessWatcher",
             //        "MSG_UPDATE pss=" + mMemInfo.currentPss);
             mText.setText("(" + mPid
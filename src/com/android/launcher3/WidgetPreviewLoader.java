@@ -1,7 +1,6 @@
 package com.android.launcher3;
 
 import android.content.ComponentName;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -11,6 +10,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
@@ -32,6 +32,7 @@ import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.DatabaseTuning;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
@@ -107,6 +108,19 @@ public class WidgetPreviewLoader {
         return new PreviewLoadRequest(task);
     }
 
+    /**
+     * Returns the number of bytes used by the bitmaps kept for reusing in later previews.
+     */
+    public long getUnusedBitmapBytes() {
+        long bytes = 0;
+        synchronized (mUnusedBitmaps) {
+            for (Bitmap bitmap : mUnusedBitmaps) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+        return bytes;
+    }
+
     /**
      * The DB holds the generated previews for various components. Previews can also have different
      * sizes (landscape vs portrait).
@@ -123,8 +137,49 @@ public class WidgetPreviewLoader {
         private static final String COLUMN_VERSION = "version";
         private static final String COLUMN_PREVIEW_BITMAP = "preview_bitmap";
 
+        // The lookup of a single preview, as constant SQL so that it stays prepared
+        private static final String QUERY_PREVIEW = "SELECT " + COLUMN_PREVIEW_BITMAP
+                + " FROM " + TABLE_NAME + " WHERE " + COLUMN_COMPONENT + " = ? AND "
+                + COLUMN_USER + " = ? AND " + COLUMN_SIZE + " = ?";
+
+        private final Context mContext;
+        private SQLiteStatement mInsertStatement;
+
         public CacheDb(Context context) {
             super(context, LauncherFiles.WIDGET_PREVIEWS_DB, null, DB_VERSION);
+            mContext = context;
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            DatabaseTuning.configure(mContext, db, true);
+        }
+
+        /**
+         * Inserts or replaces a preview with a statement which is only compiled once.
+         */
+        public synchronized void insertPreview(String component, long userSerial, String size,
+                String packageName, long version, long lastUpdated, byte[] preview) {
+            if (mInsertStatement == null) {
+                mInsertStatement = getWritableDatabase().compileStatement(
+                        "INSERT OR REPLACE INTO " + TABLE_NAME + " (" +
+                        COLUMN_COMPONENT + ", " + COLUMN_USER + ", " + COLUMN_SIZE + ", " +
+                        COLUMN_PACKAGE + ", " + COLUMN_VERSION + ", " + COLUMN_LAST_UPDATED +
+                        ", " + COLUMN_PREVIEW_BITMAP + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            }
+            mInsertStatement.clearBindings();
+            DatabaseTuning.bindAll(mInsertStatement, 1, component, userSerial, size, packageName,
+                    version, lastUpdated, preview);
+            mInsertStatement.executeInsert();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mInsertStatement != null) {
+                mInsertStatement.close();
+                mInsertStatement = null;
+            }
+            super.close();
         }
 
         @Override
@@ -175,17 +230,11 @@ public class WidgetPreviewLoader {
     }
 
     @Thunk void writeToDb(WidgetCacheKey key, long[] versions, Bitmap preview) {
-        ContentValues values = new ContentValues();
-        values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToString());
-        values.put(CacheDb.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
-        values.put(CacheDb.COLUMN_SIZE, key.size);
-        values.put(CacheDb.COLUMN_PACKAGE, key.componentName.getPackageName());
-        values.put(CacheDb.COLUMN_VERSION, versions[0]);
-        values.put(CacheDb.COLUMN_LAST_UPDATED, versions[1]);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, Utilities.flattenBitmap(preview));
         try {
-            mDb.getWritableDatabase().insertWithOnConflict(CacheDb.TABLE_NAME, null, values,
-                    SQLiteDatabase.CONFLICT_REPLACE);
+            mDb.insertPreview(key.componentName.flattenToString(),
+                    mUserManager.getSerialNumberForUser(key.user), key.size,
+                    key.componentName.getPackageName(), versions[0], versions[1],
+                    Utilities.flattenBitmap(preview));
         } catch (SQLException e) {
             Log.e(TAG, "Error saving image to DB", e);
         }
@@ -294,16 +343,12 @@ public class WidgetPreviewLoader {
     @Thunk Bitmap readFromDb(WidgetCacheKey key, Bitmap recycle, PreviewLoadTask loadTask) {
         Cursor cursor = null;
         try {
-            cursor = mDb.getReadableDatabase().query(
-                    CacheDb.TABLE_NAME,
-                    new String[] { CacheDb.COLUMN_PREVIEW_BITMAP },
-                    CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER + " = ? AND " + CacheDb.COLUMN_SIZE + " = ?",
+            cursor = mDb.getReadableDatabase().rawQuery(CacheDb.QUERY_PREVIEW,
                     new String[] {
                             key.componentName.flattenToString(),
                             Long.toString(mUserManager.getSerialNumberForUser(key.user)),
                             key.size
-                    },
-                    null, null, null);
+                    });
             // If cancelled, skip getting the blob and decoding it into a bitmap
             if (loadTask.isCancelled()) {
                 return null;
@@ -288,9 +288,12 @@ public class Workspace extends PagedView
 
     private AccessibilityDelegate mPagesAccessibilityDelegate;
 
+    // Whether mBindPages is posted and has not run yet
+    @Thunk boolean mBindPagesPosted;
     private final Runnable mBindPages = new Runnable() {
         @Override
         public void run() {
+            mBindPagesPosted = false;
             mLauncher.getModel().bindRemainingSynchronousPages();
         }
     };
@@ -503,6 +506,13 @@ public class Workspace extends PagedView
         super.onChildViewAdded(parent, child);
     }
 
+    @Override
+    public void onChildViewRemoved(View parent, View child) {
+        // Give back the layer budget of the removed page
+        ((CellLayout) child).enableHardwareLayer(false, HardwareLayerBudget.PRIORITY_PREFETCH);
+        super.onChildViewRemoved(parent, child);
+    }
+
     protected boolean shouldDrawChild(View child) {
         final CellLayout cl = (CellLayout) child;
         return super.shouldDrawChild(child) &&
@@ -1762,8 +1772,12 @@ public class Workspace extends PagedView
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        // Call back to LauncherModel to finish binding after the first draw
-        post(mBindPages);
+        // Call back to LauncherModel to finish binding after the first draw, only once for each
+        // set of remaining pages
+        if (!mBindPagesPosted && mLauncher.getModel().hasRemainingSynchronousPages()) {
+            mBindPagesPosted = true;
+            post(mBindPages);
+        }
     }
 
     @Override
@@ -1845,7 +1859,7 @@ public class Workspace extends PagedView
             } else {
                 for (int i = 0; i < getPageCount(); i++) {
                     final CellLayout cl = (CellLayout) getChildAt(i);
-                    cl.enableHardwareLayer(false);
+                    cl.enableHardwareLayer(false, HardwareLayerBudget.PRIORITY_VISIBLE);
                 }
             }
         }
@@ -1857,6 +1871,8 @@ public class Workspace extends PagedView
             getVisiblePages(mTempVisiblePagesRange);
             int leftScreen = mTempVisiblePagesRange[0];
             int rightScreen = mTempVisiblePagesRange[1];
+            int firstVisible = leftScreen;
+            int lastVisible = rightScreen;
             if (leftScreen == rightScreen) {
                 // make sure we're caching at least two pages always
                 if (rightScreen < screenCount - 1) {
@@ -1866,6 +1882,10 @@ public class Workspace extends PagedView
                 }
             }
 
+            // The visible pages of a state transition take priority over other layers, and the
+            // extra page is only kept if the budget allows it.
+            final int visiblePriority = mIsSwitchingState ? HardwareLayerBudget.PRIORITY_TRANSITION
+                    : HardwareLayerBudget.PRIORITY_VISIBLE;
             final CellLayout customScreen = mWorkspaceScreens.get(CUSTOM_CONTENT_SCREEN_ID);
             for (int i = 0; i < screenCount; i++) {
                 final CellLayout layout = (CellLayout) getPageAt(i);
@@ -1874,7 +1894,9 @@ public class Workspace extends PagedView
                 // customScreen, which may animate its content during transitions.
                 boolean enableLayer = layout != customScreen &&
                         leftScreen <= i && i <= rightScreen && shouldDrawChild(layout);
-                layout.enableHardwareLayer(enableLayer);
+                boolean isVisible = firstVisible <= i && i <= lastVisible;
+                layout.enableHardwareLayer(enableLayer, isVisible
+                        ? visiblePriority : HardwareLayerBudget.PRIORITY_PREFETCH);
             }
         }
     }
@@ -2241,18 +2263,40 @@ public class Workspace extends PagedView
     }
 
     /**
-     * Returns a new bitmap to be used as the object outline, e.g. to visualize the drop location.
-     * Responsibility for the bitmap is transferred to the caller.
+     * Returns a bitmap to be used as the object outline, e.g. to visualize the drop location.
+     * The outline of an icon may be shared, so it must not be modified or recycled.
      */
     private Bitmap createDragOutline(View v, int padding) {
         final int outlineColor = getResources().getColor(R.color.outline_color);
-        final Bitmap b = Bitmap.createBitmap(
-                v.getWidth() + padding, v.getHeight() + padding, Bitmap.Config.ARGB_8888);
+        final int width = v.getWidth() + padding;
+        final int height = v.getHeight() + padding;
+
+        // Icons reuse the outline from previous drags of the same icon bitmap
+        Bitmap icon = null;
+        Rect iconBounds = null;
+        if (v instanceof TextView) {
+            Drawable d = getTextViewIcon((TextView) v);
+            if (d instanceof FastBitmapDrawable) {
+                icon = ((FastBitmapDrawable) d).getBitmap();
+                iconBounds = getDrawableBounds(d);
+                Bitmap outline = mOutlineHelper.getCachedOutline(icon, width, height, iconBounds,
+                        outlineColor);
+                if (outline != null) {
+                    return outline;
+                }
+            }
+        }
+
+        final Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
 
         mCanvas.setBitmap(b);
         drawDragView(v, mCanvas, padding);
         mOutlineHelper.applyExpensiveOutlineWithBlur(b, mCanvas, outlineColor, outlineColor);
         mCanvas.setBitmap(null);
+
+        if (icon != null) {
+            mOutlineHelper.cacheOutline(icon, width, height, iconBounds, outlineColor, b);
+        }
         return b;
     }
 
@@ -4223,8 +4267,8 @@ public class Workspace extends PagedView
                         BubbleTextView shortcut = (BubbleTextView) v;
                         shortcut.applyFromShortcutInfo(shortcutInfo, mIconCache);
 
-                        if (parent != null) {
-                            parent.invalidate();
+                        if (parent instanceof FolderIcon) {
+                            ((FolderIcon) parent).invalidatePreview();
                         }
                     }
                 }
@@ -4380,6 +4424,7 @@ public class Workspace extends PagedView
                     }
                 }
                 folder.invalidate();
+                ((FolderIcon) view).invalidatePreview();
             }
         }
     }
@@ -4430,6 +4475,7 @@ public class Workspace extends PagedView
                     }
                 }
                 folder.invalidate();
+                ((FolderIcon) view).invalidatePreview();
             }
         }
     }
@@ -4509,8 +4555,8 @@ public class Workspace extends PagedView
                     shortcut.applyFromShortcutInfo(si, mIconCache,
                             si.isPromise() != oldPromiseState);
 
-                    if (parent != null) {
-                        parent.invalidate();
+                    if (parent instanceof FolderIcon) {
+                        ((FolderIcon) parent).invalidatePreview();
                     }
                 }
                 // process all the shortcuts
@@ -31,11 +31,8 @@ import cyanogenmod.providers.CMSettings;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * The alphabetically sorted list of applications.
@@ -181,16 +178,20 @@ public class AlphabeticalAppsList {
         }
     }
 
-    private Launcher mLauncher;
+    private Context mContext;
 
     // The set of apps from the system not including predictions
     private final List<AppInfo> mApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The set of apps from the system kept sorted by name, updated incrementally
+    private final ArrayList<AppInfo> mSortedApps = new ArrayList<>();
 
     // The set of filtered apps with the current filter
-    private List<AppInfo> mFilteredApps = new ArrayList<>();
+    private ArrayList<AppInfo> mFilteredApps = new ArrayList<>();
+    // The apps matching the current search results, reused across filter updates
+    private final ArrayList<AppInfo> mSearchResultApps = new ArrayList<>();
     // The current set of adapter items
-    private List<AdapterItem> mAdapterItems = new ArrayList<>();
+    private ArrayList<AdapterItem> mAdapterItems = new ArrayList<>();
     // The set of sections for the apps with the current filter
     private List<SectionInfo> mSections = new ArrayList<>();
     // The set of sections that we allow fast-scrolling to
@@ -213,7 +214,7 @@ public class AlphabeticalAppsList {
     boolean mCustomPredictedAppsEnabled;
 
     public AlphabeticalAppsList(Context context) {
-        mLauncher = (Launcher) context;
+        mContext = context;
         mIndexer = new AlphabeticIndexCompat(context);
         mAppNameComparator = new AppNameComparator(context);
     }
@@ -338,7 +339,14 @@ public class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        mAppNameComparator.clearSortKeys();
+        for (AppInfo app : apps) {
+            mComponentToAppMap.put(app.toComponentKey(), app);
+        }
+        mSortedApps.clear();
+        mSortedApps.addAll(mComponentToAppMap.values());
+        Collections.sort(mSortedApps, mAppNameComparator.getAppInfoComparator());
+        onAppsUpdated();
     }
 
     /**
@@ -353,7 +361,11 @@ public class AlphabeticalAppsList {
      */
     public void updateApps(List<AppInfo> apps) {
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            AppInfo oldApp = mComponentToAppMap.put(app.toComponentKey(), app);
+            if (oldApp != null) {
+                removeSortedApp(oldApp);
+            }
+            insertSortedApp(app);
         }
         onAppsUpdated();
     }
@@ -363,30 +375,50 @@ public class AlphabeticalAppsList {
      */
     public void removeApps(List<AppInfo> apps) {
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            AppInfo oldApp = mComponentToAppMap.remove(app.toComponentKey());
+            if (oldApp != null) {
+                removeSortedApp(oldApp);
+            }
         }
         onAppsUpdated();
     }
 
+    /**
+     * Inserts the app at its sorted position in {@link #mSortedApps}.
+     */
+    private void insertSortedApp(AppInfo app) {
+        int index = Collections.binarySearch(mSortedApps, app,
+                mAppNameComparator.getAppInfoComparator());
+        mSortedApps.add(index < 0 ? -(index + 1) : index, app);
+    }
+
+    /**
+     * Removes the given instance from {@link #mSortedApps}.  The app is looked up by identity,
+     * since its title may have changed since it was inserted.
+     */
+    private void removeSortedApp(AppInfo app) {
+        for (int i = mSortedApps.size() - 1; i >= 0; i--) {
+            if (mSortedApps.get(i) == app) {
+                mSortedApps.remove(i);
+                return;
+            }
+        }
+    }
+
     /**
      * Updates internals when the set of apps are updated.
      */
     private void onAppsUpdated() {
-        // Sort the list of apps
-        mApps.clear();
-        mApps.addAll(mComponentToAppMap.values());
-        Collections.sort(mApps, mAppNameComparator.getAppInfoComparator());
-
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
-        TreeMap<String, ArrayList<AppInfo>> sectionMap = null;
+        Locale curLocale = mContext.getResources().getConfiguration().locale;
         boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
         if (localeRequiresSectionSorting) {
-            // Compute the section headers.  We use a TreeMap with the section name comparator to
-            // ensure that the sections are ordered when we iterate over it later
-            sectionMap = new TreeMap<>(mAppNameComparator.getSectionNameComparator());
-            for (AppInfo info : mApps) {
+            // Group the apps by section, keeping their sorted order within each section, and then
+            // order only the distinct section names instead of all the apps
+            HashMap<String, ArrayList<AppInfo>> sectionMap = new HashMap<>();
+            ArrayList<String> sectionNames = new ArrayList<>();
+            for (AppInfo info : mSortedApps) {
                 // Add the section to the cache
                 String sectionName = getAndUpdateCachedSectionName(info.title);
 
@@ -395,19 +427,22 @@ public class AlphabeticalAppsList {
                 if (sectionApps == null) {
                     sectionApps = new ArrayList<>();
                     sectionMap.put(sectionName, sectionApps);
+                    sectionNames.add(sectionName);
                 }
                 sectionApps.add(info);
             }
+            Collections.sort(sectionNames, mAppNameComparator.getSectionNameComparator());
 
             // Add each of the section apps to the list in order
-            List<AppInfo> allApps = new ArrayList<>(mApps.size());
-            for (Map.Entry<String, ArrayList<AppInfo>> entry : sectionMap.entrySet()) {
-                allApps.addAll(entry.getValue());
-            }
-
             mApps.clear();
-            mApps.addAll(allApps);
+            for (String sectionName : sectionNames) {
+                mApps.addAll(sectionMap.get(sectionName));
+            }
         } else {
+            // The list of apps is already sorted
+            mApps.clear();
+            mApps.addAll(mSortedApps);
+
             // Just compute the section headers for use below
             for (AppInfo info : mApps) {
                 // Add the section to the cache
@@ -430,10 +465,18 @@ public class AlphabeticalAppsList {
         int position = 0;
         int appIndex = 0;
 
+        // Section breaks are not added at all when sections are merged, so that the adapter items
+        // are built in a single pass
+        boolean mergeSections = shouldMergeSections();
+
         // Prepare to update the list of sections, filtered apps, etc.
+        List<AppInfo> filteredAppInfos = getFiltersAppInfos();
         mFilteredApps.clear();
+        mFilteredApps.ensureCapacity(filteredAppInfos.size() + mNumPredictedAppsPerRow);
         mFastScrollerSections.clear();
         mAdapterItems.clear();
+        // At most one section break per app, the predictions and the search market items
+        mAdapterItems.ensureCapacity(2 * (filteredAppInfos.size() + mNumPredictedAppsPerRow) + 4);
         mSections.clear();
 
         if (DEBUG_PREDICTIONS) {
@@ -471,7 +514,7 @@ public class AlphabeticalAppsList {
                         mPredictedApps.add(info);
                     } else {
                         if (LauncherAppState.isDogfoodBuild()) {
-                            Log.e(TAG, "Predicted app not found: " + ck.flattenToString(mLauncher));
+                            Log.e(TAG, "Predicted app not found: " + ck.flattenToString(mContext));
                         }
                     }
                     // Stop at the number of predicted apps
@@ -492,10 +535,11 @@ public class AlphabeticalAppsList {
                 String text = mCustomPredictedAppsEnabled ? CUSTOM_PREDICTIONS_SCRUBBER : " ";
                 lastFastScrollerSectionInfo =
                         new FastScrollSectionInfo(text, lastSectionInfo);
-                AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
                 mSections.add(lastSectionInfo);
                 mFastScrollerSections.add(lastFastScrollerSectionInfo);
-                mAdapterItems.add(sectionItem);
+                if (!mergeSections) {
+                    mAdapterItems.add(AdapterItem.asSectionBreak(position++, lastSectionInfo));
+                }
 
                 // Add the predicted app items
                 for (AppInfo info : mPredictedApps) {
@@ -511,17 +555,18 @@ public class AlphabeticalAppsList {
                 }
 
                 if (mCustomPredictedAppsEnabled) {
-                    position = mLauncher.getRemoteFolderManager().onUpdateAdapterItems(
+                    Launcher launcher = (Launcher) mContext;
+                    position = launcher.getRemoteFolderManager().onUpdateAdapterItems(
                             mAdapterItems, lastFastScrollerSectionInfo, lastSectionInfo, position);
                 }
             }
         }
 
-        ProtectedComponentsHelper.updateProtectedComponentsLists(mLauncher);
+        ProtectedComponentsHelper.updateProtectedComponentsLists(mContext);
 
         // Recreate the filtered and sectioned apps (for convenience for the grid layout) from the
         // ordered set of sections
-        for (AppInfo info : getFiltersAppInfos()) {
+        for (AppInfo info : filteredAppInfos) {
             if (ProtectedComponentsHelper.isProtectedApp(info.flags, info.componentName)) {
                 continue;
             }
@@ -537,7 +582,7 @@ public class AlphabeticalAppsList {
                 mFastScrollerSections.add(lastFastScrollerSectionInfo);
 
                 // Create a new section item to break the flow of items in the list
-                if (!hasFilter()) {
+                if (!hasFilter() && !mergeSections) {
                     AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
                     mAdapterItems.add(sectionItem);
                 }
@@ -564,8 +609,10 @@ public class AlphabeticalAppsList {
             mAdapterItems.add(AdapterItem.asMarketSearch(position++));
         }
 
-        // Merge multiple sections together as needed.
-        mergeSections();
+        // Merge any sections added by extensions together as needed.
+        if (mergeSections) {
+            mergeSections();
+        }
 
         if (mNumAppsPerRow != 0) {
             // Update the number of rows in the adapter after we do all the merging (otherwise, we
@@ -637,7 +684,9 @@ public class AlphabeticalAppsList {
             return mApps;
         }
 
-        ArrayList<AppInfo> result = new ArrayList<>();
+        ArrayList<AppInfo> result = mSearchResultApps;
+        result.clear();
+        result.ensureCapacity(mSearchResults.size());
         for (ComponentKey key : mSearchResults) {
             AppInfo match = mComponentToAppMap.get(key);
             if (match != null) {
@@ -648,24 +697,29 @@ public class AlphabeticalAppsList {
     }
 
     /**
-     * Merges multiple sections to reduce visual raggedness.
+     * Returns whether the sections should be merged to reduce visual raggedness.
      */
-    private void mergeSections() {
+    private boolean shouldMergeSections() {
         // Ignore merging until we have an algorithm and a valid row size
-        if (!mMergeSections || mNumAppsPerRow == 0 || hasFilter()) {
-            return;
-        }
+        return mMergeSections && mNumAppsPerRow != 0 && !hasFilter();
+    }
 
-        Iterator<AdapterItem> iter = mAdapterItems.iterator();
-        int positionShift = 0;
-        while (iter.hasNext()) {
-            AdapterItem item = iter.next();
-            item.position -= positionShift;
-            if (item.viewType == AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE) {
-                iter.remove();
-                positionShift++;
+    /**
+     * Removes any remaining section breaks from the adapter items, compacting the list in place.
+     */
+    private void mergeSections() {
+        int count = mAdapterItems.size();
+        int writeIndex = 0;
+        for (int i = 0; i < count; i++) {
+            AdapterItem item = mAdapterItems.get(i);
+            if (item.viewType != AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE) {
+                item.position = writeIndex;
+                mAdapterItems.set(writeIndex++, item);
             }
         }
+        if (writeIndex < count) {
+            mAdapterItems.subList(writeIndex, count).clear();
+        }
     }
 
     /**
@@ -22,14 +22,17 @@ import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 
 import java.util.Comparator;
+import java.util.HashMap;
 
 /**
- * A comparator to arrange items based on user profiles.
+ * A comparator to arrange items based on user profiles. The user serial numbers are cached, as
+ * looking them up requires a call into the system.
  */
 public abstract class AbstractUserComparator<T extends ItemInfo> implements Comparator<T> {
 
     private final UserManagerCompat mUserManager;
     private final UserHandleCompat mMyUser;
+    private final HashMap<UserHandleCompat, Long> mUserSerials = new HashMap<>();
 
     public AbstractUserComparator(Context context) {
         mUserManager = UserManagerCompat.getInstance(context);
@@ -38,12 +41,25 @@ public abstract class AbstractUserComparator<T extends ItemInfo> implements Comp
 
     @Override
     public int compare(T lhs, T rhs) {
-        if (mMyUser.equals(lhs.user)) {
+        if (lhs.user == rhs.user || (lhs.user != null && lhs.user.equals(rhs.user))) {
+            return 0;
+        } else if (mMyUser.equals(lhs.user)) {
             return -1;
+        } else if (mMyUser.equals(rhs.user)) {
+            return 1;
         } else {
-            Long aUserSerial = mUserManager.getSerialNumberForUser(lhs.user);
-            Long bUserSerial = mUserManager.getSerialNumberForUser(rhs.user);
-            return aUserSerial.compareTo(bUserSerial);
+            long aUserSerial = getUserSerial(lhs.user);
+            long bUserSerial = getUserSerial(rhs.user);
+            return aUserSerial < bUserSerial ? -1 : (aUserSerial == bUserSerial ? 0 : 1);
         }
     }
+
+    private long getUserSerial(UserHandleCompat user) {
+        Long serial = mUserSerials.get(user);
+        if (serial == null) {
+            serial = mUserManager.getSerialNumberForUser(user);
+            mUserSerials.put(user, serial);
+        }
+        return serial;
+    }
 }
@@ -16,11 +16,12 @@
 package com.android.launcher3.model;
 
 import android.content.Context;
+import android.util.LruCache;
 
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.ItemInfo;
-import com.android.launcher3.util.Thunk;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Comparator;
 
@@ -28,9 +29,48 @@ import java.util.Comparator;
  * Class to manage access to an app name comparator.
  * <p>
  * Used to sort application name in all apps view and widget tray view.
+ * <p>
+ * Titles are compared using {@link SortKey}s which are computed once per distinct title and
+ * cached, so that sorting does not need to run the collator for every comparison. The cache keeps
+ * the most recently used titles, as lists are updated incrementally without clearing it.
  */
 public class AppNameComparator {
+
+    /**
+     * The precomputed sort key of a title.
+     */
+    public static class SortKey implements Comparable<SortKey> {
+        public final CollationKey collationKey;
+        // Whether the title starts with a linguistic letter or digit
+        public final boolean startsWithLetterOrDigit;
+
+        SortKey(Collator collator, String title) {
+            collationKey = collator.getCollationKey(title);
+            startsWithLetterOrDigit = (title.length() > 0) &&
+                    Character.isLetterOrDigit(title.codePointAt(0));
+        }
+
+        @Override
+        public int compareTo(SortKey another) {
+            // Ensure that we de-prioritize any titles that don't start with a linguistic letter or
+            // digit
+            if (startsWithLetterOrDigit && !another.startsWithLetterOrDigit) {
+                return -1;
+            } else if (!startsWithLetterOrDigit && another.startsWithLetterOrDigit) {
+                return 1;
+            }
+
+            // Order by the title in the current locale
+            return collationKey.compareTo(another.collationKey);
+        }
+    }
+
+    // The number of sort keys which are kept, enough for the titles and section names of a
+    // large list of apps or widgets
+    private static final int MAX_SORT_KEYS = 1024;
+
     private final Collator mCollator;
+    private final LruCache<String, SortKey> mSortKeys = new LruCache<>(MAX_SORT_KEYS);
     private final AbstractUserComparator<ItemInfo> mAppInfoComparator;
     private final Comparator<String> mSectionNameComparator;
 
@@ -41,7 +81,7 @@ public class AppNameComparator {
             @Override
             public final int compare(ItemInfo a, ItemInfo b) {
                 // Order by the title in the current locale
-                int result = compareTitles(a.title.toString(), b.title.toString());
+                int result = getSortKey(a.title).compareTo(getSortKey(b.title));
                 if (result == 0 && a instanceof AppInfo && b instanceof AppInfo) {
                     AppInfo aAppInfo = (AppInfo) a;
                     AppInfo bAppInfo = (AppInfo) b;
@@ -59,7 +99,7 @@ public class AppNameComparator {
         mSectionNameComparator = new Comparator<String>() {
             @Override
             public int compare(String o1, String o2) {
-                return compareTitles(o1, o2);
+                return getSortKey(o1).compareTo(getSortKey(o2));
             }
         };
     }
@@ -79,21 +119,22 @@ public class AppNameComparator {
     }
 
     /**
-     * Compares two titles with the same return value semantics as Comparator.
+     * Returns the sort key for the given title, computing and caching it if needed.
      */
-    @Thunk int compareTitles(String titleA, String titleB) {
-        // Ensure that we de-prioritize any titles that don't start with a linguistic letter or digit
-        boolean aStartsWithLetter = (titleA.length() > 0) &&
-                Character.isLetterOrDigit(titleA.codePointAt(0));
-        boolean bStartsWithLetter = (titleB.length() > 0) &&
-                Character.isLetterOrDigit(titleB.codePointAt(0));
-        if (aStartsWithLetter && !bStartsWithLetter) {
-            return -1;
-        } else if (!aStartsWithLetter && bStartsWithLetter) {
-            return 1;
+    public SortKey getSortKey(CharSequence title) {
+        String titleStr = (title == null) ? "" : title.toString();
+        SortKey key = mSortKeys.get(titleStr);
+        if (key == null) {
+            key = new SortKey(mCollator, titleStr);
+            mSortKeys.put(titleStr, key);
         }
+        return key;
+    }
 
-        // Order by the title in the current locale
-        return mCollator.compare(titleA, titleB);
+    /**
+     * Clears the cached sort keys, eg. when the set of titles is replaced.
+     */
+    public void clearSortKeys() {
+        mSortKeys.evictAll();
     }
 }
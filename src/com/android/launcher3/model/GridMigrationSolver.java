@@ -0,0 +1,650 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the placement of the items of the workspace screens on a grid which is smaller by at most
+ * one row and one column, for {@link MigrateFromRestoreTask}.
+ * <p>
+ * For every screen, all the row and column removals are tried and the one which causes the least
+ * data loss (and then the least item movement) is picked. The search for each removal is bounded
+ * by the best removal found so far, by the weight which can at best still fit in the free cells,
+ * and by the grid occupancies which were already explored at a lower cost. Screens are solved in
+ * parallel and the whole migration is limited by a time budget, after which the best placement
+ * found so far is used.
+ * <p>
+ * This class only depends on the JVM, so that it can be benchmarked without a device.
+ */
+public class GridMigrationSolver {
+
+    private static final int MAX_THREADS = 4;
+
+    // Number of search nodes between two checks of the deadline
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    // Maximum number of explored grid occupancies kept by a single search
+    private static final int MAX_MEMO_ENTRIES = 1 << 16;
+
+    private static final float EPSILON = 0.0001f;
+
+    /**
+     * An item on the workspace, with the weight of losing it during the migration.
+     */
+    public static class Entry implements Comparable<Entry> {
+        public long id;
+        public boolean isWidget;
+        public int cellX, cellY;
+        public int spanX = 1, spanY = 1;
+        public int minSpanX = 1, minSpanY = 1;
+        public float weight;
+
+        public Entry copy() {
+            Entry entry = new Entry();
+            entry.id = id;
+            entry.isWidget = isWidget;
+            entry.cellX = cellX;
+            entry.cellY = cellY;
+            entry.spanX = spanX;
+            entry.spanY = spanY;
+            entry.minSpanX = minSpanX;
+            entry.minSpanY = minSpanY;
+            entry.weight = weight;
+            return entry;
+        }
+
+        /**
+         * Comparator such that larger widgets come first,  followed by all 1x1 items
+         * based on their weights.
+         */
+        @Override
+        public int compareTo(Entry another) {
+            if (isWidget) {
+                if (another.isWidget) {
+                    return another.spanY * another.spanX - spanX * spanY;
+                } else {
+                    return -1;
+                }
+            } else if (another.isWidget) {
+                return 1;
+            } else {
+                // Place higher weight before lower weight.
+                return Float.compare(another.weight, weight);
+            }
+        }
+
+        public boolean positionSame(Entry org) {
+            return org.cellX == cellX && org.cellY == cellY && org.spanX == spanX &&
+                    org.spanY == spanY;
+        }
+    }
+
+    /**
+     * The placement of the items of a screen.
+     */
+    public static class Solution {
+        public int removedCol = Integer.MAX_VALUE;
+        public int removedRow = Integer.MAX_VALUE;
+        public float weightLoss = Float.MAX_VALUE;
+        public float moveCost = Float.MAX_VALUE;
+
+        /** The items which are kept, with their new position and size. */
+        public ArrayList<Entry> items = new ArrayList<>();
+
+        /** Whether the search ran out of time, and this is the best placement found until then. */
+        public boolean timedOut;
+        public long nodes;
+    }
+
+    private final int mSrcX, mSrcY;
+    private final int mTrgX, mTrgY;
+    private final boolean mShouldRemoveX, mShouldRemoveY;
+    private final long mDeadlineNanos;
+    private final boolean mPrune;
+
+    /**
+     * @param timeBudgetMs the time after which all searches return their best placement so far.
+     */
+    public GridMigrationSolver(int srcX, int srcY, int trgX, int trgY, long timeBudgetMs) {
+        this(srcX, srcY, trgX, trgY, timeBudgetMs, true);
+    }
+
+    /**
+     * @param prune false to search without the remaining loss bound and the memoization.
+     */
+    GridMigrationSolver(int srcX, int srcY, int trgX, int trgY, long timeBudgetMs,
+            boolean prune) {
+        if (trgX >= Integer.SIZE) {
+            throw new IllegalArgumentException("Too many columns: " + trgX);
+        }
+        mSrcX = srcX;
+        mSrcY = srcY;
+        mTrgX = trgX;
+        mTrgY = trgY;
+        mShouldRemoveX = mTrgX < mSrcX;
+        mShouldRemoveY = mTrgY < mSrcY;
+        mDeadlineNanos = System.nanoTime() + timeBudgetMs * 1000000L;
+        mPrune = prune;
+    }
+
+    /**
+     * Solves every screen, in parallel when there are several.
+     * @return the solution of each screen, in the same order.
+     */
+    public ArrayList<Solution> solveScreens(ArrayList<ArrayList<Entry>> screens)
+            throws InterruptedException, ExecutionException {
+        ArrayList<Solution> solutions = new ArrayList<>(screens.size());
+        int threads = Math.min(screens.size(),
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        if (threads <= 1) {
+            for (ArrayList<Entry> items : screens) {
+                solutions.add(solveScreen(items));
+            }
+            return solutions;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "grid-migration-" + threadCount.incrementAndGet());
+            }
+        });
+        try {
+            ArrayList<Future<Solution>> futures = new ArrayList<>(screens.size());
+            for (final ArrayList<Entry> items : screens) {
+                futures.add(executor.submit(new Callable<Solution>() {
+                    @Override
+                    public Solution call() {
+                        return solveScreen(items);
+                    }
+                }));
+            }
+            for (Future<Solution> future : futures) {
+                solutions.add(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return solutions;
+    }
+
+    /**
+     * Finds the row and column which cause the least loss when removed from the screen. The items
+     * are not modified.
+     */
+    public Solution solveScreen(ArrayList<Entry> items) {
+        Solution best = new Solution();
+        for (int x = 0; x < mSrcX; x++) {
+            for (int y = 0; y < mSrcY; y++) {
+                tryRemove(x, y, items, best);
+
+                // No need to loop over all rows, if a row removal is not needed.
+                if (!mShouldRemoveY) {
+                    break;
+                }
+            }
+
+            if (!mShouldRemoveX) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Tries to remove the provided row and column, and updates {@param best} if it causes less
+     * loss.
+     */
+    private void tryRemove(int col, int row, ArrayList<Entry> items, Solution best) {
+        col = mShouldRemoveX ? col : Integer.MAX_VALUE;
+        row = mShouldRemoveY ? row : Integer.MAX_VALUE;
+
+        int[] occupied = new int[mTrgY];
+        ArrayList<Entry> finalItems = new ArrayList<>();
+        ArrayList<Entry> removedItems = new ArrayList<>();
+
+        for (Entry org : items) {
+            Entry item = org.copy();
+            if ((item.cellX <= col && (item.spanX + item.cellX) > col)
+                || (item.cellY <= row && (item.spanY + item.cellY) > row)) {
+                removedItems.add(item);
+                if (item.cellX >= col) item.cellX --;
+                if (item.cellY >= row) item.cellY --;
+            } else {
+                if (item.cellX > col) item.cellX --;
+                if (item.cellY > row) item.cellY --;
+                if (isVacant(occupied, item.cellX, item.cellY, item.spanX, item.spanY)) {
+                    finalItems.add(item);
+                    markCells(occupied, item.cellX, item.cellY, item.spanX, item.spanY, true);
+                } else {
+                    // Does not fit the target grid, or overlaps another item in the backup.
+                    removedItems.add(item);
+                }
+            }
+        }
+
+        Placement placement = new Placement(occupied, removedItems, false,
+                best.weightLoss, best.moveCost);
+        placement.find();
+        best.nodes += placement.mNodes;
+        best.timedOut |= placement.mAborted;
+        if (placement.mFound) {
+            finalItems.addAll(placement.getPlacedItems());
+            best.weightLoss = placement.mLowestWeightLoss;
+            best.moveCost = placement.mLowestMoveCost;
+            best.removedCol = col;
+            best.removedRow = row;
+            best.items = finalItems;
+        }
+    }
+
+    /**
+     * Places as many of the items as possible in the cells which are not used by
+     * {@param occupiedBy}.
+     * @param ignoreMove if true, item movement is not considered in the move cost, leading to a
+     *                   more linear placement.
+     */
+    public Solution place(ArrayList<Entry> occupiedBy, ArrayList<Entry> items,
+            boolean ignoreMove) {
+        int[] occupied = new int[mTrgY];
+        for (Entry item : occupiedBy) {
+            markCells(occupied, item.cellX, item.cellY, item.spanX, item.spanY, true);
+        }
+        Placement placement = new Placement(occupied, items, ignoreMove,
+                Float.MAX_VALUE, Float.MAX_VALUE);
+        placement.find();
+
+        Solution solution = new Solution();
+        solution.weightLoss = placement.mLowestWeightLoss;
+        solution.moveCost = placement.mLowestMoveCost;
+        solution.items = placement.getPlacedItems();
+        solution.timedOut = placement.mAborted;
+        solution.nodes = placement.mNodes;
+        return solution;
+    }
+
+    private void markCells(int[] occupied, int x, int y, int w, int h, boolean val) {
+        int mask = ((1 << w) - 1) << x;
+        for (int j = y; j < y + h; j++) {
+            if (val) {
+                occupied[j] |= mask;
+            } else {
+                occupied[j] &= ~mask;
+            }
+        }
+    }
+
+    private boolean isVacant(int[] occupied, int x, int y, int w, int h) {
+        if (x < 0 || y < 0) return false;
+        if (x + w > mTrgX) return false;
+        if (y + h > mTrgY) return false;
+
+        int mask = ((1 << w) - 1) << x;
+        for (int j = y; j < y + h; j++) {
+            if ((occupied[j] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Branch and bound search for the placement of a set of items in the free cells of a grid.
+     * Positions are tracked in arrays indexed like {@link #mItems}, so that recording a better
+     * placement does not need to copy the items.
+     */
+    private class Placement {
+        // Sorted such that larger widgets appear first followed by 1x1 items
+        private final Entry[] mItems;
+        // A bitmask of the occupied columns of each row
+        private final int[] mOccupied;
+        private final boolean mIgnoreMove;
+
+        private final int[] mX, mY, mW, mH;
+        private final boolean[] mPlaced;
+        private final int[] mBestX, mBestY, mBestW, mBestH;
+        private final boolean[] mBestPlaced;
+
+        // Weight of the items from an index to the end
+        private final float[] mRemainingWeight;
+        // Item indices by decreasing weight per cell, and the cells each one needs at least
+        private final Integer[] mDensityOrder;
+        private final int[] mMinArea;
+        private int mFreeCells;
+
+        // Lowest cost at which each grid occupancy was reached, per item index
+        private final ArrayList<HashMap<Long, float[]>> mMemo;
+        private int mMemoSize;
+
+        float mLowestWeightLoss;
+        float mLowestMoveCost;
+        boolean mFound;
+        boolean mAborted;
+        long mNodes;
+
+        // Whether there is a placement to fall back on, if the time budget runs out
+        private boolean mCanAbort;
+
+        Placement(int[] occupied, ArrayList<Entry> items, boolean ignoreMove,
+                float weightLossBound, float moveCostBound) {
+            mOccupied = occupied;
+            mIgnoreMove = ignoreMove;
+            mItems = items.toArray(new Entry[items.size()]);
+            Arrays.sort(mItems);
+
+            int n = mItems.length;
+            mX = new int[n];
+            mY = new int[n];
+            mW = new int[n];
+            mH = new int[n];
+            mPlaced = new boolean[n];
+            mBestX = new int[n];
+            mBestY = new int[n];
+            mBestW = new int[n];
+            mBestH = new int[n];
+            mBestPlaced = new boolean[n];
+
+            mRemainingWeight = new float[n + 1];
+            for (int i = n - 1; i >= 0; i--) {
+                mRemainingWeight[i] = mRemainingWeight[i + 1] + mItems[i].weight;
+            }
+            mMinArea = new int[n];
+            mDensityOrder = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                Entry item = mItems[i];
+                mMinArea[i] = item.spanX > 1 || item.spanY > 1
+                        ? Math.min(item.spanX, item.minSpanX) * Math.min(item.spanY, item.minSpanY)
+                        : 1;
+                mDensityOrder[i] = i;
+            }
+            Arrays.sort(mDensityOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return Float.compare(mItems[rhs].weight / mMinArea[rhs],
+                            mItems[lhs].weight / mMinArea[lhs]);
+                }
+            });
+
+            mFreeCells = mTrgX * mTrgY;
+            for (int row : occupied) {
+                mFreeCells -= Integer.bitCount(row);
+            }
+
+            // Occupancies are only memoized when the whole grid fits in a long
+            mMemo = mPrune && mTrgX * mTrgY <= Long.SIZE ? new ArrayList<HashMap<Long, float[]>>()
+                    : null;
+            if (mMemo != null) {
+                for (int i = 0; i <= n; i++) {
+                    mMemo.add(new HashMap<Long, float[]>());
+                }
+            }
+
+            mLowestWeightLoss = weightLossBound;
+            mLowestMoveCost = moveCostBound;
+            mCanAbort = weightLossBound < Float.MAX_VALUE;
+        }
+
+        public void find() {
+            find(0, 0, 0);
+        }
+
+        /**
+         * @return copies of the items of the best placement, with their new position and size.
+         */
+        public ArrayList<Entry> getPlacedItems() {
+            ArrayList<Entry> placed = new ArrayList<>();
+            if (!mFound) {
+                return placed;
+            }
+            for (int i = 0; i < mItems.length; i++) {
+                if (mBestPlaced[i]) {
+                    Entry item = mItems[i].copy();
+                    item.cellX = mBestX[i];
+                    item.cellY = mBestY[i];
+                    item.spanX = mBestW[i];
+                    item.spanY = mBestH[i];
+                    placed.add(item);
+                }
+            }
+            return placed;
+        }
+
+        /**
+         * Recursively finds a placement for the provided items.
+         * @param index the position in {@link #mItems} to start looking at.
+         * @param weightLoss total weight loss upto this point
+         * @param moveCost total move cost upto this point
+         */
+        private void find(int index, float weightLoss, float moveCost) {
+            if (mAborted || (weightLoss > mLowestWeightLoss) ||
+                    ((weightLoss == mLowestWeightLoss) && (moveCost >= mLowestMoveCost))) {
+                // Abort, as we already have a better solution.
+                return;
+            }
+
+            mNodes++;
+            if (mCanAbort && (mNodes % DEADLINE_CHECK_INTERVAL) == 0
+                    && System.nanoTime() > mDeadlineNanos) {
+                mAborted = true;
+                return;
+            }
+
+            if (index >= mItems.length) {
+                // End loop.
+                mLowestWeightLoss = weightLoss;
+                mLowestMoveCost = moveCost;
+                mFound = true;
+                mCanAbort = true;
+
+                int n = mItems.length;
+                System.arraycopy(mX, 0, mBestX, 0, n);
+                System.arraycopy(mY, 0, mBestY, 0, n);
+                System.arraycopy(mW, 0, mBestW, 0, n);
+                System.arraycopy(mH, 0, mBestH, 0, n);
+                System.arraycopy(mPlaced, 0, mBestPlaced, 0, n);
+                return;
+            }
+
+            if (mPrune && (weightLoss + lowestRemainingLoss(index) > mLowestWeightLoss + EPSILON
+                    || isExplored(index, weightLoss, moveCost))) {
+                return;
+            }
+
+            Entry me = mItems[index];
+            int myX = me.cellX;
+            int myY = me.cellY;
+
+            if (me.spanX > 1 || me.spanY > 1) {
+                // If the current item is a widget (and it greater than 1x1), try to place it at
+                // all possible positions. This is because a widget placed at one position can
+                // affect the placement of a different widget.
+                int myW = me.spanX;
+                int myH = me.spanY;
+
+                for (int y = 0; y < mTrgY; y++) {
+                    for (int x = 0; x < mTrgX; x++) {
+                        float newMoveCost = moveCost;
+                        if (!mIgnoreMove) {
+                            if (x != myX) newMoveCost ++;
+                            if (y != myY) newMoveCost ++;
+                        }
+
+                        // place at this position and continue search.
+                        placeAndFind(index, x, y, myW, myH, weightLoss, newMoveCost);
+
+                        // Try resizing horizontally, 1 extra move cost
+                        if (myW > me.minSpanX) {
+                            placeAndFind(index, x, y, myW - 1, myH, weightLoss, newMoveCost + 1);
+                        }
+
+                        // Try resizing vertically, 1 extra move cost
+                        if (myH > me.minSpanY) {
+                            placeAndFind(index, x, y, myW, myH - 1, weightLoss, newMoveCost + 1);
+                        }
+
+                        // Try resizing horizontally & vertically, 2 extra move cost
+                        if (myH > me.minSpanY && myW > me.minSpanX) {
+                            placeAndFind(index, x, y, myW - 1, myH - 1, weightLoss,
+                                    newMoveCost + 2);
+                        }
+                    }
+                }
+
+                // Finally also try a solution when this item is not included. Trying it in the end
+                // causes it to get skipped in most cases due to higher weight loss.
+                mPlaced[index] = false;
+                find(index + 1, weightLoss + me.weight, moveCost);
+            } else {
+                // Since this is a 1x1 item and all the following items are also 1x1, just place
+                // it at 'the most appropriate position' and hope for the best.
+                // The most appropriate position: one with lease straight line distance
+                int newDistance = Integer.MAX_VALUE;
+                int newX = Integer.MAX_VALUE, newY = Integer.MAX_VALUE;
+
+                for (int y = 0; y < mTrgY && newDistance > 0; y++) {
+                    int row = mOccupied[y];
+                    for (int x = 0; x < mTrgX; x++) {
+                        if ((row & (1 << x)) == 0) {
+                            int dist = mIgnoreMove ? 0 :
+                                ((myX - x) * (myX - x) + (myY - y) * (myY - y));
+                            if (dist < newDistance) {
+                                newX = x;
+                                newY = y;
+                                newDistance = dist;
+                                if (dist == 0) {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+
+                if (newX < mTrgX && newY < mTrgY) {
+                    float newMoveCost = moveCost;
+                    if (!mIgnoreMove) {
+                        if (newX != myX) newMoveCost ++;
+                        if (newY != myY) newMoveCost ++;
+                    }
+                    placeAndFind(index, newX, newY, 1, 1, weightLoss, newMoveCost);
+
+                    // Try to find a solution without this item, only if
+                    //  1) there was at least one space, i.e., we were able to place this item
+                    //  2) if the next item has the same weight (all items are already sorted), as
+                    //     if it has lower weight, that solution will automatically get discarded.
+                    //  3) ignoreMove false otherwise, move cost is ignored and the weight will
+                    //      anyway be same.
+                    if (index + 1 < mItems.length
+                            && mItems[index + 1].weight >= me.weight && !mIgnoreMove) {
+                        mPlaced[index] = false;
+                        find(index + 1, weightLoss + me.weight, moveCost);
+                    }
+                } else {
+                    // No more space. Jump to the end.
+                    for (int i = index; i < mItems.length; i++) {
+                        mPlaced[i] = false;
+                    }
+                    find(mItems.length, weightLoss + mRemainingWeight[index], moveCost);
+                }
+            }
+        }
+
+        private void placeAndFind(int index, int x, int y, int w, int h, float weightLoss,
+                float moveCost) {
+            if (!isVacant(mOccupied, x, y, w, h)) {
+                return;
+            }
+            markCells(mOccupied, x, y, w, h, true);
+            mFreeCells -= w * h;
+            mX[index] = x;
+            mY[index] = y;
+            mW[index] = w;
+            mH[index] = h;
+            mPlaced[index] = true;
+
+            find(index + 1, weightLoss, moveCost);
+
+            markCells(mOccupied, x, y, w, h, false);
+            mFreeCells += w * h;
+        }
+
+        /**
+         * Returns a lower bound of the weight which will be lost by the items from {@param index},
+         * by filling the free cells with the items which have the most weight per cell, and
+         * splitting the last one.
+         */
+        private float lowestRemainingLoss(int index) {
+            int free = mFreeCells;
+            float kept = 0;
+            for (int i : mDensityOrder) {
+                if (i < index) {
+                    continue;
+                }
+                if (free <= 0) {
+                    break;
+                }
+                int area = mMinArea[i];
+                if (area <= free) {
+                    free -= area;
+                    kept += mItems[i].weight;
+                } else {
+                    kept += mItems[i].weight * free / area;
+                    break;
+                }
+            }
+            return mRemainingWeight[index] - kept;
+        }
+
+        /**
+         * Returns true if the items from {@param index} were already tried on the same occupied
+         * cells at a lower cost, in which case they cannot lead to a better placement now.
+         */
+        private boolean isExplored(int index, float weightLoss, float moveCost) {
+            if (mMemo == null) {
+                return false;
+            }
+            long key = 0;
+            for (int y = 0; y < mTrgY; y++) {
+                key |= ((long) mOccupied[y]) << (y * mTrgX);
+            }
+            HashMap<Long, float[]> memo = mMemo.get(index);
+            float[] cost = memo.get(key);
+            if (cost != null) {
+                if (weightLoss > cost[0] || (weightLoss == cost[0] && moveCost >= cost[1])) {
+                    return true;
+                }
+                cost[0] = weightLoss;
+                cost[1] = moveCost;
+            } else if (mMemoSize < MAX_MEMO_ENTRIES) {
+                memo.put(key, new float[] {weightLoss, moveCost});
+                mMemoSize++;
+            }
+            return false;
+        }
+    }
+}
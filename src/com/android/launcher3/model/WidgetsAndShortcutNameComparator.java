@@ -10,22 +10,29 @@ import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.util.ComponentKey;
 
-import java.text.Collator;
+import java.text.CollationKey;
 import java.util.Comparator;
 import java.util.HashMap;
 
 public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
     private final AppWidgetManagerCompat mManager;
     private final PackageManager mPackageManager;
-    private final HashMap<ComponentKey, String> mLabelCache;
-    private final Collator mCollator;
+    private final HashMap<ComponentKey, CollationKey> mLabelKeyCache;
+    private final AppNameComparator mNameComparator;
     private final UserHandleCompat mMainHandle;
 
     public WidgetsAndShortcutNameComparator(Context context) {
+        this(context, new AppNameComparator(context));
+    }
+
+    /**
+     * Creates a comparator which shares the title sort keys of {@param nameComparator}.
+     */
+    public WidgetsAndShortcutNameComparator(Context context, AppNameComparator nameComparator) {
         mManager = AppWidgetManagerCompat.getInstance(context);
         mPackageManager = context.getPackageManager();
-        mLabelCache = new HashMap<>();
-        mCollator = Collator.getInstance();
+        mLabelKeyCache = new HashMap<>();
+        mNameComparator = nameComparator;
         mMainHandle = UserHandleCompat.myUserHandle();
     }
 
@@ -33,7 +40,8 @@ public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
      * Resets any stored state.
      */
     public void reset() {
-        mLabelCache.clear();
+        mLabelKeyCache.clear();
+        mNameComparator.clearSortKeys();
     }
 
     @Override
@@ -52,18 +60,20 @@ public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
             return -1;
         }
 
-        // Get the labels for comparison
-        String labelA = mLabelCache.get(keyA);
-        String labelB = mLabelCache.get(keyB);
-        if (labelA == null) {
-            labelA = getLabel(objA);
-            mLabelCache.put(keyA, labelA);
-        }
-        if (labelB == null) {
-            labelB = getLabel(objB);
-            mLabelCache.put(keyB, labelB);
+        // Get the collation keys of the labels for comparison
+        return getLabelKey(keyA, objA).compareTo(getLabelKey(keyB, objB));
+    }
+
+    /**
+     * @return the collation key of the label of the given widget or shortcut info.
+     */
+    private CollationKey getLabelKey(ComponentKey key, Object o) {
+        CollationKey labelKey = mLabelKeyCache.get(key);
+        if (labelKey == null) {
+            labelKey = mNameComparator.getSortKey(getLabel(o)).collationKey;
+            mLabelKeyCache.put(key, labelKey);
         }
-        return mCollator.compare(labelA, labelB);
+        return labelKey;
     }
 
     /**
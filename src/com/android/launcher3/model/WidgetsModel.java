@@ -55,8 +55,11 @@ public class WidgetsModel {
     public WidgetsModel(Context context,  IconCache iconCache, AppFilter appFilter) {
         mContext = context;
         mAppWidgetMgr = AppWidgetManagerCompat.getInstance(context);
-        mWidgetAndShortcutNameComparator = new WidgetsAndShortcutNameComparator(context);
-        mAppNameComparator = (new AppNameComparator(context)).getAppInfoComparator();
+        // Share the title sort keys between the package and the widget comparators
+        AppNameComparator nameComparator = new AppNameComparator(context);
+        mWidgetAndShortcutNameComparator =
+                new WidgetsAndShortcutNameComparator(context, nameComparator);
+        mAppNameComparator = nameComparator.getAppInfoComparator();
         mIconCache = iconCache;
         mAppFilter = appFilter;
         mIndexer = new AlphabeticIndexCompat(context);
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * A compact copy of the bound workspace, which is read on the next start to bind the current page
+ * before the workspace is loaded from the database.
+ * <p>
+ * The file holds a header, the ordered screen ids and one record per item, followed by the CRC32
+ * of everything before it. Folders are written before their contents. Items only keep a reference
+ * to their icon: the component for apps, the resource for shortcuts which have one, and the row
+ * itself for the others.
+ * <p>
+ * Any file which was written by another version, is truncated or does not match its checksum is
+ * rejected with an {@link IOException}, and the caller falls back to the database. This class only
+ * depends on the JVM, so that it can be tested without a device.
+ */
+public class WorkspaceSnapshot {
+
+    private static final int MAGIC = 0x4c575331; // "LWS1"
+    private static final int VERSION = 1;
+
+    private static final int CHECKSUM_SIZE = 8;
+    private static final int SCREEN_SIZE = 8;
+    // Four longs, seven ints and the lengths of the four strings
+    private static final int MIN_ITEM_SIZE = 4 * 8 + 7 * 4 + 4 * 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * An app, shortcut or folder of the workspace.
+     */
+    public static class Item {
+        public long id;
+        public int itemType;
+        public long container;
+        public long screenId;
+        public int cellX;
+        public int cellY;
+        public int spanX;
+        public int spanY;
+        public int rank;
+        public int options;
+        public long userSerial;
+        public String title;
+        public String intent;
+        public String iconPackage;
+        public String iconResource;
+    }
+
+    public final int numColumns;
+    public final int numRows;
+    public final int numHotseatIcons;
+    public final ArrayList<Long> screenIds;
+    public final ArrayList<Item> items;
+
+    public WorkspaceSnapshot(int numColumns, int numRows, int numHotseatIcons,
+            ArrayList<Long> screenIds, ArrayList<Item> items) {
+        this.numColumns = numColumns;
+        this.numRows = numRows;
+        this.numHotseatIcons = numHotseatIcons;
+        this.screenIds = screenIds;
+        this.items = items;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, which then replaces {@param file}, so that a
+     * reader never sees a partial snapshot.
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (items.size() + 1));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numColumns);
+        out.writeInt(numRows);
+        out.writeInt(numHotseatIcons);
+        out.writeInt(screenIds.size());
+        for (long screenId : screenIds) {
+            out.writeLong(screenId);
+        }
+        out.writeInt(items.size());
+        for (Item item : items) {
+            out.writeLong(item.id);
+            out.writeInt(item.itemType);
+            out.writeLong(item.container);
+            out.writeLong(item.screenId);
+            out.writeInt(item.cellX);
+            out.writeInt(item.cellY);
+            out.writeInt(item.spanX);
+            out.writeInt(item.spanY);
+            out.writeInt(item.rank);
+            out.writeInt(item.options);
+            out.writeLong(item.userSerial);
+            writeString(out, item.title);
+            writeString(out, item.intent);
+            writeString(out, item.iconPackage);
+            writeString(out, item.iconResource);
+        }
+        out.flush();
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        out.writeLong(checksum.getValue());
+        out.close();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(fileOut);
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Maps {@param file} in memory and reads the snapshot from it.
+     * @throws IOException if the file is missing, or is not a valid snapshot of this version.
+     */
+    public static WorkspaceSnapshot read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < CHECKSUM_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // Verify the checksum before parsing anything
+            int end = (int) size - CHECKSUM_SIZE;
+            CRC32 checksum = new CRC32();
+            byte[] chunk = new byte[4096];
+            while (buffer.position() < end) {
+                int length = Math.min(chunk.length, end - buffer.position());
+                buffer.get(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+            }
+            if (buffer.getLong() != checksum.getValue()) {
+                throw new IOException("Snapshot checksum does not match");
+            }
+            buffer.position(0);
+            buffer.limit(end);
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a workspace snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int numColumns = buffer.getInt();
+            int numRows = buffer.getInt();
+            int numHotseatIcons = buffer.getInt();
+
+            int screenCount = readCount(buffer, SCREEN_SIZE);
+            ArrayList<Long> screenIds = new ArrayList<>(screenCount);
+            for (int i = 0; i < screenCount; i++) {
+                screenIds.add(buffer.getLong());
+            }
+
+            int itemCount = readCount(buffer, MIN_ITEM_SIZE);
+            ArrayList<Item> items = new ArrayList<>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                Item item = new Item();
+                item.id = buffer.getLong();
+                item.itemType = buffer.getInt();
+                item.container = buffer.getLong();
+                item.screenId = buffer.getLong();
+                item.cellX = buffer.getInt();
+                item.cellY = buffer.getInt();
+                item.spanX = buffer.getInt();
+                item.spanY = buffer.getInt();
+                item.rank = buffer.getInt();
+                item.options = buffer.getInt();
+                item.userSerial = buffer.getLong();
+                item.title = readString(buffer);
+                item.intent = readString(buffer);
+                item.iconPackage = readString(buffer);
+                item.iconResource = readString(buffer);
+                items.add(item);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Unexpected data after the snapshot items");
+            }
+            return new WorkspaceSnapshot(numColumns, numRows, numHotseatIcons, screenIds, items);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated snapshot", e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(MappedByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Reads the number of the following records, which take at least {@param minRecordSize}
+     * bytes each, so that a corrupt count can not cause a huge allocation.
+     */
+    private static int readCount(MappedByteBuffer buffer, int minRecordSize) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * minRecordSize > buffer.remaining()) {
+            throw new IOException("Invalid record count " + count);
+        }
+        return count;
+    }
+}
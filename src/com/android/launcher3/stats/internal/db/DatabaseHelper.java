@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import com.android.launcher3.stats.internal.model.TrackingEvent;
+import com.android.launcher3.util.DatabaseTuning;
 import com.android.launcher3.stats.util.Logger;
 
 import java.util.ArrayList;
@@ -28,6 +29,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     // Instance
     private static DatabaseHelper sInstance = null;
 
+    private final Context mContext;
+
     /**
      * Constructor
      *
@@ -49,6 +52,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      */
     public DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // No write-ahead logging, as the database is closed after every call
+        DatabaseTuning.configure(mContext, db, false);
     }
 
     /**
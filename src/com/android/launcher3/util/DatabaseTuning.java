@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+/**
+ * Connection settings shared by the launcher databases, applied from
+ * {@link android.database.sqlite.SQLiteOpenHelper#onConfigure(SQLiteDatabase)}.
+ * <p>
+ * Write-ahead logging lets the readers on the UI thread, like the icon and widget preview
+ * lookups, run while the loader thread is writing instead of waiting for its transaction. It is
+ * only enabled for databases which are used by a single process and never copied as a file
+ * without a {@link #checkpoint(SQLiteDatabase)}, and not on low RAM devices where the extra
+ * connections and the log are not worth their memory.
+ */
+public class DatabaseTuning {
+
+    private static final String TAG = "DatabaseTuning";
+
+    // Prepared statements kept per connection. The launcher databases have a few hot queries and
+    // statements, which all fit, unlike in the default of 25 shared with one-off queries.
+    private static final int STATEMENT_CACHE_SIZE = 50;
+
+    private static Boolean sIsLowRam;
+
+    /**
+     * Applies the shared settings to a connection.
+     * @param enableWal whether the database can use write-ahead logging.
+     */
+    public static void configure(Context context, SQLiteDatabase db, boolean enableWal) {
+        db.setMaxSqlCacheSize(STATEMENT_CACHE_SIZE);
+        if (enableWal && !isLowRam(context)) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    private static synchronized boolean isLowRam(Context context) {
+        if (sIsLowRam == null) {
+            sIsLowRam = Utilities.ATLEAST_KITKAT && ((ActivityManager) context
+                    .getSystemService(Context.ACTIVITY_SERVICE)).isLowRamDevice();
+        }
+        return sIsLowRam;
+    }
+
+    /**
+     * Moves the content of the write-ahead log into the database file, so that the file can be
+     * copied on its own.
+     */
+    public static void checkpoint(SQLiteDatabase db) {
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        Cursor c = null;
+        try {
+            c = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+            c.moveToNext();
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to checkpoint " + db.getPath(), e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Binds the values to a compiled statement, starting at {@param index}.
+     * @return the index after the last bound value.
+     */
+    public static int bindAll(SQLiteStatement statement, int index, Object... values) {
+        for (Object value : values) {
+            DatabaseUtils.bindObjectToProgram(statement, index++, value);
+        }
+        return index;
+    }
+}
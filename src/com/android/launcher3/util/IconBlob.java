@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact, versioned storage format for icons which are only read back on the same device, like
+ * the icon cache. The pixels are stored as they are in memory, compressed with a fast deflate, so
+ * that reading an icon does not need to go through the PNG decoder.
+ * <p>
+ * Blobs which are not in this format, like the PNGs written by
+ * {@link Utilities#flattenBitmap(Bitmap)}, are decoded with {@link BitmapFactory}. Icons which
+ * leave the device, like backups, should keep using PNG.
+ */
+public class IconBlob {
+
+    private static final String TAG = "IconBlob";
+
+    private static final int MAGIC = 0x4C49434E; // LICN
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int CONFIG_ARGB_8888 = 1;
+    private static final int CONFIG_RGB_565 = 2;
+
+    /**
+     * Returns the icon in the compact format, or as a PNG if its config is not supported.
+     */
+    public static byte[] encode(Bitmap bitmap) {
+        int config;
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            config = CONFIG_ARGB_8888;
+        } else if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        } else {
+            return Utilities.flattenBitmap(bitmap);
+        }
+
+        int rawSize = bitmap.getRowBytes() * bitmap.getHeight();
+        ByteBuffer pixels = ByteBuffer.allocate(rawSize);
+        bitmap.copyPixelsToBuffer(pixels);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) config);
+        header.putShort((short) bitmap.getWidth());
+        header.putShort((short) bitmap.getHeight());
+        header.putShort((short) 0);
+        header.putInt(rawSize);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + rawSize / 4);
+        out.write(header.array(), 0, HEADER_SIZE);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(pixels.array(), 0, rawSize);
+            deflater.finish();
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns whether the blob is in the compact format.
+     */
+    public static boolean isCompact(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE
+                && ByteBuffer.wrap(data, 0, HEADER_SIZE).getInt() == MAGIC;
+    }
+
+    /**
+     * Decodes a blob in either the compact format or any format supported by
+     * {@link BitmapFactory}. For the compact format, only the sample size and the preferred config
+     * of the options are used: like {@link BitmapFactory}, an icon is only loaded as RGB_565 if it
+     * is opaque.
+     * @return the decoded icon, or null if the blob could not be decoded.
+     */
+    public static Bitmap decode(byte[] data, BitmapFactory.Options options) {
+        if (data == null) {
+            return null;
+        }
+        if (!isCompact(data)) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+        header.getInt();
+        int version = header.get();
+        int config = header.get();
+        int width = header.getShort() & 0xffff;
+        int height = header.getShort() & 0xffff;
+        header.getShort();
+        int rawSize = header.getInt();
+        if (version != VERSION || width == 0 || height == 0) {
+            Log.w(TAG, "Unsupported icon blob, version=" + version);
+            return null;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config == CONFIG_RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+        if (bitmap.getRowBytes() * height != rawSize) {
+            Log.w(TAG, "Icon blob size mismatch");
+            return null;
+        }
+
+        byte[] pixels = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+            int offset = 0;
+            while (offset < rawSize) {
+                int count = inflater.inflate(pixels, offset, rawSize - offset);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != rawSize) {
+                Log.w(TAG, "Truncated icon blob");
+                return null;
+            }
+        } catch (DataFormatException e) {
+            Log.w(TAG, "Corrupt icon blob", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+        if (options == null) {
+            return bitmap;
+        }
+
+        if (options.inSampleSize > 1) {
+            bitmap = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, width / options.inSampleSize),
+                    Math.max(1, height / options.inSampleSize), true);
+        }
+        if (options.inPreferredConfig == Bitmap.Config.RGB_565
+                && config == CONFIG_ARGB_8888 && isOpaque(pixels)) {
+            bitmap = bitmap.copy(Bitmap.Config.RGB_565, false);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns whether all the ARGB_8888 pixels, in their memory layout, have an opaque alpha.
+     */
+    private static boolean isOpaque(byte[] pixels) {
+        for (int i = 3; i < pixels.length; i += 4) {
+            if (pixels[i] != (byte) 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
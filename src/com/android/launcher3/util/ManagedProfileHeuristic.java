@@ -19,9 +19,6 @@ package com.android.launcher3.util;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
 import android.util.Log;
 
@@ -39,7 +36,11 @@ import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -56,7 +57,8 @@ public class ManagedProfileHeuristic {
     private static final String TAG = "ManagedProfileHeuristic";
 
     /**
-     * Maintain a set of packages installed per user.
+     * The set of packages installed per user, kept by earlier versions in the preferences, which
+     * is moved to {@link ManagedProfilePackageStore}.
      */
     private static final String INSTALLED_PACKAGES_PREFIX = "installed_packages_for_user_";
 
@@ -81,7 +83,7 @@ public class ManagedProfileHeuristic {
     private final SharedPreferences mPrefs;
     private final long mUserSerial;
     private final long mUserCreationTime;
-    private final String mPackageSetKey;
+    private final ManagedProfilePackageStore mPackageStore;
 
     private ArrayList<ShortcutInfo> mHomescreenApps;
     private ArrayList<ShortcutInfo> mWorkFolderApps;
@@ -94,10 +96,29 @@ public class ManagedProfileHeuristic {
         UserManagerCompat userManager = UserManagerCompat.getInstance(context);
         mUserSerial = userManager.getSerialNumberForUser(user);
         mUserCreationTime = userManager.getUserCreationTime(user);
-        mPackageSetKey = INSTALLED_PACKAGES_PREFIX + mUserSerial;
 
         mPrefs = mContext.getSharedPreferences(LauncherFiles.MANAGED_USER_PREFERENCES_KEY,
                 Context.MODE_PRIVATE);
+        mPackageStore = ManagedProfilePackageStore.get(getPackageStoreDir(context), mUserSerial);
+        migratePackageSet();
+    }
+
+    private static File getPackageStoreDir(Context context) {
+        return new File(context.getFilesDir(), LauncherFiles.MANAGED_USER_PACKAGES);
+    }
+
+    /**
+     * Moves the package set of the user from the preferences to the package store.
+     */
+    private void migratePackageSet() {
+        String packageSetKey = INSTALLED_PACKAGES_PREFIX + mUserSerial;
+        Set<String> userApps = mPrefs.getStringSet(packageSetKey, null);
+        if (userApps == null) {
+            return;
+        }
+        if (savePackages(userApps)) {
+            mPrefs.edit().remove(packageSetKey).apply();
+        }
     }
 
     /**
@@ -108,29 +129,19 @@ public class ManagedProfileHeuristic {
         mHomescreenApps = new ArrayList<>();
         mWorkFolderApps = new ArrayList<>();
 
-        HashSet<String> packageSet = new HashSet<>();
-        final boolean userAppsExisted = getUserApps(packageSet);
-
-        boolean newPackageAdded = false;
+        final boolean userAppsExisted = mPackageStore.exists();
 
+        // Only the packages which are not stored yet are looked at and written
+        HashSet<String> newPackages = new HashSet<>();
         for (LauncherActivityInfoCompat info : apps) {
             String packageName = info.getComponentName().getPackageName();
-            if (!packageSet.contains(packageName)) {
-                packageSet.add(packageName);
-                newPackageAdded = true;
-
-                try {
-                    PackageInfo pkgInfo = mContext.getPackageManager()
-                            .getPackageInfo(packageName, PackageManager.GET_UNINSTALLED_PACKAGES);
-                    markForAddition(info, pkgInfo.firstInstallTime);
-                } catch (NameNotFoundException e) {
-                    Log.e(TAG, "Unknown package " + packageName, e);
-                }
+            if (!mPackageStore.contains(packageName) && newPackages.add(packageName)) {
+                markForAddition(info, info.getFirstInstallTime());
             }
         }
 
-        if (newPackageAdded) {
-            mPrefs.edit().putStringSet(mPackageSetKey, packageSet).apply();
+        if (!newPackages.isEmpty()) {
+            savePackages(newPackages);
             // Do not add shortcuts on the homescreen for the first time. This prevents the launcher
             // getting filled with the managed user apps, when it start with a fresh DB (or after
             // a very long time).
@@ -233,17 +244,14 @@ public class ManagedProfileHeuristic {
         mHomescreenApps = new ArrayList<>();
         mWorkFolderApps = new ArrayList<>();
 
-        HashSet<String> packageSet = new HashSet<>();
-        final boolean userAppsExisted = getUserApps(packageSet);
+        final boolean userAppsExisted = mPackageStore.exists();
 
-        boolean newPackageAdded = false;
+        HashSet<String> newPackages = new HashSet<>();
         long installTime = System.currentTimeMillis();
         LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(mContext);
 
         for (String packageName : packages) {
-            if (!packageSet.contains(packageName)) {
-                packageSet.add(packageName);
-                newPackageAdded = true;
+            if (!mPackageStore.contains(packageName) && newPackages.add(packageName)) {
 
                 List<LauncherActivityInfoCompat> activities =
                         launcherApps.getActivityList(packageName, mUser);
@@ -253,8 +261,8 @@ public class ManagedProfileHeuristic {
             }
         }
 
-        if (newPackageAdded) {
-            mPrefs.edit().putStringSet(mPackageSetKey, packageSet).apply();
+        if (!newPackages.isEmpty()) {
+            savePackages(newPackages);
             finalizeAdditions(userAppsExisted);
         }
     }
@@ -263,32 +271,24 @@ public class ManagedProfileHeuristic {
      * Updates the list of installed packages for the user.
      */
     public void processPackageRemoved(String[] packages) {
-        HashSet<String> packageSet = new HashSet<String>();
-        getUserApps(packageSet);
-        boolean packageRemoved = false;
-
-        for (String packageName : packages) {
-            if (packageSet.remove(packageName)) {
-                packageRemoved = true;
-            }
-        }
-
-        if (packageRemoved) {
-            mPrefs.edit().putStringSet(mPackageSetKey, packageSet).apply();
+        try {
+            mPackageStore.removeAll(Arrays.asList(packages));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to update the packages of user " + mUserSerial, e);
         }
     }
 
     /**
-     * Reads the list of user apps which have already been processed.
-     * @return false if the list didn't exist, true otherwise
+     * Adds packages to the ones which have already been processed.
+     * @return false if they could not be written.
      */
-    private boolean getUserApps(HashSet<String> outExistingApps) {
-        Set<String> userApps = mPrefs.getStringSet(mPackageSetKey, null);
-        if (userApps == null) {
-            return false;
-        } else {
-            outExistingApps.addAll(userApps);
+    private boolean savePackages(Collection<String> packages) {
+        try {
+            mPackageStore.addAll(packages);
             return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to update the packages of user " + mUserSerial, e);
+            return false;
         }
     }
 
@@ -301,9 +301,13 @@ public class ManagedProfileHeuristic {
         }
         UserManagerCompat userManager = UserManagerCompat.getInstance(context);
         HashSet<String> validKeys = new HashSet<String>();
+        HashSet<Long> validSerials = new HashSet<Long>();
         for (UserHandleCompat user : users) {
-            addAllUserKeys(userManager.getSerialNumberForUser(user), validKeys);
+            long userSerial = userManager.getSerialNumberForUser(user);
+            addAllUserKeys(userSerial, validKeys);
+            validSerials.add(userSerial);
         }
+        ManagedProfilePackageStore.deleteOtherUsers(getPackageStoreDir(context), validSerials);
 
         SharedPreferences prefs = context.getSharedPreferences(
                 LauncherFiles.MANAGED_USER_PREFERENCES_KEY,
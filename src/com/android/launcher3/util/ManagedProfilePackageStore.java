@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The packages of a managed profile which were already processed by
+ * {@link ManagedProfileHeuristic}.
+ * <p>
+ * The packages are kept in memory, and in a file per user which is a log of the added and removed
+ * packages, so that a change only appends its own records. The file is rewritten once most of its
+ * records are obsolete. A record which was not completely written is ignored. This class only
+ * depends on the JVM, so that it can be tested without a device, and is not thread safe: like the
+ * heuristic, it is only used on the worker thread.
+ */
+class ManagedProfilePackageStore {
+
+    private static final int MAGIC = 0x4d505331; // "MPS1"
+    private static final int VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // Records which can be appended before the file is rewritten, on top of twice the packages
+    private static final int MIN_OBSOLETE_RECORDS = 64;
+
+    private static final HashMap<Long, ManagedProfilePackageStore> sStores = new HashMap<>();
+
+    private final File mFile;
+    private final HashSet<String> mPackages = new HashSet<>();
+    private boolean mExists;
+    private int mRecordCount;
+
+    /**
+     * @return the store of the user, which is only read from {@param dir} the first time.
+     */
+    static ManagedProfilePackageStore get(File dir, long userSerial) {
+        synchronized (sStores) {
+            ManagedProfilePackageStore store = sStores.get(userSerial);
+            if (store == null) {
+                store = new ManagedProfilePackageStore(new File(dir, Long.toString(userSerial)));
+                sStores.put(userSerial, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Deletes the stores of the users which are not in {@param validSerials}. Like the other
+     * methods, this is only called on the worker thread.
+     */
+    static void deleteOtherUsers(File dir, Set<Long> validSerials) {
+        synchronized (sStores) {
+            Iterator<Long> it = sStores.keySet().iterator();
+            while (it.hasNext()) {
+                if (!validSerials.contains(it.next())) {
+                    it.remove();
+                }
+            }
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                Long serial;
+                try {
+                    serial = Long.parseLong(file.getName());
+                } catch (NumberFormatException e) {
+                    serial = null;
+                }
+                if (serial == null || !validSerials.contains(serial)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private ManagedProfilePackageStore(File file) {
+        mFile = file;
+        read();
+    }
+
+    /**
+     * @return false if no package was ever stored for the user.
+     */
+    boolean exists() {
+        return mExists;
+    }
+
+    boolean contains(String packageName) {
+        return mPackages.contains(packageName);
+    }
+
+    int size() {
+        return mPackages.size();
+    }
+
+    /**
+     * Adds the packages, and creates the store if it did not exist, even if {@param packages} is
+     * empty.
+     */
+    void addAll(Collection<String> packages) throws IOException {
+        mPackages.addAll(packages);
+        if (!canAppend(packages.size())) {
+            writeAll();
+            return;
+        }
+        DataOutputStream out = openForAppend();
+        try {
+            for (String packageName : packages) {
+                out.writeByte(OP_ADD);
+                out.writeUTF(packageName);
+            }
+            out.close();
+        } catch (IOException e) {
+            appendFailed(out);
+            return;
+        }
+        mRecordCount += packages.size();
+    }
+
+    /**
+     * Removes the packages which are stored.
+     */
+    void removeAll(Collection<String> packageNames) throws IOException {
+        ArrayList<String> removed = new ArrayList<>();
+        for (String packageName : packageNames) {
+            if (mPackages.remove(packageName)) {
+                removed.add(packageName);
+            }
+        }
+        if (removed.isEmpty() || !mExists) {
+            return;
+        }
+        if (!canAppend(removed.size())) {
+            writeAll();
+            return;
+        }
+        DataOutputStream out = openForAppend();
+        try {
+            for (String packageName : removed) {
+                out.writeByte(OP_REMOVE);
+                out.writeUTF(packageName);
+            }
+            out.close();
+        } catch (IOException e) {
+            appendFailed(out);
+            return;
+        }
+        mRecordCount += removed.size();
+    }
+
+    /**
+     * Rewrites the store after a failed append, which might have left a partial record that
+     * would corrupt the next ones.
+     */
+    private void appendFailed(DataOutputStream out) throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        writeAll();
+    }
+
+    /**
+     * @return false if the store must be rewritten instead, because it does not have a file with
+     * a header, or because most of its records would be obsolete.
+     */
+    private boolean canAppend(int newRecords) {
+        return mExists && mFile.exists()
+                && mRecordCount + newRecords <= 2 * mPackages.size() + MIN_OBSOLETE_RECORDS;
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+    }
+
+    private void read() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        boolean complete = false;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported package store " + mFile);
+            }
+            mExists = true;
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    complete = true;
+                    break;
+                }
+                String packageName = in.readUTF();
+                if (op == OP_ADD) {
+                    mPackages.add(packageName);
+                } else if (op == OP_REMOVE) {
+                    mPackages.remove(packageName);
+                } else {
+                    throw new IOException("Unknown record " + op);
+                }
+                mRecordCount++;
+            }
+        } catch (IOException e) {
+            // Keep the records read so far
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (!complete && mExists) {
+            // Drop the partial record, so that the next ones can be appended
+            try {
+                writeAll();
+            } catch (IOException e) {
+                mFile.delete();
+                mExists = false;
+            }
+        } else if (!complete) {
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Writes all the packages to a temporary file, which then replaces the store.
+     */
+    private void writeAll() throws IOException {
+        mFile.getParentFile().mkdirs();
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (String packageName : mPackages) {
+                out.writeByte(OP_ADD);
+                out.writeUTF(packageName);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mExists = true;
+        mRecordCount = mPackages.size();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import com.android.launcher3.Utilities;
+
+import java.io.PrintWriter;
+
+/**
+ * Records the duration of the loader phases in a fixed size in-memory buffer, and marks them as
+ * {@link Trace} sections so that they also show up in systrace.
+ * <p>
+ * A phase is either traced as a section with {@link #begin(int)} and {@link #end(int, long)},
+ * which must be called on the same thread, or timed with {@link #record(int, long)} when it spans
+ * threads. Phases which are made of many small steps, like decoding the icon of each item, are
+ * added up with {@link #accumulate(int, long)} and recorded as a single span by
+ * {@link #flushAccumulated(int)}.
+ * <p>
+ * Each span is tagged with the run of the loader during which it was recorded, which is started
+ * by {@link #startRun()}, or by {@link #startRebind()} for the rebind of an already loaded model.
+ * The spans are dumped one per line as {@code span phase=<name> start_us=<start> duration_us=<d>
+ * count=<n> tid=<tid> run=<run>}, followed by {@code rebind=true} for the spans of a rebind, with
+ * the start relative to the first span. The StartupTraceReport tool in util/ turns these dumps
+ * into a per phase latency report, with one sample per loader run.
+ */
+public class StartupTrace {
+
+    public static final int PHASE_LOAD_WORKSPACE = 0;
+    public static final int PHASE_READ_ITEMS = 1;
+    public static final int PHASE_ICON_DECODE = 2;
+    public static final int PHASE_BIND_PAGE = 3;
+    public static final int PHASE_BIND_WORKSPACE = 4;
+    public static final int PHASE_QUERY_APPS = 5;
+    public static final int PHASE_LOAD_ALL_APPS = 6;
+    public static final int PHASE_BIND_ALL_APPS = 7;
+    public static final int PHASE_LOAD_WIDGETS = 8;
+    public static final int PHASE_LOAD_LAYOUT = 9;
+    public static final int PHASE_BIND_SNAPSHOT = 10;
+
+    private static final String[] PHASE_NAMES = {
+            "loadWorkspace",
+            "readItems",
+            "iconDecode",
+            "bindPage",
+            "bindWorkspace",
+            "queryApps",
+            "loadAllApps",
+            "bindAllApps",
+            "loadWidgets",
+            "loadLayout",
+            "bindSnapshot",
+    };
+
+    private static final int MAX_SPANS = 512;
+
+    // Spans in a ring buffer
+    private static final int[] sPhases = new int[MAX_SPANS];
+    private static final long[] sStarts = new long[MAX_SPANS];
+    private static final long[] sDurations = new long[MAX_SPANS];
+    private static final int[] sCounts = new int[MAX_SPANS];
+    private static final int[] sThreads = new int[MAX_SPANS];
+    private static final int[] sRuns = new int[MAX_SPANS];
+    private static final boolean[] sRebinds = new boolean[MAX_SPANS];
+    private static int sHead = -1;
+    private static int sSpanCount = 0;
+    private static long sOrigin = -1;
+    private static int sRun = 0;
+    private static boolean sRebind = false;
+
+    // Pending accumulated phases
+    private static final long[] sAccumulatedStarts = new long[PHASE_NAMES.length];
+    private static final long[] sAccumulatedDurations = new long[PHASE_NAMES.length];
+    private static final int[] sAccumulatedCounts = new int[PHASE_NAMES.length];
+
+    /**
+     * Starts a new run of the loader, with which the following spans are tagged.
+     */
+    public static void startRun() {
+        synchronized (sPhases) {
+            sRun++;
+            sRebind = false;
+        }
+    }
+
+    /**
+     * Starts a new run for the rebind of the loaded model, like when the activity is recreated.
+     * Its spans are not part of the startup latency.
+     */
+    public static void startRebind() {
+        synchronized (sPhases) {
+            sRun++;
+            sRebind = true;
+        }
+    }
+
+    /**
+     * Starts a trace section for the phase.
+     * @return the start time, to be passed to {@link #end(int, long)}.
+     */
+    public static long begin(int phase) {
+        if (Utilities.ATLEAST_JB_MR2) {
+            beginSection(PHASE_NAMES[phase]);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the trace section started by {@link #begin(int)} on this thread, and records the span.
+     */
+    public static void end(int phase, long startNanos) {
+        record(phase, startNanos);
+        if (Utilities.ATLEAST_JB_MR2) {
+            endSection();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Records a span of the phase from {@param startNanos}, as returned by
+     * {@link System#nanoTime()}, until now.
+     */
+    public static void record(int phase, long startNanos) {
+        long now = System.nanoTime();
+        synchronized (sPhases) {
+            addSpanLocked(phase, startNanos, now - startNanos, 1);
+        }
+    }
+
+    /**
+     * Adds the time from {@param startNanos} until now to the pending span of the phase.
+     */
+    public static void accumulate(int phase, long startNanos) {
+        long now = System.nanoTime();
+        synchronized (sPhases) {
+            if (sAccumulatedCounts[phase] == 0) {
+                sAccumulatedStarts[phase] = startNanos;
+            }
+            sAccumulatedDurations[phase] += now - startNanos;
+            sAccumulatedCounts[phase]++;
+        }
+    }
+
+    /**
+     * Records the time added up by {@link #accumulate(int, long)} as a single span.
+     */
+    public static void flushAccumulated(int phase) {
+        synchronized (sPhases) {
+            if (sAccumulatedCounts[phase] > 0) {
+                addSpanLocked(phase, sAccumulatedStarts[phase], sAccumulatedDurations[phase],
+                        sAccumulatedCounts[phase]);
+            }
+            sAccumulatedDurations[phase] = 0;
+            sAccumulatedCounts[phase] = 0;
+        }
+    }
+
+    private static void addSpanLocked(int phase, long start, long duration, int count) {
+        if (sOrigin < 0) {
+            sOrigin = start;
+        }
+        sHead = (sHead + 1) % MAX_SPANS;
+        sSpanCount = Math.min(sSpanCount + 1, MAX_SPANS);
+        sPhases[sHead] = phase;
+        sStarts[sHead] = start;
+        sDurations[sHead] = duration;
+        sCounts[sHead] = count;
+        sThreads[sHead] = android.os.Process.myTid();
+        sRuns[sHead] = sRun;
+        sRebinds[sHead] = sRebind;
+    }
+
+    /**
+     * Prints the recorded spans, oldest first.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        synchronized (sPhases) {
+            writer.println(prefix + "StartupTrace: spans=" + sSpanCount);
+            int index = (sHead - sSpanCount + 1 + MAX_SPANS) % MAX_SPANS;
+            for (int i = 0; i < sSpanCount; i++) {
+                writer.println(prefix + "  span phase=" + PHASE_NAMES[sPhases[index]]
+                        + " start_us=" + (sStarts[index] - sOrigin) / 1000
+                        + " duration_us=" + sDurations[index] / 1000
+                        + " count=" + sCounts[index]
+                        + " tid=" + sThreads[index]
+                        + " run=" + sRuns[index]
+                        + (sRebinds[index] ? " rebind=true" : ""));
+                index = (index + 1) % MAX_SPANS;
+            }
+        }
+        writer.flush();
+    }
+}
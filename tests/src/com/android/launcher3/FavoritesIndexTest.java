@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Verifies that the favorites lookups by container, screen, type and widget id, and the last
+ * screen rank lookup, use the indexes of {@link LauncherProvider#addIndexes(SQLiteDatabase)}, on
+ * the tables created by {@link LauncherProvider}.
+ */
+@SmallTest
+public class FavoritesIndexTest extends AndroidTestCase {
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        // The schema of a new launcher database
+        LauncherProvider.addFavoritesTable(mDb, 0);
+        LauncherProvider.addWorkspacesTable(mDb);
+        LauncherProvider.addIndexes(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testFolderContents() {
+        assertUsesIndex("favorites_container_screen",
+                "SELECT _id, intent FROM favorites WHERE container = 12");
+    }
+
+    public void testEmptyFolders() {
+        ArrayList<String> plan = assertUsesIndex("favorites_item_type",
+                "SELECT _id FROM favorites WHERE itemType = 2 AND _id NOT IN "
+                        + "(SELECT container FROM favorites)");
+        assertPlanContains(plan, "INDEX favorites_container_screen");
+    }
+
+    public void testOrphanedDesktopItems() {
+        assertUsesIndex("favorites_container_screen",
+                "DELETE FROM favorites WHERE screen NOT IN (SELECT _id FROM workspaceScreens) "
+                        + "AND container = -100");
+    }
+
+    public void testOrphanedFolderItems() {
+        assertUsesIndex("favorites_item_type",
+                "DELETE FROM favorites WHERE container <> -100 AND container <> -101 AND "
+                        + "container NOT IN (SELECT _id FROM favorites WHERE itemType = 2)");
+    }
+
+    public void testWidgetLookup() {
+        assertUsesIndex("favorites_app_widget_id",
+                "SELECT _id FROM favorites WHERE appWidgetId = 7 AND (restored & 1) = 1");
+    }
+
+    public void testMaxScreenRank() {
+        assertUsesIndex("workspaceScreens_rank", "SELECT MAX(screenRank) FROM workspaceScreens");
+    }
+
+    private ArrayList<String> assertUsesIndex(String index, String sql) {
+        ArrayList<String> plan = new ArrayList<>();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detailIndex));
+            }
+        } finally {
+            c.close();
+        }
+        assertPlanContains(plan, "INDEX " + index);
+        return plan;
+    }
+
+    private static void assertPlanContains(ArrayList<String> plan, String expected) {
+        for (String step : plan) {
+            if (step.contains(expected)) {
+                return;
+            }
+        }
+        fail("Expected '" + expected + "' in the query plan " + plan);
+    }
+}
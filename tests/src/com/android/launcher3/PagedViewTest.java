@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.View;
+
+/**
+ * Tests that {@link PagedView#getVisiblePages(int[])}, which searches the laid out bounds of the
+ * pages, finds the pages which are in the viewport.
+ */
+@SmallTest
+public class PagedViewTest extends AndroidTestCase {
+
+    private static final int PAGE_COUNT = 20;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    private TestPagedView mPagedView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPagedView = new TestPagedView(getContext());
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            mPagedView.addView(new View(getContext()));
+        }
+        mPagedView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        mPagedView.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    public void testVisiblePagesMatchLayout() {
+        int[] range = new int[2];
+        int maxScroll = mPagedView.getScrollForPage(PAGE_COUNT - 1);
+        for (int scrollX = 0; scrollX <= maxScroll; scrollX += WIDTH / 7) {
+            mPagedView.scrollTo(scrollX, 0);
+            mPagedView.getVisiblePages(range);
+
+            int viewportRight = scrollX + mPagedView.getViewportWidth();
+            for (int i = 0; i < PAGE_COUNT; i++) {
+                View page = mPagedView.getPageAt(i);
+                boolean visible = page.getRight() >= scrollX && page.getLeft() <= viewportRight;
+                assertEquals("page " + i + " at scroll " + scrollX,
+                        visible, range[0] <= i && i <= range[1]);
+            }
+        }
+    }
+
+    public void testTransformedNeighbourPageVisible() {
+        int[] range = new int[2];
+        // Between two pages, so that no other page touches the viewport
+        mPagedView.scrollTo(mPagedView.getScrollForPage(5) + WIDTH / 2, 0);
+        mPagedView.getVisiblePages(range);
+        int end = range[1];
+
+        // A page moved into the viewport by a transition effect is visible
+        mPagedView.getPageAt(end + 1).setTranslationX(-WIDTH);
+        mPagedView.getVisiblePages(range);
+        assertEquals(end + 1, range[1]);
+
+        mPagedView.getPageAt(end + 1).setTranslationX(0);
+        mPagedView.getVisiblePages(range);
+        assertEquals(end, range[1]);
+    }
+
+    public void testTransformedViewUsesTransformedBounds() {
+        int[] range = new int[2];
+        // Between two pages, so that no other page touches the viewport
+        mPagedView.scrollTo(mPagedView.getScrollForPage(5) + WIDTH / 2, 0);
+        mPagedView.getVisiblePages(range);
+        int start = range[0];
+        int end = range[1];
+
+        // Scaled down, the pages next to the current one come into the viewport
+        mPagedView.setScaleX(0.4f);
+        mPagedView.getVisiblePages(range);
+        assertTrue(range[0] < start);
+        assertTrue(range[1] > end);
+    }
+
+    private static class TestPagedView extends PagedView {
+
+        public TestPagedView(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void getEdgeVerticalPostion(int[] pos) {
+            pos[0] = 0;
+            pos[1] = getViewportHeight();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.compat.UserHandleCompat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tests for the adapter items built by {@link AlphabeticalAppsList}, for synthetic lists of apps
+ * in a few locales.
+ */
+@SmallTest
+public class AlphabeticalAppsListTest extends AndroidTestCase {
+
+    private static final int APP_COUNT = 500;
+    private static final int NUM_APPS_PER_ROW = 5;
+
+    private static final Locale[] LOCALES = {
+            Locale.US, Locale.SIMPLIFIED_CHINESE, Locale.JAPANESE, new Locale("ru") };
+
+    public void testMergedSectionsOnlyHaveApps() {
+        for (Locale locale : LOCALES) {
+            AlphabeticalAppsList list = createList(locale);
+            list.setNumAppsPerRow(NUM_APPS_PER_ROW, NUM_APPS_PER_ROW, true);
+
+            List<AlphabeticalAppsList.AdapterItem> items = list.getAdapterItems();
+            assertEquals(APP_COUNT, list.getNumFilteredApps());
+            assertEquals(APP_COUNT, items.size());
+            for (int i = 0; i < items.size(); i++) {
+                AlphabeticalAppsList.AdapterItem item = items.get(i);
+                assertEquals(AllAppsGridAdapter.ICON_VIEW_TYPE, item.viewType);
+                assertEquals(i, item.position);
+                assertEquals(i, item.appIndex);
+                assertSame(list.getApps().get(i), item.appInfo);
+            }
+        }
+    }
+
+    public void testSectionBreaks() {
+        for (Locale locale : LOCALES) {
+            AlphabeticalAppsList list = createList(locale);
+            list.setNumAppsPerRow(NUM_APPS_PER_ROW, NUM_APPS_PER_ROW, false);
+
+            List<AlphabeticalAppsList.AdapterItem> items = list.getAdapterItems();
+            int sectionBreaks = 0;
+            int apps = 0;
+            for (int i = 0; i < items.size(); i++) {
+                AlphabeticalAppsList.AdapterItem item = items.get(i);
+                assertEquals(i, item.position);
+                if (item.viewType == AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE) {
+                    assertSame(item, item.sectionInfo.sectionBreakItem);
+                    sectionBreaks++;
+                } else {
+                    assertEquals(apps++, item.appIndex);
+                }
+            }
+            assertEquals(APP_COUNT, apps);
+            assertEquals(list.getSections().size(), sectionBreaks);
+        }
+    }
+
+    public void testSectionsAreContiguous() {
+        for (Locale locale : LOCALES) {
+            AlphabeticalAppsList list = createList(locale);
+            list.setNumAppsPerRow(NUM_APPS_PER_ROW, NUM_APPS_PER_ROW, true);
+
+            // Each section name only appears in one run of apps, including for the locales whose
+            // sections are sorted separately from the apps
+            HashSet<String> seenSections = new HashSet<>();
+            String lastSectionName = null;
+            for (AlphabeticalAppsList.AdapterItem item : list.getAdapterItems()) {
+                if (!item.sectionName.equals(lastSectionName)) {
+                    assertTrue(locale + ": " + item.sectionName,
+                            seenSections.add(item.sectionName));
+                    lastSectionName = item.sectionName;
+                }
+            }
+        }
+    }
+
+    private AlphabeticalAppsList createList(Locale locale) {
+        AlphabeticalAppsList list = new AlphabeticalAppsList(createLocaleContext(locale));
+        list.setApps(createApps(locale, APP_COUNT));
+        return list;
+    }
+
+    private Context createLocaleContext(Locale locale) {
+        Configuration config = new Configuration(
+                getContext().getResources().getConfiguration());
+        config.locale = locale;
+        return getContext().createConfigurationContext(config);
+    }
+
+    private static ArrayList<AppInfo> createApps(Locale locale, int count) {
+        // Pick the first letters from the script of the locale, so that sections are realistic
+        int firstChar;
+        int charRange;
+        if (Locale.SIMPLIFIED_CHINESE.equals(locale)) {
+            firstChar = 0x4E00;
+            charRange = 2000;
+        } else if (Locale.JAPANESE.equals(locale)) {
+            firstChar = 0x3041;
+            charRange = 80;
+        } else if ("ru".equals(locale.getLanguage())) {
+            firstChar = 0x0410;
+            charRange = 32;
+        } else {
+            firstChar = 'A';
+            charRange = 26;
+        }
+
+        Random random = new Random(count);
+        UserHandleCompat user = UserHandleCompat.myUserHandle();
+        ArrayList<AppInfo> apps = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder title = new StringBuilder();
+            int length = 3 + random.nextInt(10);
+            for (int j = 0; j < length; j++) {
+                title.appendCodePoint(firstChar + random.nextInt(charRange));
+            }
+            Intent intent = new Intent(Intent.ACTION_MAIN)
+                    .setComponent(new ComponentName("com.example.app" + i, "MainActivity"));
+            apps.add(new AppInfo(intent, title.toString(), user));
+        }
+        return apps;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.model;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.launcher3.model.GridMigrationSolver.Entry;
+import com.android.launcher3.model.GridMigrationSolver.Solution;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks the pruned and parallel {@link GridMigrationSolver} against its exhaustive search, on
+ * synthetic dense layouts of a 5x6 grid migrated to a 4x5 grid.
+ */
+@LargeTest
+public class GridMigrationSolverTest extends AndroidTestCase {
+
+    private static final int SRC_X = 5, SRC_Y = 6;
+    private static final int TRG_X = 4, TRG_Y = 5;
+    private static final int SCREENS = 8;
+    private static final long TIME_BUDGET_MS = 60000;
+
+    private ArrayList<ArrayList<Entry>> mScreens;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(42);
+        mScreens = new ArrayList<>();
+        long id = 0;
+        for (int i = 0; i < SCREENS; i++) {
+            ArrayList<Entry> items = new ArrayList<>();
+            boolean[][] occupied = new boolean[SRC_X][SRC_Y];
+
+            // A few widgets, then fill every remaining cell with icons.
+            for (int w = 0; w < 3; w++) {
+                int spanX = 2 + random.nextInt(SRC_X - 1);
+                int spanY = 1 + random.nextInt(2);
+                int x = random.nextInt(SRC_X - spanX + 1);
+                int y = random.nextInt(SRC_Y - spanY + 1);
+                if (!isVacant(occupied, x, y, spanX, spanY)) {
+                    continue;
+                }
+                Entry widget = createEntry(id++, x, y, spanX, spanY, occupied);
+                widget.isWidget = true;
+                widget.minSpanX = Math.min(spanX, 2);
+                widget.minSpanY = 1;
+                widget.weight = Math.max(2, 0.6f * spanX * spanY);
+                items.add(widget);
+            }
+            for (int x = 0; x < SRC_X; x++) {
+                for (int y = 0; y < SRC_Y; y++) {
+                    if (!occupied[x][y]) {
+                        Entry icon = createEntry(id++, x, y, 1, 1, occupied);
+                        icon.weight = random.nextInt(4) == 0 ? 1 : 0.8f;
+                        items.add(icon);
+                    }
+                }
+            }
+            mScreens.add(items);
+        }
+    }
+
+    public void testSolveScreens() throws Exception {
+        GridMigrationSolver plain = new GridMigrationSolver(SRC_X, SRC_Y, TRG_X, TRG_Y,
+                TIME_BUDGET_MS, false);
+        ArrayList<Solution> expected = new ArrayList<>();
+        long plainNodes = 0;
+        for (ArrayList<Entry> items : mScreens) {
+            Solution solution = plain.solveScreen(items);
+            plainNodes += solution.nodes;
+            expected.add(solution);
+        }
+
+        GridMigrationSolver pruned = new GridMigrationSolver(SRC_X, SRC_Y, TRG_X, TRG_Y,
+                TIME_BUDGET_MS);
+        long prunedNodes = 0;
+        for (int i = 0; i < mScreens.size(); i++) {
+            Solution solution = pruned.solveScreen(mScreens.get(i));
+            prunedNodes += solution.nodes;
+            assertSameCost(expected.get(i), solution);
+        }
+        // The bounds and the memoization skip most of the exhaustive search
+        assertTrue("pruned=" + prunedNodes + " plain=" + plainNodes,
+                prunedNodes * 2 < plainNodes);
+
+        ArrayList<Solution> parallel = new GridMigrationSolver(SRC_X, SRC_Y, TRG_X, TRG_Y,
+                TIME_BUDGET_MS).solveScreens(mScreens);
+        for (int i = 0; i < mScreens.size(); i++) {
+            assertSameCost(expected.get(i), parallel.get(i));
+        }
+    }
+
+    public void testTimeBudget() throws Exception {
+        GridMigrationSolver solver = new GridMigrationSolver(SRC_X, SRC_Y, TRG_X, TRG_Y, 0);
+        for (Solution solution : solver.solveScreens(mScreens)) {
+            // Even without any time, a placement is found for every screen.
+            assertTrue(solution.weightLoss < Float.MAX_VALUE);
+            assertFalse(solution.items.isEmpty());
+            assertNoOverlap(solution.items);
+        }
+    }
+
+    private void assertSameCost(Solution expected, Solution actual) {
+        assertFalse(expected.timedOut);
+        assertFalse(actual.timedOut);
+        assertEquals(expected.weightLoss, actual.weightLoss, 0.001f);
+        assertEquals(expected.moveCost, actual.moveCost, 0.001f);
+        assertNoOverlap(actual.items);
+    }
+
+    private void assertNoOverlap(ArrayList<Entry> items) {
+        boolean[][] occupied = new boolean[TRG_X][TRG_Y];
+        for (Entry item : items) {
+            assertTrue(isVacant(occupied, item.cellX, item.cellY, item.spanX, item.spanY));
+            markCells(occupied, item.cellX, item.cellY, item.spanX, item.spanY);
+        }
+    }
+
+    private static Entry createEntry(long id, int x, int y, int spanX, int spanY,
+            boolean[][] occupied) {
+        Entry entry = new Entry();
+        entry.id = id;
+        entry.cellX = x;
+        entry.cellY = y;
+        entry.spanX = spanX;
+        entry.spanY = spanY;
+        markCells(occupied, x, y, spanX, spanY);
+        return entry;
+    }
+
+    private static boolean isVacant(boolean[][] occupied, int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || x + w > occupied.length || y + h > occupied[0].length) {
+            return false;
+        }
+        for (int i = x; i < x + w; i++) {
+            for (int j = y; j < y + h; j++) {
+                if (occupied[i][j]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void markCells(boolean[][] occupied, int x, int y, int w, int h) {
+        for (int i = x; i < x + w; i++) {
+            for (int j = y; j < y + h; j++) {
+                occupied[i][j] = true;
+            }
+        }
+    }
+}
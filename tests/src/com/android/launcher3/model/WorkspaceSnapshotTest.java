@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.model;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link WorkspaceSnapshot}.
+ */
+@SmallTest
+public class WorkspaceSnapshotTest extends AndroidTestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test.snapshot");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        WorkspaceSnapshot snapshot = createSnapshot(300);
+        snapshot.write(mFile);
+        WorkspaceSnapshot read = WorkspaceSnapshot.read(mFile);
+
+        assertEquals(5, read.numColumns);
+        assertEquals(6, read.numRows);
+        assertEquals(5, read.numHotseatIcons);
+        assertEquals(snapshot.screenIds, read.screenIds);
+        assertEquals(snapshot.items.size(), read.items.size());
+        for (int i = 0; i < snapshot.items.size(); i++) {
+            WorkspaceSnapshot.Item expected = snapshot.items.get(i);
+            WorkspaceSnapshot.Item actual = read.items.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.container, actual.container);
+            assertEquals(expected.screenId, actual.screenId);
+            assertEquals(expected.cellX, actual.cellX);
+            assertEquals(expected.cellY, actual.cellY);
+            assertEquals(expected.rank, actual.rank);
+            assertEquals(expected.userSerial, actual.userSerial);
+            assertEquals(expected.title, actual.title);
+            assertEquals(expected.intent, actual.intent);
+            assertEquals(expected.iconPackage, actual.iconPackage);
+            assertEquals(expected.iconResource, actual.iconResource);
+        }
+    }
+
+    public void testCorruptFileRejected() throws Exception {
+        createSnapshot(20).write(mFile);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int value = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(value ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertRejected();
+    }
+
+    public void testTruncatedFileRejected() throws Exception {
+        createSnapshot(20).write(mFile);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(raf.length() - 12);
+        } finally {
+            raf.close();
+        }
+        assertRejected();
+    }
+
+    public void testMissingFileRejected() throws Exception {
+        assertRejected();
+    }
+
+    private void assertRejected() {
+        try {
+            WorkspaceSnapshot.read(mFile);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static WorkspaceSnapshot createSnapshot(int count) {
+        ArrayList<Long> screenIds = new ArrayList<>();
+        for (long i = 0; i < 5; i++) {
+            screenIds.add(i * 3);
+        }
+        ArrayList<WorkspaceSnapshot.Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            WorkspaceSnapshot.Item item = new WorkspaceSnapshot.Item();
+            item.id = i + 1;
+            item.itemType = i % 3;
+            item.container = i % 7 == 0 ? -101 : -100;
+            item.screenId = screenIds.get(i % screenIds.size());
+            item.cellX = i % 5;
+            item.cellY = (i / 5) % 6;
+            item.spanX = 1;
+            item.spanY = 1;
+            item.rank = i;
+            item.userSerial = i % 2;
+            item.title = i % 11 == 0 ? null : "Item é " + i;
+            item.intent = "#Intent;component=com.example/.Activity" + i + ";end";
+            if (i % 4 == 0) {
+                item.iconPackage = "com.example";
+                item.iconResource = "com.example:drawable/icon" + i;
+            }
+            items.add(item);
+        }
+        return new WorkspaceSnapshot(5, 6, 5, screenIds, items);
+    }
+}
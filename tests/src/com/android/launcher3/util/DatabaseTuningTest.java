@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.util;
+
+import android.app.ActivityManager;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.Utilities;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DatabaseTuning}, on a scratch database independent of the launcher data.
+ */
+@SmallTest
+public class DatabaseTuningTest extends AndroidTestCase {
+
+    private static final String DB_NAME = "database_tuning_test.db";
+    private static final String TABLE_NAME = "items";
+
+    private static final int ROWS = 50;
+
+    private TestDb mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testWalEnabled() {
+        if (isLowRam()) {
+            return;
+        }
+        SQLiteDatabase db = open(true);
+        assertTrue(db.isWriteAheadLoggingEnabled());
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+    }
+
+    public void testWalDisabled() {
+        SQLiteDatabase db = open(false);
+        assertFalse(db.isWriteAheadLoggingEnabled());
+        assertFalse("wal".equalsIgnoreCase(
+                DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)));
+    }
+
+    public void testReadDuringWriteTransaction() throws Exception {
+        if (isLowRam()) {
+            return;
+        }
+        final SQLiteDatabase db = open(true);
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch read = new CountDownLatch(1);
+
+        // Keeps a write transaction open, like the loader thread, until the read is done. Without
+        // the write-ahead log, the read waits for the timeout and sees the committed title.
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put("title", "Changed");
+                db.beginTransaction();
+                try {
+                    db.update(TABLE_NAME, values, "_id=?", new String[] {"1"});
+                    written.countDown();
+                    read.await(5, TimeUnit.SECONDS);
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    // Commit right away
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+
+        String title = DatabaseUtils.stringForQuery(db,
+                "SELECT title FROM items WHERE _id = ?", new String[] {"1"});
+        read.countDown();
+        writer.join();
+
+        assertEquals("Item 1", title);
+        assertEquals("Changed", DatabaseUtils.stringForQuery(db,
+                "SELECT title FROM items WHERE _id = ?", new String[] {"1"}));
+    }
+
+    public void testReusedStatement() {
+        SQLiteDatabase db = open(true);
+        SQLiteStatement update = db.compileStatement(
+                "UPDATE items SET title=?, cellX=?, icon=? WHERE _id=?");
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                update.clearBindings();
+                int index = DatabaseTuning.bindAll(update, 1, i % 2 == 0 ? "Moved " + i : null,
+                        i % 5, new byte[] {(byte) i});
+                assertEquals(4, index);
+                update.bindLong(index, i);
+                assertEquals(1, update.executeUpdateDelete());
+            }
+        } finally {
+            update.close();
+        }
+
+        Cursor c = db.rawQuery("SELECT _id, title, cellX, icon FROM items ORDER BY _id", null);
+        try {
+            assertEquals(ROWS, c.getCount());
+            while (c.moveToNext()) {
+                int id = c.getInt(0);
+                if (id % 2 == 0) {
+                    assertEquals("Moved " + id, c.getString(1));
+                } else {
+                    assertTrue(c.isNull(1));
+                }
+                assertEquals(id % 5, c.getInt(2));
+                byte[] icon = c.getBlob(3);
+                assertEquals(1, icon.length);
+                assertEquals((byte) id, icon[0]);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private SQLiteDatabase open(boolean enableWal) {
+        mHelper = new TestDb(getContext(), enableWal);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                values.put("_id", i);
+                values.put("title", "Item " + i);
+                values.put("cellX", 0);
+                db.insert(TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return db;
+    }
+
+    private boolean isLowRam() {
+        return Utilities.ATLEAST_KITKAT && ((ActivityManager) getContext()
+                .getSystemService(Context.ACTIVITY_SERVICE)).isLowRamDevice();
+    }
+
+    private static class TestDb extends SQLiteOpenHelper {
+        private final Context mContext;
+        private final boolean mEnableWal;
+
+        TestDb(Context context, boolean enableWal) {
+            super(context, DB_NAME, null, 1);
+            mContext = context;
+            mEnableWal = enableWal;
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            DatabaseTuning.configure(mContext, db, mEnableWal);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (_id INTEGER PRIMARY KEY, title TEXT, "
+                    + "cellX INTEGER, icon BLOB)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) { }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.Utilities;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link IconBlob}.
+ */
+@SmallTest
+public class IconBlobTest extends AndroidTestCase {
+
+    private static final int ICON_SIZE = 192;
+
+    public void testRoundTrip() {
+        Bitmap icon = createIcon(Color.TRANSPARENT);
+        byte[] blob = IconBlob.encode(icon);
+        assertTrue(IconBlob.isCompact(blob));
+
+        Bitmap decoded = IconBlob.decode(blob, null);
+        assertEquals(Bitmap.Config.ARGB_8888, decoded.getConfig());
+        assertTrue(decoded.sameAs(icon));
+    }
+
+    public void testRoundTripRgb565() {
+        Bitmap icon = createIcon(Color.WHITE).copy(Bitmap.Config.RGB_565, false);
+        Bitmap decoded = IconBlob.decode(IconBlob.encode(icon), null);
+        assertEquals(Bitmap.Config.RGB_565, decoded.getConfig());
+        assertTrue(decoded.sameAs(icon));
+    }
+
+    public void testDecodesLegacyPng() {
+        Bitmap icon = createIcon(Color.TRANSPARENT);
+        byte[] png = Utilities.flattenBitmap(icon);
+        assertFalse(IconBlob.isCompact(png));
+        assertTrue(IconBlob.decode(png, null).sameAs(icon));
+    }
+
+    public void testLowResOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        // Like BitmapFactory, only opaque icons are loaded as RGB_565
+        Bitmap opaque = IconBlob.decode(IconBlob.encode(createIcon(Color.WHITE)), options);
+        assertEquals(Bitmap.Config.RGB_565, opaque.getConfig());
+        Bitmap transparent = IconBlob.decode(
+                IconBlob.encode(createIcon(Color.TRANSPARENT)), options);
+        assertEquals(Bitmap.Config.ARGB_8888, transparent.getConfig());
+
+        options.inSampleSize = 4;
+        Bitmap sampled = IconBlob.decode(IconBlob.encode(createIcon(Color.WHITE)), options);
+        assertEquals(ICON_SIZE / 4, sampled.getWidth());
+        assertEquals(ICON_SIZE / 4, sampled.getHeight());
+    }
+
+    public void testTruncatedBlobRejected() {
+        byte[] blob = IconBlob.encode(createIcon(Color.TRANSPARENT));
+        assertNull(IconBlob.decode(Arrays.copyOf(blob, blob.length / 2), null));
+    }
+
+    private static Bitmap createIcon(int background) {
+        Bitmap icon = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(icon);
+        canvas.drawColor(background);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        for (int i = 0; i < 6; i++) {
+            paint.setColor(Color.rgb(40 * i, 255 - 40 * i, 128));
+            canvas.drawCircle(ICON_SIZE / 2, ICON_SIZE / 2, ICON_SIZE / 2 - 12 * i, paint);
+        }
+        canvas.setBitmap(null);
+        return icon;
+    }
+}
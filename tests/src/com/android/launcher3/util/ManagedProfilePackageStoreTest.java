@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link ManagedProfilePackageStore}.
+ */
+@SmallTest
+public class ManagedProfilePackageStoreTest extends AndroidTestCase {
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "managed_user_packages_test");
+        ManagedProfilePackageStore.deleteOtherUsers(mDir, Collections.<Long>emptySet());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ManagedProfilePackageStore.deleteOtherUsers(mDir, Collections.<Long>emptySet());
+        super.tearDown();
+    }
+
+    public void testChangesAreKept() throws Exception {
+        ManagedProfilePackageStore store = ManagedProfilePackageStore.get(mDir, 10);
+        assertFalse(store.exists());
+
+        ArrayList<String> packages = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            packages.add("com.example.app" + i);
+        }
+        store.addAll(packages);
+        for (int i = 0; i < 300; i++) {
+            store.addAll(Collections.singleton("com.example.new" + i));
+            store.removeAll(Arrays.asList("com.example.app" + i));
+        }
+
+        store = reload(10);
+        assertTrue(store.exists());
+        assertEquals(500, store.size());
+        assertFalse(store.contains("com.example.app0"));
+        assertTrue(store.contains("com.example.app499"));
+        assertTrue(store.contains("com.example.new5"));
+    }
+
+    public void testPartialRecordIgnored() throws Exception {
+        ManagedProfilePackageStore store = ManagedProfilePackageStore.get(mDir, 11);
+        store.addAll(Collections.singleton("com.example.first"));
+        store.addAll(Collections.singleton("com.example.second"));
+
+        File file = new File(mDir, "11");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        store = reload(11);
+        assertTrue(store.contains("com.example.first"));
+        assertFalse(store.contains("com.example.second"));
+
+        // Records appended after the partial one can be read
+        store.addAll(Collections.singleton("com.example.third"));
+        store = reload(11);
+        assertTrue(store.contains("com.example.third"));
+        assertEquals(2, store.size());
+    }
+
+    public void testOtherUsersDeleted() throws Exception {
+        ManagedProfilePackageStore.get(mDir, 12).addAll(
+                Collections.singleton("com.example.app"));
+        ManagedProfilePackageStore.get(mDir, 13).addAll(
+                Collections.singleton("com.example.app"));
+
+        ManagedProfilePackageStore.deleteOtherUsers(mDir, Collections.singleton(13L));
+        assertFalse(new File(mDir, "12").exists());
+        assertFalse(ManagedProfilePackageStore.get(mDir, 12).exists());
+        assertTrue(ManagedProfilePackageStore.get(mDir, 13).exists());
+    }
+
+    public void testAppendAfterFileDeleted() throws Exception {
+        ManagedProfilePackageStore store = ManagedProfilePackageStore.get(mDir, 14);
+        store.addAll(Collections.singleton("com.example.first"));
+        assertTrue(new File(mDir, "14").delete());
+
+        // The store is written again with its header, instead of a bare record
+        store.addAll(Collections.singleton("com.example.second"));
+        store = reload(14);
+        assertTrue(store.contains("com.example.first"));
+        assertTrue(store.contains("com.example.second"));
+    }
+
+    /**
+     * Drops the cached store of the user, and reads it again from its file.
+     */
+    private ManagedProfilePackageStore reload(long userSerial) {
+        File file = new File(mDir, Long.toString(userSerial));
+        File copy = new File(getContext().getCacheDir(), "managed_user_packages_copy");
+        assertTrue(file.renameTo(copy));
+        ManagedProfilePackageStore.deleteOtherUsers(mDir, Collections.<Long>emptySet());
+        assertTrue(copy.renameTo(file));
+        return ManagedProfilePackageStore.get(mDir, userSerial);
+    }
+}
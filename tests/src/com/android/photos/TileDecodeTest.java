@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.photos;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.photos.BitmapRegionTileSource.FilePathBitmapSource;
+import com.android.photos.views.TiledImageRenderer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies that {@link BitmapRegionTileSource} decodes the same tiles from several threads as
+ * from one, and decodes into the bitmaps it is given.
+ */
+@LargeTest
+public class TileDecodeTest extends AndroidTestCase {
+
+    private static final int IMAGE_WIDTH = 2000;
+    private static final int IMAGE_HEIGHT = 1500;
+
+    private File mImageFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mImageFile = new File(getContext().getCacheDir(), "tile_test.jpg");
+
+        // Draw some blocks so that every tile is different
+        Bitmap bitmap = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        for (int y = 0; y < IMAGE_HEIGHT; y += 50) {
+            for (int x = 0; x < IMAGE_WIDTH; x += 50) {
+                paint.setColor(Color.rgb(x % 255, y % 255, (x + y) % 255));
+                canvas.drawRect(x, y, x + 50, y + 50, paint);
+            }
+        }
+        FileOutputStream out = new FileOutputStream(mImageFile);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        out.close();
+        bitmap.recycle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mImageFile.delete();
+        super.tearDown();
+    }
+
+    public void testConcurrentTilesMatchSerialTiles() throws Exception {
+        BitmapRegionTileSource serialSource = createTileSource();
+        final int size = serialSource.getTileSize();
+        final int columns = (serialSource.getImageWidth() + size - 1) / size;
+        final int rows = (serialSource.getImageHeight() + size - 1) / size;
+        final Bitmap[] expected = new Bitmap[columns * rows];
+        for (int tile = 0; tile < expected.length; tile++) {
+            expected[tile] = serialSource.getTile(0, (tile % columns) * size,
+                    (tile / columns) * size, null);
+            assertNotNull(expected[tile]);
+        }
+
+        final BitmapRegionTileSource source = createTileSource();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger matching = new AtomicInteger();
+        Thread[] threads = new Thread[Math.max(2, TiledImageRenderer.suggestedDecoderCount())];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Bitmap reuse = null;
+                    int tile;
+                    while ((tile = next.getAndIncrement()) < expected.length) {
+                        Bitmap b = source.getTile(0, (tile % columns) * size,
+                                (tile / columns) * size, reuse);
+                        if (b != null && b.sameAs(expected[tile])) {
+                            matching.incrementAndGet();
+                        }
+                        reuse = b;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(expected.length, matching.get());
+    }
+
+    public void testDecodesIntoGivenBitmap() throws Exception {
+        BitmapRegionTileSource source = createTileSource();
+        int size = source.getTileSize();
+        Bitmap reuse = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        assertSame(reuse, source.getTile(0, 0, 0, reuse));
+        assertSame(reuse, source.getTile(0, size, size, reuse));
+    }
+
+    private BitmapRegionTileSource createTileSource() {
+        FilePathBitmapSource source = new FilePathBitmapSource(mImageFile.getAbsolutePath());
+        assertTrue(source.loadInBackground(null));
+        return new BitmapRegionTileSource(getContext(), source, new byte[16 * 1024]);
+    }
+}
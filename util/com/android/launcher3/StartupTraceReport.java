@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Commandline utility which replays the spans recorded by StartupTrace into a per phase latency
+ * report.
+ *
+ * <P>The input is any text containing the span lines of the dump, like the output of
+ * {@code adb shell dumpsys activity com.android.launcher3/.Launcher}, a bug report or the files
+ * written by Launcher.dumpLogsToLocalData(). Each run of the loader found in the files, like a
+ * cold start, is one sample. The rebinds of an already loaded model, like when the activity is
+ * recreated, are skipped. Spans which are printed more than once, as when a bug report has
+ * several dumps, are only counted once:
+ * <pre>
+ *     java -cp launcher_protoutil_lib.jar com.android.launcher3.StartupTraceReport run1.txt run2.txt
+ * </pre>
+ *
+ * <P>To compare two releases, separate their runs with {@code --vs}. The median of each phase is
+ * then printed for both, along with the change:
+ * <pre>
+ *     java -cp launcher_protoutil_lib.jar com.android.launcher3.StartupTraceReport \
+ *         old/*.txt --vs new/*.txt
+ * </pre>
+ */
+class StartupTraceReport {
+
+    private static final String SPAN_PREFIX = "span ";
+
+    /**
+     * The durations of a phase, in microseconds, across all runs.
+     */
+    static class PhaseStats {
+        final ArrayList<Long> durations = new ArrayList<Long>();
+        long items;
+
+        long percentile(int p) {
+            if (durations.isEmpty()) {
+                return 0;
+            }
+            ArrayList<Long> sorted = new ArrayList<Long>(durations);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+        }
+
+        long mean() {
+            if (durations.isEmpty()) {
+                return 0;
+            }
+            long sum = 0;
+            for (long d : durations) {
+                sum += d;
+            }
+            return sum / durations.size();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<String> baseline = new ArrayList<String>();
+        ArrayList<String> current = new ArrayList<String>();
+        ArrayList<String> target = baseline;
+        for (String arg : args) {
+            if ("--vs".equals(arg)) {
+                target = current;
+            } else {
+                target.add(arg);
+            }
+        }
+        if (baseline.isEmpty()) {
+            usage();
+            System.exit(1);
+        }
+
+        Map<String, PhaseStats> base = readRuns(baseline);
+        if (current.isEmpty()) {
+            printReport(base);
+        } else {
+            printComparison(base, readRuns(current));
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: StartupTraceReport <dump>... [--vs <dump>...]");
+        System.err.println();
+        System.err.println("Prints the latency of each launcher loader phase across the runs in");
+        System.err.println("the dumps, or compares the medians of two sets of runs.");
+    }
+
+    /**
+     * Reads the spans of all the files, grouped by the run of the loader which recorded them.
+     * A phase which appears several times in a run, like the icon decoding of the workspace and
+     * of all apps, is added up into a single duration. Spans without a run, from older dumps, are
+     * taken as a single run per file. The spans of a rebind are skipped.
+     */
+    static Map<String, PhaseStats> readRuns(ArrayList<String> files) throws IOException {
+        Map<String, PhaseStats> stats = new LinkedHashMap<String, PhaseStats>();
+        for (String file : files) {
+            // The phase durations of each run in the file
+            Map<String, Map<String, Long>> runs = new LinkedHashMap<String, Map<String, Long>>();
+            HashSet<String> seenSpans = new HashSet<String>();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int start = line.indexOf(SPAN_PREFIX);
+                    if (start < 0) {
+                        continue;
+                    }
+                    String span = line.substring(start + SPAN_PREFIX.length()).trim();
+                    Map<String, String> fields = parseFields(span);
+                    String phase = fields.get("phase");
+                    String duration = fields.get("duration_us");
+                    if (phase == null || duration == null || "true".equals(fields.get("rebind"))
+                            || !seenSpans.add(span)) {
+                        continue;
+                    }
+                    String runId = fields.get("run");
+                    Map<String, Long> run = runs.get(runId);
+                    if (run == null) {
+                        run = new LinkedHashMap<String, Long>();
+                        runs.put(runId, run);
+                    }
+                    Long total = run.get(phase);
+                    run.put(phase, (total == null ? 0 : total) + Long.parseLong(duration));
+
+                    PhaseStats phaseStats = getStats(stats, phase);
+                    String count = fields.get("count");
+                    phaseStats.items += count == null ? 1 : Long.parseLong(count);
+                }
+            } finally {
+                reader.close();
+            }
+            for (Map<String, Long> run : runs.values()) {
+                for (Map.Entry<String, Long> entry : run.entrySet()) {
+                    getStats(stats, entry.getKey()).durations.add(entry.getValue());
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static PhaseStats getStats(Map<String, PhaseStats> stats, String phase) {
+        PhaseStats phaseStats = stats.get(phase);
+        if (phaseStats == null) {
+            phaseStats = new PhaseStats();
+            stats.put(phase, phaseStats);
+        }
+        return phaseStats;
+    }
+
+    private static Map<String, String> parseFields(String text) {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        for (String token : text.trim().split("\\s+")) {
+            int eq = token.indexOf('=');
+            if (eq > 0) {
+                fields.put(token.substring(0, eq), token.substring(eq + 1));
+            }
+        }
+        return fields;
+    }
+
+    private static void printReport(Map<String, PhaseStats> stats) {
+        System.out.println(String.format("%-16s %6s %8s %10s %10s %10s %10s %10s",
+                "phase", "runs", "items", "min_ms", "median_ms", "p90_ms", "max_ms", "mean_ms"));
+        for (Map.Entry<String, PhaseStats> entry : stats.entrySet()) {
+            PhaseStats s = entry.getValue();
+            System.out.println(String.format("%-16s %6d %8d %10.1f %10.1f %10.1f %10.1f %10.1f",
+                    entry.getKey(), s.durations.size(), s.items, s.percentile(0) / 1000f,
+                    s.percentile(50) / 1000f, s.percentile(90) / 1000f,
+                    s.percentile(100) / 1000f, s.mean() / 1000f));
+        }
+    }
+
+    private static void printComparison(Map<String, PhaseStats> base,
+            Map<String, PhaseStats> current) {
+        System.out.println(String.format("%-16s %12s %12s %10s",
+                "phase", "base_ms", "current_ms", "change"));
+        Map<String, PhaseStats> all = new LinkedHashMap<String, PhaseStats>(base);
+        for (Map.Entry<String, PhaseStats> entry : current.entrySet()) {
+            if (!all.containsKey(entry.getKey())) {
+                all.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String phase : all.keySet()) {
+            PhaseStats b = base.get(phase);
+            PhaseStats c = current.get(phase);
+            long baseMedian = b == null ? 0 : b.percentile(50);
+            long currentMedian = c == null ? 0 : c.percentile(50);
+            String change = baseMedian == 0 ? "n/a" : String.format("%+.1f%%",
+                    100f * (currentMedian - baseMedian) / baseMedian);
+            System.out.println(String.format("%-16s %12.1f %12.1f %10s", phase,
+                    baseMedian / 1000f, currentMedian / 1000f, change));
+        }
+    }
+}